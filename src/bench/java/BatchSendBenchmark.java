@@ -0,0 +1,137 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static spark.Spark.*;
+
+/**
+ * Ingestion throughput of POST /api/message/batch against POST /api/message: the same
+ * `messages` random sends between `users` users, once as one request per message and once in
+ * batches of `batchSize` (all from one sender, as a batch acts for its session), with up to
+ * `concurrency` requests in flight. Then the same comparison in-process, MessagingServer
+ * sendMessage against sendBatch, to separate HTTP overhead from the per-receiver batching.
+ * Senders are the even users, each holding a REST session (so online, with its no-op
+ * observer); the odd users stay offline.
+ * Storage defaults to memory (-Dwhatsapp.storage=wal|mongo to change). Spark is a static
+ * singleton, so both HTTP runs share one server.
+ *
+ *   mvn -Pbench compile exec:java -Dbench=BatchSendBenchmark -Dexec.args="50000 100 16 200"
+ *   (messages, batchSize, concurrency, users)
+ */
+public class BatchSendBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+        int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int concurrency = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        int users = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+        if (System.getProperty("whatsapp.storage") == null) System.setProperty("whatsapp.storage", "memory");
+        int port = 4598;
+
+        MessagingServer server = MessagingServer.getInstance();
+        for (int i = 0; i < users; i++) server.registerUser("u" + i, "pw");
+        RESTServer.start(server, port);
+        awaitInitialization();
+        String[] tokens = new String[users];
+        for (int i = 0; i < users; i += 2) tokens[i] = RESTServer.getSessions().login("u" + i, "pw").getToken();
+        HttpClient client = HttpClient.newBuilder().executor(Executors.newFixedThreadPool(8)).build();
+
+        System.out.printf("storage=%s messages=%d batchSize=%d concurrency=%d users=%d%n",
+                server.getStorageName(), messages, batchSize, concurrency, users);
+        // warm-up both paths
+        http(client, port, tokens, messages / 5, 1, concurrency, users);
+        http(client, port, tokens, messages / 5, batchSize, concurrency, users);
+        report("HTTP single", messages, http(client, port, tokens, messages, 1, concurrency, users));
+        report("HTTP batch", messages, http(client, port, tokens, messages, batchSize, concurrency, users));
+
+        inProcess(server, messages / 5, 1, users);
+        inProcess(server, messages / 5, batchSize, users);
+        report("in-process single", messages, inProcess(server, messages, 1, users));
+        report("in-process batch", messages, inProcess(server, messages, batchSize, users));
+
+        stop();
+        System.exit(0);
+    }
+
+    private static void report(String label, int messages, long nanos) {
+        System.out.printf("%-18s %,12.0f msgs/s  (%,.0f ms)%n", label, messages / (nanos / 1e9), nanos / 1e6);
+    }
+
+    // batchSize 1 uses the single-message endpoint
+    private static long http(HttpClient client, int port, String[] tokens, int messages, int batchSize, int concurrency,
+                             int users) throws Exception {
+        Random rnd = new Random(42);
+        int requests = (messages + batchSize - 1) / batchSize;
+        URI uri = URI.create("http://localhost:" + port + (batchSize == 1 ? "/api/message" : "/api/message/batch"));
+        List<String> bodies = new ArrayList<>(requests);
+        List<String> senders = new ArrayList<>(requests);
+        for (int r = 0, left = messages; r < requests; r++, left -= batchSize) {
+            int n = Math.min(batchSize, left);
+            int from = sender(rnd, users);
+            StringBuilder sb = new StringBuilder();
+            if (batchSize > 1) sb.append('[');
+            for (int i = 0; i < n; i++) {
+                if (i > 0) sb.append(',');
+                sb.append("{\"receiver\":\"u").append(receiver(rnd, from, users))
+                        .append("\",\"content\":\"benchmark message ").append(i).append("\"}");
+            }
+            if (batchSize > 1) sb.append(']');
+            bodies.add(sb.toString());
+            senders.add(tokens[from]);
+        }
+
+        Semaphore window = new Semaphore(concurrency);
+        AtomicInteger failures = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(requests);
+        long t0 = System.nanoTime();
+        for (int r = 0; r < requests; r++) {
+            window.acquire();
+            HttpRequest request = HttpRequest.newBuilder(uri).header("Content-Type", "application/json")
+                    .header("Authorization", "Bearer " + senders.get(r))
+                    .POST(HttpRequest.BodyPublishers.ofString(bodies.get(r))).build();
+            client.sendAsync(request, HttpResponse.BodyHandlers.ofString()).whenComplete((resp, err) -> {
+                if (err != null || resp.statusCode() != 200 || resp.body().contains("\"ok\":false")) failures.incrementAndGet();
+                window.release();
+                done.countDown();
+            });
+        }
+        done.await();
+        long elapsed = System.nanoTime() - t0;
+        if (failures.get() > 0) System.out.println("  failed requests: " + failures.get());
+        return elapsed;
+    }
+
+    private static long inProcess(MessagingServer server, int messages, int batchSize, int users) {
+        Random rnd = new Random(7);
+        long t0 = System.nanoTime();
+        List<BatchedSend> batch = new ArrayList<>(batchSize);
+        int from = 0;
+        for (int i = 0; i < messages; i++) {
+            if (batch.isEmpty()) from = sender(rnd, users);
+            int to = receiver(rnd, from, users);
+            if (batchSize == 1) {
+                server.sendMessage("u" + from, "u" + to, "benchmark message " + i);
+                continue;
+            }
+            batch.add(new BatchedSend("u" + from, "u" + to, "benchmark message " + i));
+            if (batch.size() == batchSize) {
+                server.sendBatch(batch);
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+        if (!batch.isEmpty()) server.sendBatch(batch);
+        return System.nanoTime() - t0;
+    }
+
+    private static int sender(Random rnd, int users) {
+        return 2 * rnd.nextInt((users + 1) / 2);
+    }
+
+    private static int receiver(Random rnd, int from, int users) {
+        return (from + 1 + rnd.nextInt(users - 1)) % users;
+    }
+}
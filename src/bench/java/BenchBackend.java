@@ -0,0 +1,212 @@
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Wires the messaging core for one benchmark trial (see bench.Backend).
+ * "memory": no persistence (MongoDB disconnected), history served from the bounded cache.
+ * "mongo":  a real MongoDBService behind the write-behind queue, against -Dbench.mongo.uri
+ *           (default: local mongod). Each trial uses a fresh database that close() drops.
+ * "memstore": MemoryStore, the full in-memory backend (complete history, no durability).
+ * "wal":    WalStorage in a temporary directory, written directly (no write-behind), fsync
+ *           policy from -Dbench.wal.fsync (default INTERVAL). close() deletes the log.
+ * With a shard count > 0 MessageManager runs partitioned on a ShardedExecutor.
+ * Groups are kept in the same store (a MemoryStore for "memory").
+ */
+public class BenchBackend implements bench.Backend {
+    static final String MONGO_URI = System.getProperty("bench.mongo.uri",
+            "mongodb://127.0.0.1:27017/?serverSelectionTimeoutMS=2000");
+
+    private final UserManager users;
+    private final NotificationManager notifications;
+    private final MessageStore storage;
+    private final MongoDBService mongo; // only for the mongo backend
+    private final Path walDir; // only for the wal backend
+    private final MessageWriteBehind writeBehind;
+    private final ConversationCache cache;
+    private final MessageManager messages;
+    private final GroupManager groups;
+    private final PresenceService presence;
+    private final ShardedExecutor shards; // partitioned mode only
+
+    public BenchBackend(String backend) {
+        this(backend, 0);
+    }
+
+    public BenchBackend(String backend, int shardCount) {
+        if ("mongo".equals(backend)) {
+            mongo = new MongoDBService();
+            if (!mongo.connect(MONGO_URI, "whatsapp_bench_" + System.nanoTime())) {
+                throw new IllegalStateException("mongo backend needs a MongoDB at " + MONGO_URI);
+            }
+            storage = mongo;
+            walDir = null;
+            writeBehind = new MessageWriteBehind(mongo);
+            users = new UserManager(mongo);
+            cache = new ConversationCache((u, p, before, limit) -> {
+                writeBehind.flush();
+                return mongo.getConversationPage(u, p, before, limit);
+            }, users.getRegistry());
+        } else if ("wal".equals(backend)) {
+            mongo = null;
+            try {
+                walDir = Files.createTempDirectory("whatsapp-bench-wal");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            WalStorage wal = new WalStorage(walDir,
+                    WalStorage.FsyncPolicy.valueOf(System.getProperty("bench.wal.fsync", "INTERVAL")),
+                    WalStorage.DEFAULT_FSYNC_INTERVAL_MS, WalStorage.DEFAULT_SEGMENT_BYTES);
+            storage = wal;
+            writeBehind = null;
+            users = new UserManager(wal);
+            cache = new ConversationCache(storage::getConversationPage, users.getRegistry());
+        } else if ("memstore".equals(backend)) {
+            MemoryStore store = new MemoryStore();
+            storage = store;
+            mongo = null;
+            walDir = null;
+            writeBehind = null;
+            users = new UserManager(store);
+            cache = new ConversationCache(store::getConversationPage, users.getRegistry());
+        } else if ("memory".equals(backend)) {
+            storage = null;
+            mongo = null;
+            walDir = null;
+            writeBehind = null;
+            users = new UserManager();
+            cache = new ConversationCache(null, users.getRegistry());
+        } else {
+            throw new IllegalArgumentException("Unknown backend: " + backend);
+        }
+        notifications = new NotificationManager();
+        shards = shardCount > 0 ? new ShardedExecutor(shardCount) : null;
+        OfflineInbox inbox = new MemoryOfflineInbox();
+        messages = shards != null
+                ? new MessageManager(users, notifications, storage, writeBehind, cache, inbox, shards)
+                : new MessageManager(users, notifications, storage, writeBehind, cache, inbox, MessageManager.DEFAULT_STRIPES);
+        groups = new GroupManager(users, storage instanceof GroupStore ? (GroupStore) storage : new MemoryStore());
+        messages.setGroupManager(groups);
+        presence = new PresenceService(users, notifications, Long.MAX_VALUE / 2); // flushed by hand
+    }
+
+    @Override public void register(String username) { users.register(username, "pw"); }
+    @Override public void login(String username) { users.login(username, "pw"); }
+    @Override public void logout(String username) { users.logout(username); }
+    @Override public void observe(String username) { notifications.registerObserver(username, n -> { }); }
+
+    @Override public Object send(String sender, String receiver, String content) {
+        return messages.sendMessage(sender, receiver, content);
+    }
+    @Override public String createGroup(String name, String createdBy, List<String> members) {
+        return groups.createGroup(name, createdBy, members).getId();
+    }
+    @Override public Object sendGroup(String sender, String groupId, String content) {
+        return messages.sendGroupMessage(sender, groupId, content);
+    }
+    @Override public void drainOfflineQueue(String username) { messages.getOfflineInbox().drain(username); }
+    @Override public void deliverOffline(String username) { messages.deliverOfflineMessages(username); }
+    @Override public void flush() { messages.flushPendingWrites(); }
+
+    @Override public Object fullHistory(String username) {
+        return storage != null ? storage.getMessageHistory(username) : cache.historyOf(username);
+    }
+    @Override public Object latestPage(String username, String peer, int limit) {
+        return cache.getPage(username, peer, null, limit);
+    }
+
+    private static final Notification NEW_MESSAGE = new Notification(NotificationType.NEW_MESSAGE, "someone", null, "New message");
+
+    @Override public void notifyNewMessage(String username) { notifications.notifyUser(username, NEW_MESSAGE); }
+    @Override public void recordConversation(String a, String b) { presence.recordConversation(a, b); }
+    @Override public void presenceChanged(String username, boolean online) {
+        presence.statusChanged(username, online ? UserStatus.ONLINE : UserStatus.OFFLINE);
+    }
+    @Override public void flushPresence() { presence.flush(); }
+
+    @Override public Object sampleMessages(int count) {
+        List<Message> out = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            out.add(new Message(UUID.randomUUID().toString(), "alice", "bob", "message body " + i, LocalDateTime.now()));
+        }
+        return out;
+    }
+
+    // The buffered rendering /api/messages used before streaming: a map per row, pretty-printed
+    private static final Gson TREE_GSON =
+            new GsonBuilder().setPrettyPrinting().serializeNulls().create();
+
+    @SuppressWarnings("unchecked")
+    @Override public String messagesJson(Object list) {
+        List<Map<String, Object>> out = new ArrayList<>();
+        for (Message m : (List<Message>) list) out.add(RESTServer.messageToMap(m));
+        return TREE_GSON.toJson(out);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override public void streamMessagesJson(Object list, Writer out) {
+        try {
+            JsonWriter w = new JsonWriter(out);
+            w.beginArray();
+            for (Message m : (List<Message>) list) RESTServer.writeMessage(w, m);
+            w.endArray();
+            w.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // How RESTServer decoded request bodies before RestRequests: req.body(), then Gson's
+    // reflective Map into a LinkedTreeMap, fields cast out. req.body() copies the body twice
+    // (Spark's request wrapper caches it, Request.bodyAsBytes reads the cache) before the String.
+    private static final Gson MAP_GSON = new Gson();
+
+    @SuppressWarnings("rawtypes")
+    @Override public String[] decodeSendAsMap(byte[] body) {
+        try {
+            byte[] cached = spark.utils.IOUtils.toByteArray(new ByteArrayInputStream(body));
+            byte[] bytes = spark.utils.IOUtils.toByteArray(new ByteArrayInputStream(cached));
+            Map map = MAP_GSON.fromJson(new String(bytes, StandardCharsets.UTF_8), Map.class);
+            return new String[] { (String) map.get("sender"), (String) map.get("receiver"), (String) map.get("content") };
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override public String[] decodeSendTyped(byte[] body) {
+        RestRequests.Send s = RestRequests.read(new ByteArrayInputStream(body), RestRequests.MAX_BODY_BYTES, RestRequests.SEND);
+        return new String[] { s.sender, s.receiver, s.content };
+    }
+
+    @Override public void close() {
+        presence.shutdown();
+        if (shards != null) shards.close();
+        if (mongo != null) {
+            writeBehind.close();
+            mongo.dropDatabase();
+            mongo.close();
+        } else if (walDir != null) {
+            storage.close();
+            try (Stream<Path> files = Files.walk(walDir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static spark.Spark.*;
+
+/**
+ * Send throughput and wire size of the BinaryProtocol against POST /api/message. The same
+ * `messages` sends go out over `connections` keep-alive connections (senders s0.., receivers
+ * r0.. who stay offline):
+ * - REST: one request at a time per connection over a plain socket, so every byte of the
+ *   HTTP exchange is counted (the bearer token header included).
+ * - binary: BinaryClient, one request at a time per connection (same concurrency as REST).
+ * - binary pipelined: BinaryClient with up to `window` requests in flight per connection.
+ * Bytes per message are both directions on the wire; the binary figures include the status
+ * events a logged-in sender is pushed. Storage defaults to memory (-Dwhatsapp.storage=...).
+ *
+ *   mvn -Pbench compile exec:java -Dbench=BinaryProtocolBenchmark -Dexec.args="50000 8 64"
+ *   (messages, connections, window)
+ */
+public class BinaryProtocolBenchmark {
+    private static final String CONTENT = "benchmark message with a typical short text body";
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int window = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        if (System.getProperty("whatsapp.storage") == null) System.setProperty("whatsapp.storage", "memory");
+        int restPort = 4597;
+
+        MessagingServer server = MessagingServer.getInstance();
+        for (int i = 0; i < connections; i++) {
+            server.registerUser("s" + i, "pw");
+            server.registerUser("r" + i, "pw");
+        }
+        RESTServer.start(server, restPort);
+        awaitInitialization();
+        String[] tokens = new String[connections];
+        for (int i = 0; i < connections; i++) tokens[i] = RESTServer.getSessions().login("s" + i, "pw").getToken();
+        BinaryServer binary = new BinaryServer(server, RESTServer.getSessions(), 0);
+        List<BinaryClient> clients = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            BinaryClient c = new BinaryClient("localhost", binary.getPort());
+            c.login("s" + i, "pw").join();
+            clients.add(c);
+        }
+
+        System.out.printf("storage=%s messages=%d connections=%d window=%d%n",
+                server.getStorageName(), messages, connections, window);
+        // warm-up
+        rest(restPort, tokens, messages / 5, connections);
+        binary(clients, messages / 5, 1);
+        binary(clients, messages / 5, window);
+        report("REST", messages, rest(restPort, tokens, messages, connections));
+        report("binary", messages, binary(clients, messages, 1));
+        report("binary pipelined", messages, binary(clients, messages, window));
+
+        for (BinaryClient c : clients) c.close();
+        binary.close();
+        stop();
+        System.exit(0);
+    }
+
+    private static void report(String label, int messages, long[] nanosAndBytes) {
+        System.out.printf("%-17s %,10.0f msgs/s  %6.1f bytes/msg%n", label,
+                messages / (nanosAndBytes[0] / 1e9), nanosAndBytes[1] / (double) messages);
+    }
+
+    // {elapsed nanos, bytes both ways}
+    private static long[] rest(int port, String[] tokens, int messages, int connections) throws Exception {
+        AtomicLong bytes = new AtomicLong();
+        AtomicInteger failures = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(connections);
+        List<Future<?>> done = new ArrayList<>();
+        long t0 = System.nanoTime();
+        for (int c = 0; c < connections; c++) {
+            int conn = c;
+            done.add(pool.submit(() -> {
+                try (Socket socket = new Socket("localhost", port)) {
+                    socket.setTcpNoDelay(true);
+                    OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                    InputStream in = new BufferedInputStream(socket.getInputStream());
+                    for (int i = conn; i < messages; i += connections) {
+                        byte[] body = ("{\"receiver\":\"r" + conn + "\",\"content\":\"" + CONTENT + "\"}")
+                                .getBytes(StandardCharsets.UTF_8);
+                        byte[] head = ("POST /api/message HTTP/1.1\r\nHost: localhost:" + port
+                                + "\r\nAuthorization: Bearer " + tokens[conn]
+                                + "\r\nContent-Type: application/json\r\nContent-Length: " + body.length + "\r\n\r\n")
+                                .getBytes(StandardCharsets.US_ASCII);
+                        out.write(head);
+                        out.write(body);
+                        out.flush();
+                        long[] response = readResponse(in);
+                        if (response[0] != 200) failures.incrementAndGet();
+                        bytes.addAndGet(head.length + body.length + response[1]);
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> f : done) f.get();
+        long elapsed = System.nanoTime() - t0;
+        pool.shutdown();
+        if (failures.get() > 0) System.out.println("  failed requests: " + failures.get());
+        return new long[] { elapsed, bytes.get() };
+    }
+
+    // {status, bytes read}; handles Content-Length and chunked bodies
+    private static long[] readResponse(InputStream in) throws IOException {
+        long read = 0;
+        int status = 0;
+        long contentLength = -1;
+        boolean chunked = false;
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            read += line.length() + 2;
+            String lower = line.toLowerCase(Locale.ROOT);
+            if (status == 0) status = Integer.parseInt(line.substring(9, 12));
+            else if (lower.startsWith("content-length:")) contentLength = Long.parseLong(line.substring(15).trim());
+            else if (lower.startsWith("transfer-encoding:") && lower.contains("chunked")) chunked = true;
+        }
+        read += 2;
+        if (!chunked) return new long[] { status, read + skip(in, contentLength) };
+        while (true) {
+            String size = readLine(in);
+            read += size.length() + 2;
+            long n = Long.parseLong(size.trim(), 16);
+            read += skip(in, n + 2);
+            if (n == 0) return new long[] { status, read };
+        }
+    }
+
+    private static long skip(InputStream in, long n) throws IOException {
+        for (long left = n; left > 0; left--) {
+            if (in.read() < 0) throw new EOFException();
+        }
+        return n;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) throw new EOFException();
+            if (b != '\r') sb.append((char) b);
+        }
+        return sb.toString();
+    }
+
+    private static long[] binary(List<BinaryClient> clients, int messages, int window) throws Exception {
+        long before = 0;
+        for (BinaryClient c : clients) before += c.getBytesSent() + c.getBytesReceived();
+        AtomicInteger failures = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(clients.size());
+        List<Future<?>> done = new ArrayList<>();
+        long t0 = System.nanoTime();
+        for (int c = 0; c < clients.size(); c++) {
+            int conn = c;
+            BinaryClient client = clients.get(c);
+            done.add(pool.submit(() -> {
+                Semaphore inFlight = new Semaphore(window);
+                int count = 0;
+                for (int i = conn; i < messages; i += clients.size()) {
+                    inFlight.acquire();
+                    client.send("r" + conn, CONTENT).whenComplete((m, err) -> {
+                        if (err != null) failures.incrementAndGet();
+                        inFlight.release();
+                    });
+                    count++;
+                }
+                inFlight.acquire(window); // all replies in
+                return count;
+            }));
+        }
+        for (Future<?> f : done) f.get();
+        long elapsed = System.nanoTime() - t0;
+        pool.shutdown();
+        Thread.sleep(200); // trailing status events
+        long after = 0;
+        for (BinaryClient c : clients) after += c.getBytesSent() + c.getBytesReceived();
+        if (failures.get() > 0) System.out.println("  failed requests: " + failures.get());
+        return new long[] { elapsed, after - before };
+    }
+}
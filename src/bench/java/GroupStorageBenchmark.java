@@ -0,0 +1,96 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Storage cost and latency of reaching every member of a 1,000-member group, per logical send:
+ * one sendGroupMessage (message stored once plus a receipt per member) against one 1:1
+ * sendMessage per member. Half of the members are online. Bytes are the growth of the WAL
+ * directory (wal) and of the retained heap (memstore).
+ *
+ * Run: mvn -Pbench compile exec:java -Dbench=GroupStorageBenchmark [-Dexec.args="200 1000"]
+ */
+public class GroupStorageBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int sends = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int members = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        System.out.println("members=" + members + " sends/run=" + sends);
+        System.out.printf("%-9s %-10s %14s %14s%n", "backend", "mode", "bytes/send", "us/send");
+        for (String backend : new String[]{"memstore", "wal"}) {
+            for (boolean group : new boolean[]{true, false}) {
+                run(backend, group, members, Math.max(1, sends / 10)); // warm-up
+                long[] r = run(backend, group, members, sends);
+                System.out.printf("%-9s %-10s %,14d %,14.1f%n", backend, group ? "group" : "per-member",
+                        r[0] / sends, r[1] / 1e3 / sends);
+            }
+        }
+    }
+
+    // {bytes, nanos} for `sends` logical sends
+    private static long[] run(String backend, boolean group, int members, int sends) throws IOException {
+        Path dir = "wal".equals(backend) ? Files.createTempDirectory("whatsapp-group-bench") : null;
+        MessageStore store = dir != null
+                ? new WalStorage(dir, WalStorage.FsyncPolicy.INTERVAL, WalStorage.DEFAULT_FSYNC_INTERVAL_MS, WalStorage.DEFAULT_SEGMENT_BYTES)
+                : new MemoryStore();
+        try {
+            UserManager users = new UserManager((UserStore) store);
+            NotificationManager notifications = new NotificationManager();
+            MessageManager messages = new MessageManager(users, notifications, store);
+            GroupManager groups = new GroupManager(users, (GroupStore) store);
+            messages.setGroupManager(groups);
+            List<String> names = new ArrayList<>(members);
+            for (int i = 0; i < members; i++) {
+                String name = "member" + i;
+                users.register(name, "pw");
+                names.add(name);
+                if (i % 2 == 0) {
+                    users.login(name, "pw");
+                    notifications.registerObserver(name, n -> { });
+                }
+            }
+            String groupId = groups.createGroup("bench", names.get(0), names.subList(1, members)).getId();
+
+            long before = dir != null ? sizeOf(dir) : usedHeap();
+            long t0 = System.nanoTime();
+            for (int s = 0; s < sends; s++) {
+                if (group) {
+                    messages.sendGroupMessage("member0", groupId, "hello everyone");
+                } else {
+                    for (int i = 1; i < members; i++) messages.sendMessage("member0", names.get(i), "hello everyone");
+                }
+            }
+            long elapsed = System.nanoTime() - t0;
+            long after = dir != null ? sizeOf(dir) : usedHeap();
+            return new long[]{after - before, elapsed};
+        } finally {
+            store.close();
+            if (dir != null) delete(dir);
+        }
+    }
+
+    private static long sizeOf(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+        }
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static void delete(Path dir) {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
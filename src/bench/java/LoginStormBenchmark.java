@@ -0,0 +1,65 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reconnect storm: N users (each with K contacts on a ring) log in at once from a pool of
+ * threads. Measures time until steady state, i.e. until every user's observer has seen all of
+ * its contacts online, and how many presence notifications that took.
+ *
+ * Run: mvn -Pbench compile exec:java -Dbench=LoginStormBenchmark [-Dexec.args="50000 20"]
+ */
+public class LoginStormBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+        int contacts = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int threads = Runtime.getRuntime().availableProcessors() * 2;
+
+        UserManager userManager = new UserManager();
+        NotificationManager notifications = new NotificationManager();
+        PresenceService presence = new PresenceService(userManager, notifications);
+        for (int i = 0; i < users; i++) userManager.register("u" + i, "pw");
+        for (int i = 0; i < users; i++) {
+            for (int k = 1; k <= contacts / 2; k++) presence.recordConversation("u" + i, "u" + ((i + k) % users));
+        }
+
+        AtomicInteger settled = new AtomicInteger();
+        LongAdder delivered = new LongAdder();
+        CountDownLatch steady = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+        long t0 = System.nanoTime();
+        for (int i = 0; i < users; i++) {
+            String name = "u" + i;
+            pool.execute(() -> {
+                userManager.login(name, "pw");
+                Set<String> seenOnline = new HashSet<>(); // only touched by this observer's drain
+                notifications.registerObserver(name, n -> {
+                    if (n.getType() != NotificationType.PRESENCE_UPDATE) return;
+                    delivered.increment();
+                    boolean wasSettled = seenOnline.size() >= contacts;
+                    for (Map.Entry<String, UserStatus> e : n.getPresence().entrySet()) {
+                        if (e.getValue() == UserStatus.ONLINE) seenOnline.add(e.getKey());
+                    }
+                    if (!wasSettled && seenOnline.size() >= contacts && settled.incrementAndGet() == users) steady.countDown();
+                });
+                presence.statusChanged(name, UserStatus.ONLINE);
+            });
+        }
+        long loginsDone;
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.MINUTES);
+        loginsDone = System.nanoTime();
+        boolean ok = steady.await(2, TimeUnit.MINUTES);
+        long t1 = System.nanoTime();
+
+        System.out.printf("users=%,d contacts=%d threads=%d%n", users, contacts, threads);
+        System.out.printf("all logins returned after %,.0f ms%n", (loginsDone - t0) / 1e6);
+        System.out.printf("steady state after      %,.0f ms%s%n", (t1 - t0) / 1e6, ok ? "" : " (TIMED OUT, settled=" + settled.get() + ")");
+        System.out.printf("presence notifications  %,d (old broadcast would send ~%,d)%n",
+                delivered.sum(), (long) users * (users - 1) / 2);
+        presence.shutdown();
+    }
+}
@@ -0,0 +1,62 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Retained heap of N messages held as Message objects (the old cache tail: ArrayList of
+ * Message with UUID strings and LocalDateTimes) versus MessageColumns with interned senders.
+ * Contents come from a small shared pool so the numbers show per-message structure, not text.
+ * exec:java runs in the Maven JVM, so give it room for the object side:
+ *
+ *   MAVEN_OPTS=-Xmx4g mvn -Pbench compile exec:java -Dbench=MessageFootprintBenchmark [-Dexec.args="10000000"]
+ */
+public class MessageFootprintBenchmark {
+    private static final String[] CONTENTS = {"hi", "on my way", "see you at 8", "ok", "lol"};
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        int users = 10_000;
+        String[] names = new String[users];
+        for (int i = 0; i < users; i++) names[i] = "user" + i;
+
+        long base = usedHeap();
+        List<Message> objects = new ArrayList<>(count);
+        fill(count, names, objects::add);
+        long objectBytes = usedHeap() - base;
+        System.out.printf("Message objects   %,d messages  %,.0f MB  %.1f bytes/message%n",
+                count, objectBytes / 1e6, (double) objectBytes / count);
+        objects = null;
+
+        base = usedHeap();
+        UserRegistry registry = new UserRegistry();
+        MessageColumns columns = new MessageColumns(count);
+        fill(count, names, m -> columns.add(m, registry));
+        long columnBytes = usedHeap() - base;
+        System.out.printf("MessageColumns    %,d messages  %,.0f MB  %.1f bytes/message%n",
+                columns.size(), columnBytes / 1e6, (double) columnBytes / count);
+        System.out.printf("reduction         %.1fx%n", (double) objectBytes / columnBytes);
+    }
+
+    private static void fill(int count, String[] names, java.util.function.Consumer<Message> sink) {
+        Random random = new Random(42); // UUID.randomUUID() would spend minutes in SecureRandom
+        LocalDateTime t = LocalDateTime.now().truncatedTo(ChronoUnit.MILLIS);
+        for (int i = 0; i < count; i++) {
+            String id = new UUID(random.nextLong(), random.nextLong()).toString();
+            String from = names[random.nextInt(names.length)];
+            String to = names[random.nextInt(names.length)];
+            Message m = new Message(id, from, to, CONTENTS[i % CONTENTS.length], t.plus(i, ChronoUnit.MILLIS));
+            sink.accept(m);
+        }
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,76 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static spark.Spark.*;
+
+/**
+ * Load test for RESTServer's thread modes. Adds a /bench/slow route that blocks for a fixed
+ * time (standing in for a slow MongoDB call), fires `requests` requests with up to
+ * `concurrency` in flight, and reports p50/p99 latency plus the peak number of requests the
+ * server was handling at once. Spark is a static singleton, so run once per mode:
+ *
+ *   mvn -Pbench compile exec:java -Dbench=RestLoadBenchmark -Dexec.args="PLATFORM 1000 20000 50"
+ *   mvn -Pbench compile exec:java -Dbench=RestLoadBenchmark -Dexec.args="VIRTUAL 1000 20000 50"   (Java 21)
+ */
+public class RestLoadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        RESTServer.ThreadMode mode = RESTServer.ThreadMode.valueOf(args.length > 0 ? args[0] : "PLATFORM");
+        int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int requests = args.length > 2 ? Integer.parseInt(args[2]) : 20_000;
+        long dbLatencyMs = args.length > 3 ? Long.parseLong(args[3]) : 50;
+        int port = 4599;
+
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger peakInFlight = new AtomicInteger();
+        RESTServer.start(MessagingServer.getInstance(), port, mode, RESTServer.DEFAULT_MAX_THREADS);
+        get("/bench/slow", (req, res) -> {
+            int now = inFlight.incrementAndGet();
+            peakInFlight.accumulateAndGet(now, Math::max);
+            try {
+                Thread.sleep(dbLatencyMs);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+            return "{\"ok\":true}";
+        });
+        awaitInitialization();
+
+        HttpClient client = HttpClient.newBuilder().executor(Executors.newFixedThreadPool(8)).build();
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/bench/slow")).build();
+        Semaphore window = new Semaphore(concurrency);
+        long[] latencies = new long[requests];
+        AtomicInteger failures = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(requests);
+
+        long t0 = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            window.acquire();
+            int slot = i;
+            long start = System.nanoTime();
+            client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((resp, err) -> {
+                latencies[slot] = System.nanoTime() - start;
+                if (err != null || resp.statusCode() != 200) failures.incrementAndGet();
+                window.release();
+                done.countDown();
+            });
+        }
+        done.await();
+        long elapsed = System.nanoTime() - t0;
+
+        Arrays.sort(latencies);
+        System.out.printf("mode=%s concurrency=%d requests=%d dbLatency=%dms%n", mode, concurrency, requests, dbLatencyMs);
+        System.out.printf("throughput   %,.0f req/s%n", requests / (elapsed / 1e9));
+        System.out.printf("p50 latency  %,.1f ms%n", latencies[requests / 2] / 1e6);
+        System.out.printf("p99 latency  %,.1f ms%n", latencies[(int) (requests * 0.99)] / 1e6);
+        System.out.printf("peak in-flight on server  %d%n", peakInFlight.get());
+        System.out.printf("failures     %d%n", failures.get());
+        stop();
+        System.exit(0);
+    }
+}
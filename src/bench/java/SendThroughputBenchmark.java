@@ -0,0 +1,63 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Multi-threaded send throughput for MessageManager.
+ * Each worker thread sends between its own pair of users, so the only shared state is the
+ * manager itself. Compares a single stripe (equivalent to the old global monitor) against the
+ * default striped configuration at 1..N threads.
+ *
+ * Run: mvn -Pbench compile exec:java -Dbench=SendThroughputBenchmark [-Dexec.args="200000"]
+ */
+public class SendThroughputBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int messagesPerRun = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> threadCounts = new ArrayList<>();
+        for (int t = 1; t <= cores; t <<= 1) threadCounts.add(t);
+        if (threadCounts.get(threadCounts.size() - 1) != cores) threadCounts.add(cores);
+
+        System.out.println("cores=" + cores + " messages/run=" + messagesPerRun);
+        System.out.printf("%-10s %8s %14s%n", "stripes", "threads", "msgs/sec");
+        for (int stripes : new int[]{1, MessageManager.DEFAULT_STRIPES}) {
+            for (int threads : threadCounts) {
+                run(stripes, threads, messagesPerRun / 4); // warm-up
+                double rate = run(stripes, threads, messagesPerRun);
+                System.out.printf("%-10d %8d %,14.0f%n", stripes, threads, rate);
+            }
+        }
+    }
+
+    private static double run(int stripes, int threads, int totalMessages) throws Exception {
+        UserManager users = new UserManager();
+        NotificationManager notifications = new NotificationManager();
+        MessageManager messages = new MessageManager(users, notifications, null, stripes);
+        for (int t = 0; t < threads; t++) {
+            users.register("s" + t, "pw");
+            users.register("r" + t, "pw");
+            users.login("r" + t, "pw");
+            notifications.registerObserver("r" + t, n -> { });
+            notifications.registerObserver("s" + t, n -> { });
+        }
+
+        int perThread = totalMessages / threads;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String sender = "s" + t, receiver = "r" + t;
+            futures.add(pool.submit(() -> {
+                start.await();
+                for (int i = 0; i < perThread; i++) messages.sendMessage(sender, receiver, "hello");
+                return null;
+            }));
+        }
+        long t0 = System.nanoTime();
+        start.countDown();
+        for (Future<?> f : futures) f.get();
+        long elapsed = System.nanoTime() - t0;
+        pool.shutdown();
+        return perThread * (double) threads / (elapsed / 1e9);
+    }
+}
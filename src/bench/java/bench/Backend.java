@@ -0,0 +1,54 @@
+package bench;
+
+/**
+ * What the JMH suites need from the messaging core. The core lives in the default package,
+ * which named packages (and JMH requires one) cannot import, so the implementation,
+ * BenchBackend, sits in the default package and is loaded by name.
+ */
+public interface Backend {
+
+    // kind: "memory" (cache only), "memstore" (MemoryStore), "wal" (local write-ahead log) or
+    // "mongo" (MongoDB at -Dbench.mongo.uri)
+    static Backend create(String kind) {
+        return create(kind, 0);
+    }
+
+    // shards > 0: MessageManager in partitioned mode (ShardedExecutor) instead of striped locks
+    static Backend create(String kind, int shards) {
+        try {
+            return (Backend) Class.forName("BenchBackend").getConstructor(String.class, int.class).newInstance(kind, shards);
+        } catch (java.lang.reflect.InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause().getMessage(), e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("BenchBackend not on the classpath", e);
+        }
+    }
+
+    void register(String username);
+    void login(String username);
+    void logout(String username);
+    void observe(String username); // registers a no-op observer
+
+    Object send(String sender, String receiver, String content);
+    String createGroup(String name, String createdBy, java.util.List<String> members); // returns the id
+    Object sendGroup(String sender, String groupId, String content);
+    void drainOfflineQueue(String username);
+    void deliverOffline(String username);
+    void flush(); // write out anything queued for persistence
+
+    Object fullHistory(String username);
+    Object latestPage(String username, String peer, int limit);
+
+    void notifyNewMessage(String username);
+    void recordConversation(String a, String b);
+    void presenceChanged(String username, boolean online);
+    void flushPresence();
+
+    Object sampleMessages(int count);
+    String messagesJson(Object messages); // sampleMessages(...) as maps rendered by Gson into one String
+    void streamMessagesJson(Object messages, java.io.Writer out); // RESTServer's streamed rendering
+    String[] decodeSendAsMap(byte[] body); // POST /api/message body the old way: body String, Gson into a Map
+    String[] decodeSendTyped(byte[] body); // RestRequests.SEND straight off the stream
+
+    void close();
+}
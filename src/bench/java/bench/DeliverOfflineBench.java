@@ -0,0 +1,49 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of deliverOfflineMessages (the login path) with N messages queued for the user.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DeliverOfflineBench {
+    @Param({"memory", "memstore", "wal", "mongo"})
+    public String backend;
+
+    @Param({"100", "1000", "10000"})
+    public int queued;
+
+    Backend core;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        core = Backend.create(backend);
+        core.register("sender");
+        core.register("receiver");
+    }
+
+    @Setup(Level.Iteration)
+    public void fillQueue() {
+        core.logout("receiver");
+        for (int i = 0; i < queued; i++) core.send("sender", "receiver", "queued " + i);
+        core.flush();
+        core.login("receiver");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        core.close();
+    }
+
+    @Benchmark
+    public void deliver() {
+        core.deliverOffline("receiver");
+    }
+}
@@ -0,0 +1,51 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishing cost of notifyUser for a user with N registered observers, and of one presence
+ * window in which N contacts of an online user change status.
+ * Persistence plays no part here, so the in-memory backend is used throughout.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class FanOutBench {
+    @Param({"1", "16", "256"})
+    public int observers;
+
+    Backend core;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        core = Backend.create("memory");
+        core.register("target");
+        core.login("target");
+        for (int i = 0; i < observers; i++) {
+            core.observe("target");
+            core.register("contact" + i);
+            core.recordConversation("target", "contact" + i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        core.close();
+    }
+
+    @Benchmark
+    public void notifyUser() {
+        core.notifyNewMessage("target");
+    }
+
+    @Benchmark
+    public void presenceWindow() {
+        for (int i = 0; i < observers; i++) core.presenceChanged("contact" + i, true);
+        core.flushPresence();
+    }
+}
@@ -0,0 +1,70 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sending one message to a 1,000-member group: sendGroupMessage (stored once, one receipt per
+ * member, one batched notification) against the old way of reaching everyone, one 1:1
+ * sendMessage per member. `online` is the share of members logged in with an observer;
+ * the rest take the offline path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class GroupSendBench {
+    @Param({"memstore", "wal", "mongo"})
+    public String backend;
+
+    @Param({"1000"})
+    public int members;
+
+    @Param({"0", "50", "100"})
+    public int onlinePercent;
+
+    Backend core;
+    String groupId;
+    List<String> names;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        core = Backend.create(backend);
+        names = new ArrayList<>(members);
+        for (int i = 0; i < members; i++) {
+            String name = "member" + i;
+            core.register(name);
+            names.add(name);
+            if (i == 0 || i * 100 < members * onlinePercent) {
+                core.login(name);
+                core.observe(name);
+            }
+        }
+        groupId = core.createGroup("bench", names.get(0), names.subList(1, members));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        core.close();
+    }
+
+    @TearDown(Level.Iteration)
+    public void flush() {
+        core.flush();
+    }
+
+    @Benchmark
+    public Object groupSend() {
+        return core.sendGroup("member0", groupId, "hello everyone");
+    }
+
+    @Benchmark
+    public void perMemberSend() {
+        for (int i = 1; i < members; i++) core.send("member0", names.get(i), "hello everyone");
+    }
+}
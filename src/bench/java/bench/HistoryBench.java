@@ -0,0 +1,55 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * History reads for a user whose lifetime history has `size` messages (spread over 10 peers):
+ * the full per-user history used by the inbox view, and one 50-message conversation page.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class HistoryBench {
+    private static final int PEERS = 10;
+
+    @Param({"memory", "memstore", "wal", "mongo"})
+    public String backend;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int size;
+
+    Backend core;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        core = Backend.create(backend);
+        core.register("me");
+        for (int p = 0; p < PEERS; p++) core.register("peer" + p);
+        for (int i = 0; i < size; i++) {
+            String peer = "peer" + (i % PEERS);
+            if ((i & 1) == 0) core.send("me", peer, "message " + i);
+            else core.send(peer, "me", "message " + i);
+        }
+        core.flush();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        core.close();
+    }
+
+    @Benchmark
+    public Object fullHistory() {
+        return core.fullHistory("me");
+    }
+
+    @Benchmark
+    public Object latestPage() {
+        return core.latestPage("me", "peer0", 50);
+    }
+}
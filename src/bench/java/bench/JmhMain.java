@@ -0,0 +1,61 @@
+package bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the JMH suites single-threaded, then SendMessageBench and ShardingBench again at 4 and
+ * 16 threads.
+ * The mongo backend needs a reachable MongoDB (-Dbench.mongo.uri); pass -Dbench.backend=memory
+ * (or memory,memstore,wal) to run only the local backends. -Dbench.prof=gc adds JMH's
+ * allocation profiler (bytes allocated per operation).
+ *
+ * Run: mvn -Pbench compile exec:java -Dbench=bench.JmhMain [-Dexec.args="HistoryBench"]
+ */
+public class JmhMain {
+    public static void main(String[] args) throws Exception {
+        exposeClassPath();
+        String filter = args.length > 0 ? args[0] : "bench\\..*Bench";
+        run(filter, 1);
+        if (Pattern.compile(filter).matcher("bench.SendMessageBench").find()) {
+            run("bench.SendMessageBench", 4);
+            run("bench.SendMessageBench", 16);
+        }
+        if (Pattern.compile(filter).matcher("bench.ShardingBench").find()) {
+            run("bench.ShardingBench", 4);
+            run("bench.ShardingBench", 16);
+        }
+    }
+
+    private static void run(String include, int threads) throws Exception {
+        OptionsBuilder opts = new OptionsBuilder();
+        opts.include(include).threads(threads);
+        String uri = System.getProperty("bench.mongo.uri");
+        if (uri != null) opts.jvmArgsAppend("-Dbench.mongo.uri=" + uri);
+        String fsync = System.getProperty("bench.wal.fsync");
+        if (fsync != null) opts.jvmArgsAppend("-Dbench.wal.fsync=" + fsync);
+        String backend = System.getProperty("bench.backend");
+        if (backend != null) opts.param("backend", backend.split(","));
+        if ("gc".equals(System.getProperty("bench.prof"))) opts.addProfiler(GCProfiler.class);
+        new Runner(opts.build()).run();
+    }
+
+    // Under exec:java the benchmarks are loaded by the plugin's class loader, not from
+    // java.class.path, and JMH's forked JVMs inherit java.class.path. Hand them the real one.
+    private static void exposeClassPath() {
+        ClassLoader cl = Thread.currentThread().getContextClassLoader();
+        if (!(cl instanceof URLClassLoader)) return;
+        StringBuilder cp = new StringBuilder();
+        for (URL url : ((URLClassLoader) cl).getURLs()) {
+            if (cp.length() > 0) cp.append(File.pathSeparator);
+            cp.append(new File(url.getPath()).getPath());
+        }
+        System.setProperty("java.class.path", cp.toString());
+    }
+}
@@ -0,0 +1,59 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON rendering of a message list (/api/messages/:username) at various sizes: the old buffered
+ * path (a map per row, Gson into one String) against RESTServer's streamed JsonWriter path,
+ * which here writes into a discarding writer standing in for the servlet stream.
+ * Run with -prof gc to compare allocation per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class JsonBench {
+    @Param({"100", "1000", "10000"})
+    public int size;
+
+    Backend core;
+    Object messages;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        core = Backend.create("memory");
+        messages = core.sampleMessages(size);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        core.close();
+    }
+
+    @Benchmark
+    public String messagesJson() {
+        return core.messagesJson(messages);
+    }
+
+    @Benchmark
+    public long streamed() {
+        CountingWriter out = new CountingWriter();
+        core.streamMessagesJson(messages, out);
+        return out.chars;
+    }
+
+    static final class CountingWriter extends Writer {
+        long chars;
+
+        @Override public void write(char[] buf, int off, int len) { chars += len; }
+        @Override public void write(String str, int off, int len) { chars += len; }
+        @Override public void write(int c) { chars++; }
+        @Override public void flush() { }
+        @Override public void close() { }
+    }
+}
@@ -0,0 +1,49 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding one POST /api/message body: the old way (body String, Gson into a LinkedTreeMap,
+ * fields cast out) against RestRequests' typed adapter reading the byte stream. Run with
+ * -Dbench.prof=gc for bytes allocated per request (gc.alloc.rate.norm).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class RequestDecodeBench {
+    @Param({"32", "1024"})
+    public int contentChars;
+
+    Backend core;
+    byte[] body;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        core = Backend.create("memory");
+        StringBuilder content = new StringBuilder();
+        while (content.length() < contentChars) content.append("hello world ");
+        content.setLength(contentChars);
+        body = ("{\"sender\":\"alice\",\"receiver\":\"bob\",\"content\":\"" + content + "\"}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        core.close();
+    }
+
+    @Benchmark
+    public String[] asMap() {
+        return core.decodeSendAsMap(body);
+    }
+
+    @Benchmark
+    public String[] typed() {
+        return core.decodeSendTyped(body);
+    }
+}
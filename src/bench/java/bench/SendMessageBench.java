@@ -0,0 +1,67 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * sendMessage throughput with the receiver online (delivered + notified) or offline (queued).
+ * Every benchmark thread sends between its own pair of users; JmhMain runs this at 1/4/16 threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class SendMessageBench {
+    @Param({"memory", "memstore", "wal", "mongo"})
+    public String backend;
+
+    @Param({"true", "false"})
+    public boolean online;
+
+    Backend core;
+    final AtomicInteger nextPair = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Pair {
+        String sender, receiver;
+
+        @Setup(Level.Trial)
+        public void setup(SendMessageBench bench) {
+            int i = bench.nextPair.getAndIncrement();
+            sender = "s" + i;
+            receiver = "r" + i;
+            bench.core.register(sender);
+            bench.core.register(receiver);
+            bench.core.observe(sender);
+            if (bench.online) {
+                bench.core.login(receiver);
+                bench.core.observe(receiver);
+            }
+        }
+
+        // offline queues would otherwise grow for the whole run
+        @TearDown(Level.Iteration)
+        public void drain(SendMessageBench bench) {
+            bench.core.drainOfflineQueue(receiver);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        core = Backend.create(backend);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        core.close();
+    }
+
+    @Benchmark
+    public Object send(Pair pair) {
+        return core.send(pair.sender, pair.receiver, "hello there");
+    }
+}
@@ -0,0 +1,58 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * sendMessage throughput with receivers partitioned onto N single-threaded shards, against the
+ * monitor-based design (shards = 0: striped ReentrantLocks, the default). Every thread sends to
+ * random receivers out of a pool of online users, so sends contend the way a busy server's do.
+ * JmhMain also runs this at 4 and 16 threads; shards only help with cores to spread over.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class ShardingBench {
+    static final int USERS = 1024;
+
+    @Param({"0", "1", "4", "16"})
+    public int shards;
+
+    @Param({"true", "false"})
+    public boolean online;
+
+    Backend core;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        core = Backend.create("memory", shards);
+        for (int i = 0; i < USERS; i++) {
+            String u = "u" + i;
+            core.register(u);
+            core.observe(u);
+            if (online) core.login(u);
+        }
+    }
+
+    // offline queues would otherwise grow for the whole run
+    @TearDown(Level.Iteration)
+    public void drain() {
+        if (!online) for (int i = 0; i < USERS; i++) core.drainOfflineQueue("u" + i);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        core.close();
+    }
+
+    @Benchmark
+    public Object send() {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        return core.send("u" + rnd.nextInt(USERS), "u" + rnd.nextInt(USERS), "hello there");
+    }
+}
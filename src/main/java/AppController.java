@@ -69,14 +69,10 @@ public class AppController {
 
     private void viewInbox() {
         if (activeUser == null) { view.println("No active user. Please login."); return; }
-        List<Message> messages = server.getMessageHistory(activeUser);
-        view.printMessages(messages);
-        // mark unread messages as read
-        List<Message> toMark = new ArrayList<>();
-        for (Message m : messages) {
-            if (m.getReceiver().equals(activeUser) && m.getStatus() != MessageStatus.READ) toMark.add(m);
-        }
-        if (!toMark.isEmpty()) server.markMessagesRead(activeUser, toMark);
+        Map<String, Long> unread = server.getUnreadCounts(activeUser);
+        view.printMessages(server.getMessageHistory(activeUser));
+        // everything shown is read now: one watermark per conversation with unread messages
+        if (!unread.isEmpty()) server.markConversationsRead(activeUser, unread.keySet());
     }
 
     private void logout() {
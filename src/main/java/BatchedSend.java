@@ -0,0 +1,28 @@
+/**
+ * One send of a batch (MessagingServer.sendBatch) and its outcome: after the batch ran, either
+ * getMessage() is the stored message or getError() says why this item was not sent. Items fail
+ * one by one; the rest of the batch goes on.
+ */
+public class BatchedSend {
+    private final String sender;
+    private final String receiver;
+    private final String content;
+    private volatile Message message;
+    private volatile String error;
+
+    public BatchedSend(String sender, String receiver, String content) {
+        this.sender = sender;
+        this.receiver = receiver;
+        this.content = content;
+    }
+
+    public String getSender() { return sender; }
+    public String getReceiver() { return receiver; }
+    public String getContent() { return content; }
+    public Message getMessage() { return message; }
+    public String getError() { return error; }
+    public boolean isSent() { return message != null; }
+
+    void sent(Message m) { this.message = m; }
+    void fail(String error) { this.error = error; }
+}
@@ -0,0 +1,208 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Java client for BinaryServer. Calls return futures and may be pipelined from any number of
+ * threads: each request is written at once and its reply matched by requestId on the reader
+ * thread. ERROR replies fail the future with a RuntimeException carrying the server's message.
+ * Events pushed after login (new messages, status updates, read receipts, presence) go to
+ * the observer set with setObserver, on the reader thread.
+ *
+ *   try (BinaryClient c = new BinaryClient("localhost", 4600)) {
+ *       c.login("alice", "pw").join();
+ *       Message m = c.send("bob", "hi").join();
+ *   }
+ */
+public class BinaryClient implements AutoCloseable {
+    private static final int BUFFER_BYTES = 64 << 10;
+
+    private final SocketChannel channel;
+    private final BinaryProtocol.FrameWriter out = new BinaryProtocol.FrameWriter(BUFFER_BYTES); // guarded by itself
+    private final Map<Integer, Pending<?>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger ids = new AtomicInteger();
+    private final Thread reader;
+    private volatile NotificationObserver observer;
+    private volatile String username;
+    private volatile boolean closed;
+    private volatile long bytesSent;     // written under `out`
+    private volatile long bytesReceived; // reader thread only
+
+    public BinaryClient(String host, int port) {
+        try {
+            channel = SocketChannel.open(new InetSocketAddress(host, port));
+            channel.socket().setTcpNoDelay(true);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot connect to " + host + ":" + port + ": " + e.getMessage(), e);
+        }
+        reader = new Thread(this::readLoop, "binary-client-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public void setObserver(NotificationObserver observer) { this.observer = observer; }
+
+    public String getUsername() { return username; }
+
+    // Bytes on the wire so far, events included
+    public long getBytesSent() { return bytesSent; }
+    public long getBytesReceived() { return bytesReceived; }
+
+    public CompletableFuture<Void> login(String user, String password) {
+        return request(BinaryProtocol.LOGIN, w -> w.putString(user).putString(password), reply -> {
+            username = user;
+            return null;
+        });
+    }
+
+    // The stored message as the server assigned it (id, seq, timestamp, status)
+    public CompletableFuture<Message> send(String receiver, String content) {
+        String sender = username;
+        return request(BinaryProtocol.SEND, w -> w.putString(receiver).putString(content), reply -> {
+            String id = BinaryProtocol.getString(reply);
+            long seq = reply.getLong();
+            Message m = new Message(id, sender, receiver, content, MessageColumns.fromMillis(reply.getLong()));
+            m.setSeq(seq);
+            m.setStatus(BinaryProtocol.status(reply.get()));
+            return m;
+        });
+    }
+
+    // Everything received from `peer` is read; peer null for every conversation
+    public CompletableFuture<Void> ack(String peer) {
+        return request(BinaryProtocol.ACK, w -> w.putString(peer == null ? "" : peer), reply -> null);
+    }
+
+    // Same paging as /api/messages/:username/:peer; `before` is a previous page's cursor or null
+    public CompletableFuture<HistoryPage> history(String peer, String before, int limit) {
+        return request(BinaryProtocol.HISTORY, w -> w.putString(peer).putString(before == null ? "" : before).putInt(limit),
+                reply -> {
+                    String next = BinaryProtocol.getString(reply);
+                    int count = reply.getInt();
+                    List<Message> messages = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) messages.add(BinaryProtocol.getMessage(reply));
+                    return new HistoryPage(messages, next);
+                });
+    }
+
+    public CompletableFuture<Void> watchPresence(String target) {
+        return request(BinaryProtocol.PRESENCE, w -> w.putString(target), reply -> null);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException ignored) { }
+        try {
+            reader.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Pending<T> {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final Function<ByteBuffer, T> reply;
+
+        Pending(Function<ByteBuffer, T> reply) {
+            this.reply = reply;
+        }
+
+        void complete(ByteBuffer body) {
+            try {
+                future.complete(reply.apply(body));
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private <T> CompletableFuture<T> request(byte op, Function<BinaryProtocol.FrameWriter, BinaryProtocol.FrameWriter> body,
+                                             Function<ByteBuffer, T> reply) {
+        Pending<T> p = new Pending<>(reply);
+        if (closed) {
+            p.future.completeExceptionally(new RuntimeException("Connection closed"));
+            return p.future;
+        }
+        int id = ids.incrementAndGet();
+        if (id == 0) id = ids.incrementAndGet(); // 0 marks server pushes
+        pending.put(id, p);
+        try {
+            synchronized (out) {
+                try {
+                    body.apply(out.begin(op, id)).end();
+                } catch (RuntimeException e) {
+                    out.abort();
+                    throw e;
+                }
+                bytesSent += out.size();
+                while (out.size() > 0) out.drainTo(channel);
+            }
+        } catch (IOException | RuntimeException e) {
+            pending.remove(id);
+            p.future.completeExceptionally(e instanceof RuntimeException ? e : new RuntimeException(e.getMessage(), e));
+        }
+        return p.future;
+    }
+
+    private void readLoop() {
+        ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_BYTES);
+        try {
+            int n;
+            while ((n = channel.read(in)) >= 0) {
+                bytesReceived += n;
+                in.flip();
+                int needed = 0;
+                while (in.remaining() >= 4) {
+                    int length = BinaryProtocol.frameLength(in, in.position());
+                    if (in.remaining() < 4 + length) {
+                        needed = 4 + length;
+                        break;
+                    }
+                    int end = in.position() + 4 + length;
+                    int limit = in.limit();
+                    in.position(in.position() + 4).limit(end);
+                    dispatch(in);
+                    in.limit(limit).position(end);
+                }
+                in.compact();
+                if (needed > in.capacity()) {
+                    ByteBuffer bigger = ByteBuffer.allocateDirect(needed);
+                    in.flip();
+                    bigger.put(in);
+                    in = bigger;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            if (!closed) System.err.println("Binary connection lost: " + e.getMessage());
+        }
+        closed = true;
+        for (Integer id : new ArrayList<>(pending.keySet())) {
+            Pending<?> p = pending.remove(id);
+            if (p != null) p.future.completeExceptionally(new RuntimeException("Connection closed"));
+        }
+    }
+
+    private void dispatch(ByteBuffer frame) {
+        byte op = frame.get();
+        int id = frame.getInt();
+        if (op == BinaryProtocol.EVENT) {
+            NotificationObserver o = observer;
+            Notification n = BinaryProtocol.getEvent(frame);
+            if (o != null) o.update(n);
+            return;
+        }
+        Pending<?> p = pending.remove(id);
+        if (p == null) return;
+        if (op == BinaryProtocol.ERROR) p.future.completeExceptionally(new RuntimeException(BinaryProtocol.getString(frame)));
+        else p.complete(frame);
+    }
+}
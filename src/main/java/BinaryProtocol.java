@@ -0,0 +1,215 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Wire format shared by BinaryServer and BinaryClient: length-prefixed frames over TCP with a
+ * fixed field order per op, encoded and decoded by hand (no reflection, no JSON).
+ *
+ * Frame:   int length (bytes after this field) | byte op | int requestId | body
+ * String:  int length (-1 for null) | UTF-8 bytes
+ * Message: id, sender, receiver, content (strings) | long millis | long seq | byte status (-1 none)
+ *
+ * Requests (client to server), each answered with OK, ERROR or the reply named:
+ *   LOGIN     username, password        binds the connection to the user; events follow
+ *   SEND      receiver, content         -> SENT id | long seq | long millis | byte status
+ *   ACK       peer ("" for all)         marks what was received from peer read
+ *   HISTORY   peer, cursor ("" for the newest page), int limit
+ *                                       -> PAGE string nextCursor | int count | count messages
+ *   PRESENCE  target                    presence changes of target arrive as events
+ * Server pushes (requestId 0):
+ *   EVENT     byte type | username | note | int count, messages | int count, (username, byte status)
+ *             | long readUpTo (-1 none)
+ */
+public final class BinaryProtocol {
+    public static final int MAX_FRAME_BYTES = Integer.getInteger("whatsapp.binary.maxFrameBytes", 4 << 20);
+    public static final int HEADER_BYTES = 4 + 1 + 4;
+
+    // requests
+    public static final byte LOGIN = 1;
+    public static final byte SEND = 2;
+    public static final byte ACK = 3;
+    public static final byte HISTORY = 4;
+    public static final byte PRESENCE = 5;
+    // replies and pushes
+    public static final byte OK = 64;
+    public static final byte ERROR = 65;
+    public static final byte SENT = 66;
+    public static final byte PAGE = 67;
+    public static final byte EVENT = 80;
+
+    private static final MessageStatus[] STATUSES = MessageStatus.values();
+    private static final UserStatus[] USER_STATUSES = UserStatus.values();
+    private static final NotificationType[] TYPES = NotificationType.values();
+
+    private BinaryProtocol() { }
+
+    // Length of the frame starting at `at`, checked against MAX_FRAME_BYTES
+    public static int frameLength(ByteBuffer buf, int at) {
+        int length = buf.getInt(at);
+        if (length < HEADER_BYTES - 4 || length > MAX_FRAME_BYTES) throw new RuntimeException("Bad frame length " + length);
+        return length;
+    }
+
+    public static String getString(ByteBuffer buf) {
+        int n = buf.getInt();
+        if (n < 0) return null;
+        if (n > buf.remaining()) throw new RuntimeException("Malformed frame");
+        byte[] bytes = new byte[n];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public static Message getMessage(ByteBuffer buf) {
+        String id = getString(buf);
+        String sender = getString(buf);
+        String receiver = getString(buf);
+        String content = getString(buf);
+        Message m = new Message(id, sender, receiver, content, MessageColumns.fromMillis(buf.getLong()));
+        m.setSeq(buf.getLong());
+        m.setStatus(status(buf.get()));
+        return m;
+    }
+
+    public static MessageStatus status(byte b) {
+        return b < 0 ? null : STATUSES[b];
+    }
+
+    // EVENT body back into the Notification the server sent
+    public static Notification getEvent(ByteBuffer buf) {
+        NotificationType type = TYPES[buf.get()];
+        String username = getString(buf);
+        String note = getString(buf);
+        int count = buf.getInt();
+        List<Message> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) messages.add(getMessage(buf));
+        int changes = buf.getInt();
+        Map<String, UserStatus> presence = new LinkedHashMap<>();
+        for (int i = 0; i < changes; i++) presence.put(getString(buf), USER_STATUSES[buf.get()]);
+        long readUpTo = buf.getLong();
+        if (type == NotificationType.PRESENCE_UPDATE) return Notification.presence(presence);
+        if (type == NotificationType.READ_RECEIPT) return Notification.readReceipt(username, readUpTo);
+        if (count > 1) return Notification.batch(type, username, messages, note);
+        return new Notification(type, username, count == 0 ? null : messages.get(0), note);
+    }
+
+    /**
+     * Appends frames to a direct buffer that grows as needed; the buffer stays in write mode
+     * (position = end of the data). Not thread-safe: owners lock around begin..end and drain.
+     */
+    public static final class FrameWriter {
+        private ByteBuffer buf;
+        private int start = -1;
+
+        public FrameWriter(int initialBytes) {
+            this.buf = ByteBuffer.allocateDirect(initialBytes);
+        }
+
+        public int size() { return buf.position(); }
+
+        public FrameWriter begin(byte op, int requestId) {
+            ensure(HEADER_BYTES);
+            start = buf.position();
+            buf.putInt(0).put(op).putInt(requestId);
+            return this;
+        }
+
+        // Patch the length in; a frame over MAX_FRAME_BYTES is dropped and reported
+        public void end() {
+            int length = buf.position() - start - 4;
+            if (length > MAX_FRAME_BYTES) {
+                buf.position(start);
+                start = -1;
+                throw new RuntimeException("Frame too large (" + length + " bytes)");
+            }
+            buf.putInt(start, length);
+            start = -1;
+        }
+
+        // Drop a frame begun but not ended (encoding failed half way)
+        public void abort() {
+            if (start >= 0) buf.position(start);
+            start = -1;
+        }
+
+        public FrameWriter putByte(int b) {
+            ensure(1);
+            buf.put((byte) b);
+            return this;
+        }
+
+        public FrameWriter putInt(int v) {
+            ensure(4);
+            buf.putInt(v);
+            return this;
+        }
+
+        public FrameWriter putLong(long v) {
+            ensure(8);
+            buf.putLong(v);
+            return this;
+        }
+
+        public FrameWriter putString(String s) {
+            if (s == null) return putInt(-1);
+            int n = s.length();
+            ensure(4 + n);
+            int at = buf.position();
+            buf.putInt(n);
+            // ASCII goes straight into the buffer; anything else is encoded once and copied
+            for (int i = 0; i < n; i++) {
+                char c = s.charAt(i);
+                if (c >= 0x80) {
+                    buf.position(at);
+                    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                    ensure(4 + bytes.length);
+                    buf.putInt(bytes.length).put(bytes);
+                    return this;
+                }
+                buf.put((byte) c);
+            }
+            return this;
+        }
+
+        public FrameWriter putStatus(MessageStatus status) {
+            return putByte(status == null ? -1 : status.ordinal());
+        }
+
+        public FrameWriter putMessage(Message m) {
+            putString(m.getId()).putString(m.getSender()).putString(m.getReceiver()).putString(m.getContent());
+            return putLong(MessageColumns.toMillis(m.getTimestamp())).putLong(m.getSeq()).putStatus(m.getStatus());
+        }
+
+        public FrameWriter putEvent(Notification n) {
+            putByte(n.getType().ordinal()).putString(n.getUsername()).putString(n.getNote());
+            List<Message> messages = n.getMessages();
+            putInt(messages.size());
+            for (Message m : messages) putMessage(m);
+            Map<String, UserStatus> presence = n.getPresence() == null ? Collections.emptyMap() : n.getPresence();
+            putInt(presence.size());
+            for (Map.Entry<String, UserStatus> e : presence.entrySet()) putString(e.getKey()).putByte(e.getValue().ordinal());
+            return putLong(n.getReadUpTo() == null ? -1 : n.getReadUpTo());
+        }
+
+        // Write what the channel takes without blocking; returns the bytes still pending
+        public int drainTo(WritableByteChannel channel) throws IOException {
+            buf.flip();
+            try {
+                channel.write(buf);
+            } finally {
+                buf.compact();
+            }
+            return buf.position();
+        }
+
+        private void ensure(int bytes) {
+            if (buf.remaining() >= bytes) return;
+            ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(buf.capacity() * 2, buf.position() + bytes));
+            buf.flip();
+            bigger.put(buf);
+            buf = bigger;
+        }
+    }
+}
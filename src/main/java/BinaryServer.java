@@ -0,0 +1,400 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Raw TCP listener for the BinaryProtocol, next to the REST API, for high-volume service
+ * clients: no HTTP framing and no JSON, frames are decoded straight out of a direct buffer.
+ * - One selector thread accepts, reads and writes. It cuts complete frames out of each
+ *   connection's read buffer and decodes them into Requests.
+ * - Requests run on a worker pool (the store may block), one connection at a time in
+ *   arrival order, so a client can pipeline: send many requests, then match replies by
+ *   requestId. Reading from a connection pauses while it has MAX_QUEUED_REQUESTS waiting.
+ * - Replies and pushed events are appended to the connection's direct output buffer and
+ *   written right away from the calling thread; whatever the socket does not take is left
+ *   to the selector. A client more than MAX_OUTPUT_BYTES behind is disconnected.
+ * A login opens a SessionManager session for the connection (shared with the REST API), and
+ * closing the connection ends it: the user goes offline only if that was their last session.
+ */
+public class BinaryServer implements AutoCloseable {
+    public static final int DEFAULT_WORKERS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    public static final int MAX_OUTPUT_BYTES = Integer.getInteger("whatsapp.binary.maxOutputBytes", 16 << 20);
+    static final int MAX_QUEUED_REQUESTS = 1024;
+    private static final int MAX_PAGE_SIZE = 500;
+    private static final int BUFFER_BYTES = 64 << 10;
+
+    private final MessagingServer server;
+    private final SessionManager sessions;
+    private final ServerSocketChannel listener;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final Thread loop;
+    private final Queue<Connection> interestChanges = new ConcurrentLinkedQueue<>();
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private volatile boolean running = true;
+
+    public BinaryServer(MessagingServer server, SessionManager sessions, int port) {
+        this(server, sessions, port, DEFAULT_WORKERS);
+    }
+
+    public BinaryServer(MessagingServer server, SessionManager sessions, int port, int workerThreads) {
+        this.server = server;
+        this.sessions = sessions;
+        try {
+            selector = Selector.open();
+            listener = ServerSocketChannel.open();
+            listener.bind(new InetSocketAddress(port));
+            listener.configureBlocking(false);
+            listener.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot listen on port " + port + ": " + e.getMessage(), e);
+        }
+        AtomicInteger ids = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(workerThreads, r -> {
+            Thread t = new Thread(r, "binary-worker-" + ids.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        loop = new Thread(this::run, "binary-selector");
+        loop.setDaemon(true);
+        loop.start();
+    }
+
+    public int getPort() { return listener.socket().getLocalPort(); }
+
+    public int getConnectionCount() { return connections.size(); }
+
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            loop.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Connection c : new ArrayList<>(connections)) c.close();
+        workers.shutdown();
+        try {
+            listener.close();
+            selector.close();
+        } catch (IOException ignored) { }
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                selector.select();
+                Connection changed;
+                while ((changed = interestChanges.poll()) != null) changed.updateInterest();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection conn = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) conn.read();
+                        if (key.isValid() && key.isWritable()) conn.flush();
+                    } catch (IOException | RuntimeException e) {
+                        conn.close();
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (running) System.err.println("Binary listener: " + e.getMessage());
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = listener.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection conn = new Connection(channel);
+            conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+            connections.add(conn);
+        }
+    }
+
+    // One decoded request frame; fields per op as in BinaryProtocol
+    static final class Request {
+        final byte op;
+        final int id;
+        String name;   // LOGIN username, SEND receiver, ACK / HISTORY peer, PRESENCE target
+        String text;   // LOGIN password, SEND content, HISTORY cursor
+        int limit;     // HISTORY page size
+        String error;  // set when the body could not be decoded
+
+        Request(byte op, int id) {
+            this.op = op;
+            this.id = id;
+        }
+    }
+
+    static Request decode(ByteBuffer frame) {
+        Request r = new Request(frame.get(), frame.getInt());
+        try {
+            switch (r.op) {
+                case BinaryProtocol.LOGIN:
+                case BinaryProtocol.SEND:
+                    r.name = BinaryProtocol.getString(frame);
+                    r.text = BinaryProtocol.getString(frame);
+                    break;
+                case BinaryProtocol.ACK:
+                case BinaryProtocol.PRESENCE:
+                    r.name = BinaryProtocol.getString(frame);
+                    break;
+                case BinaryProtocol.HISTORY:
+                    r.name = BinaryProtocol.getString(frame);
+                    r.text = BinaryProtocol.getString(frame);
+                    r.limit = frame.getInt();
+                    break;
+                default:
+                    r.error = "Unknown op " + r.op;
+            }
+        } catch (RuntimeException e) { // buffer underflow or a bad string length
+            r.error = "Malformed request";
+        }
+        return r;
+    }
+
+    private final class Connection implements NotificationObserver {
+        final SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_BYTES);
+        final BinaryProtocol.FrameWriter out = new BinaryProtocol.FrameWriter(BUFFER_BYTES); // guarded by this
+        final Queue<Request> requests = new ConcurrentLinkedQueue<>();
+        final AtomicInteger queued = new AtomicInteger();
+        final AtomicBoolean draining = new AtomicBoolean();
+        final AtomicBoolean closed = new AtomicBoolean();
+        volatile String username;
+        volatile SessionManager.Session session;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // Selector thread: take what arrived and queue every complete frame
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            in.flip();
+            int needed = 0;
+            while (in.remaining() >= 4) {
+                int length = BinaryProtocol.frameLength(in, in.position());
+                if (in.remaining() < 4 + length) {
+                    needed = 4 + length;
+                    break;
+                }
+                int end = in.position() + 4 + length;
+                int limit = in.limit();
+                in.position(in.position() + 4).limit(end);
+                Request r = decode(in);
+                in.limit(limit).position(end);
+                submit(r);
+            }
+            in.compact();
+            if (needed > in.capacity()) {
+                ByteBuffer bigger = ByteBuffer.allocateDirect(needed);
+                in.flip();
+                bigger.put(in);
+                in = bigger;
+            }
+            if (queued.get() >= MAX_QUEUED_REQUESTS) updateInterest();
+        }
+
+        void submit(Request r) {
+            requests.add(r);
+            queued.incrementAndGet();
+            if (draining.compareAndSet(false, true)) workers.execute(this::drain);
+        }
+
+        // Worker: this connection's requests, one at a time in arrival order
+        void drain() {
+            Request r;
+            while ((r = requests.poll()) != null) {
+                handle(r);
+                if (queued.decrementAndGet() == MAX_QUEUED_REQUESTS - 1) interestChanged(); // reading may resume
+            }
+            draining.set(false);
+            if (!requests.isEmpty() && draining.compareAndSet(false, true)) workers.execute(this::drain);
+        }
+
+        void handle(Request r) {
+            if (closed.get()) return;
+            if (r.error != null) {
+                error(r.id, r.error);
+                return;
+            }
+            try {
+                if (r.op != BinaryProtocol.LOGIN && username == null) throw new RuntimeException("Not logged in");
+                switch (r.op) {
+                    case BinaryProtocol.LOGIN:
+                        if (username != null) throw new RuntimeException("Already logged in");
+                        session = sessions.connect(r.name, r.text, this);
+                        username = r.name;
+                        if (closed.get()) endSession(); // closed while logging in
+                        ok(r.id);
+                        break;
+                    case BinaryProtocol.SEND: {
+                        Message m = server.sendMessage(username, r.name, r.text);
+                        synchronized (this) {
+                            out.begin(BinaryProtocol.SENT, r.id).putString(m.getId()).putLong(m.getSeq())
+                                    .putLong(MessageColumns.toMillis(m.getTimestamp())).putStatus(m.getStatus()).end();
+                        }
+                        written();
+                        break;
+                    }
+                    case BinaryProtocol.ACK:
+                        server.markConversationsRead(username,
+                                r.name == null || r.name.isEmpty() ? null : Collections.singletonList(r.name));
+                        ok(r.id);
+                        break;
+                    case BinaryProtocol.HISTORY: {
+                        String before = r.text == null || r.text.isEmpty() ? null : r.text;
+                        HistoryPage page = server.getConversationPage(username, r.name, before, Math.min(MAX_PAGE_SIZE, r.limit));
+                        synchronized (this) {
+                            try {
+                                out.begin(BinaryProtocol.PAGE, r.id).putString(page.getNextCursor()).putInt(page.getMessages().size());
+                                for (Message m : page.getMessages()) out.putMessage(m);
+                                out.end();
+                            } catch (RuntimeException e) {
+                                out.abort();
+                                throw e;
+                            }
+                        }
+                        written();
+                        break;
+                    }
+                    case BinaryProtocol.PRESENCE:
+                        server.watchPresence(username, r.name);
+                        ok(r.id);
+                        break;
+                    default:
+                        throw new RuntimeException("Unknown op " + r.op);
+                }
+            } catch (RuntimeException e) {
+                error(r.id, String.valueOf(e.getMessage()));
+            }
+        }
+
+        void ok(int requestId) {
+            synchronized (this) {
+                out.begin(BinaryProtocol.OK, requestId).end();
+            }
+            written();
+        }
+
+        void error(int requestId, String message) {
+            synchronized (this) {
+                out.begin(BinaryProtocol.ERROR, requestId).putString(message).end();
+            }
+            written();
+        }
+
+        @Override
+        public void update(Notification notification) {
+            if (closed.get()) return;
+            synchronized (this) {
+                try {
+                    out.begin(BinaryProtocol.EVENT, 0).putEvent(notification).end();
+                } catch (RuntimeException e) {
+                    out.abort();
+                    System.err.println("Binary event dropped for " + username + ": " + e.getMessage());
+                    return;
+                }
+            }
+            written();
+        }
+
+        @Override
+        public void disconnected() {
+            close();
+        }
+
+        // Any thread, after appending to `out`: write now, leave the rest to the selector
+        void written() {
+            int pending;
+            try {
+                synchronized (this) {
+                    pending = out.drainTo(channel);
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (pending > MAX_OUTPUT_BYTES) {
+                System.err.println("Binary client " + username + " disconnected: slow consumer");
+                close();
+            } else if (pending > 0) {
+                interestChanged();
+            }
+        }
+
+        // Selector thread, socket writable
+        void flush() throws IOException {
+            synchronized (this) {
+                if (out.drainTo(channel) > 0) return;
+            }
+            updateInterest();
+        }
+
+        void interestChanged() {
+            interestChanges.add(this);
+            selector.wakeup();
+        }
+
+        // Selector thread only
+        void updateInterest() {
+            if (!key.isValid()) return;
+            int ops = queued.get() < MAX_QUEUED_REQUESTS ? SelectionKey.OP_READ : 0;
+            synchronized (this) {
+                if (out.size() > 0) ops |= SelectionKey.OP_WRITE;
+            }
+            try {
+                key.interestOps(ops);
+            } catch (CancelledKeyException e) {
+                // closed meanwhile
+            }
+        }
+
+        void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            connections.remove(this);
+            if (key != null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) { }
+            if (session != null) {
+                try {
+                    workers.execute(this::endSession);
+                } catch (RejectedExecutionException e) {
+                    endSession(); // shutting down
+                }
+            }
+        }
+
+        // May run twice (close racing a login); only the first ends the session
+        void endSession() {
+            SessionManager.Session s = session;
+            if (s != null) sessions.disconnect(s);
+        }
+    }
+}
@@ -0,0 +1,523 @@
+import com.google.gson.Gson;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cluster mode: several MessagingServer nodes behind a load balancer, sharing one store.
+ * - Every user has a home node, chosen by consistent hashing of the username (HashRing). The
+ *   home node owns the user's inbox: sends to the user, offline delivery and read receipts
+ *   run there, so per-receiver ordering holds cluster-wide. Registration is serialized there too.
+ * - The presence directory (username -> node the user is connected to) is replicated: a login
+ *   or logout is applied at the user's home node before the call returns and broadcast to the
+ *   rest. isOnline and notification routing read the local copy.
+ * - Notifications for a user connected to another node are forwarded there. Each peer has its
+ *   own ordered outbound queue, so forwarding never makes a sender wait on the network.
+ * - Presence subscriptions live at the subscriber's home node.
+ * Nodes talk through a ClusterTransport. Configure with
+ *   -Dwhatsapp.cluster.nodes=n1=host:port,n2=host:port -Dwhatsapp.cluster.self=n1
+ *   -Dwhatsapp.cluster.secret=<shared by all nodes>
+ * Users and messages must live in a store every node shares (MongoDB).
+ */
+public class ClusterNode implements AutoCloseable {
+    private static final Gson gson = new Gson();
+
+    private final String self;
+    private final HashRing ring;
+    private final ClusterTransport transport;
+    // username -> node the user is connected to; a user is online iff present
+    private final ConcurrentHashMap<String, String> directory = new ConcurrentHashMap<>();
+    // one single-threaded queue per peer keeps forwarded operations in order
+    private final Map<String, ExecutorService> outbound = new HashMap<>();
+    private volatile MessagingServer server;
+
+    public ClusterNode(String self, Collection<String> nodes, ClusterTransport transport) {
+        if (!nodes.contains(self)) throw new RuntimeException("Node " + self + " is not part of the cluster " + nodes);
+        this.self = self;
+        this.ring = new HashRing(nodes);
+        this.transport = transport;
+        for (String node : nodes) {
+            if (node.equals(self)) continue;
+            outbound.put(node, Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "cluster-out-" + node);
+                t.setDaemon(true);
+                return t;
+            }));
+        }
+    }
+
+    // From -Dwhatsapp.cluster.nodes / .self / .secret; null when cluster mode is off
+    static ClusterNode fromSystemProperties() {
+        String spec = System.getProperty("whatsapp.cluster.nodes");
+        if (spec == null || spec.trim().isEmpty()) return null;
+        String self = System.getProperty("whatsapp.cluster.self");
+        if (self == null) throw new RuntimeException("whatsapp.cluster.self must name this node");
+        String secret = System.getProperty("whatsapp.cluster.secret");
+        if (secret == null || secret.isEmpty()) {
+            throw new RuntimeException("whatsapp.cluster.secret must be set (the same on every node)");
+        }
+        Map<String, InetSocketAddress> addresses = new LinkedHashMap<>();
+        for (String entry : spec.split(",")) {
+            String[] kv = entry.trim().split("=", 2);
+            int colon = kv.length == 2 ? kv[1].lastIndexOf(':') : -1;
+            if (colon <= 0) throw new RuntimeException("Invalid cluster node \"" + entry + "\", expected id=host:port");
+            addresses.put(kv[0], new InetSocketAddress(kv[1].substring(0, colon), Integer.parseInt(kv[1].substring(colon + 1))));
+        }
+        return new ClusterNode(self, addresses.keySet(), new HttpClusterTransport(addresses, secret));
+    }
+
+    // Called once the server is built: start taking peer traffic and learn who is online
+    void attach(MessagingServer server) {
+        this.server = server;
+        transport.bind(self, this::handle);
+        Thread sync = new Thread(this::syncDirectory, "cluster-directory-sync");
+        sync.setDaemon(true);
+        sync.start();
+    }
+
+    public String getSelf() { return self; }
+    public List<String> getNodes() { return ring.nodes(); }
+    public String homeOf(String username) { return ring.nodeFor(username); }
+    public boolean isOnline(String username) { return directory.containsKey(username); }
+    public String locationOf(String username) { return directory.get(username); }
+
+    /* Operations MessagingServer routes through the cluster */
+
+    public void register(String username, String password) {
+        if (username == null || username.trim().isEmpty()) throw new RuntimeException("Invalid username");
+        invoke(homeOf(username), "register", args("username", username, "password", password));
+    }
+
+    @SuppressWarnings("unchecked")
+    public Message send(String sender, String receiver, String content) {
+        if (receiver == null) throw new RuntimeException("Receiver does not exist");
+        Object m = invoke(homeOf(receiver), "send", args("sender", sender, "receiver", receiver, "content", content));
+        return messageFrom((Map<String, Object>) m);
+    }
+
+    // Items are grouped by their receiver's home node: one call per node, not per message
+    @SuppressWarnings("unchecked")
+    public void sendBatch(List<BatchedSend> items) {
+        Map<String, List<BatchedSend>> byNode = new LinkedHashMap<>();
+        for (BatchedSend item : items) {
+            if (item.getReceiver() == null) item.fail("Receiver does not exist");
+            else byNode.computeIfAbsent(homeOf(item.getReceiver()), k -> new ArrayList<>()).add(item);
+        }
+        for (Map.Entry<String, List<BatchedSend>> e : byNode.entrySet()) {
+            List<BatchedSend> group = e.getValue();
+            List<Map<String, Object>> sends = new ArrayList<>(group.size());
+            for (BatchedSend item : group) {
+                sends.add(args("sender", item.getSender(), "receiver", item.getReceiver(), "content", item.getContent()));
+            }
+            try {
+                List<Object> results = (List<Object>) invoke(e.getKey(), "sendBatch", args("sends", sends));
+                for (int i = 0; i < group.size(); i++) {
+                    Map<String, Object> r = (Map<String, Object>) results.get(i);
+                    if (r.get("message") != null) group.get(i).sent(messageFrom((Map<String, Object>) r.get("message")));
+                    else group.get(i).fail(String.valueOf(r.get("error")));
+                }
+            } catch (RuntimeException ex) {
+                for (BatchedSend item : group) item.fail(String.valueOf(ex.getMessage()));
+            }
+        }
+    }
+
+    public void markRead(String username, List<Message> messages) {
+        List<Map<String, Object>> maps = new ArrayList<>();
+        for (Message m : messages) maps.add(RESTServer.messageToMap(m));
+        invoke(homeOf(username), "markRead", args("username", username, "messages", maps));
+    }
+
+    @SuppressWarnings("unchecked")
+    public GroupMessage sendGroup(String sender, String groupId, String content) {
+        if (groupId == null) throw new RuntimeException("No such group");
+        Map<String, Object> m = (Map<String, Object>) invoke(homeOf(groupId), "sendGroup",
+                args("sender", sender, "groupId", groupId, "content", content));
+        return new GroupMessage((String) m.get("id"), (String) m.get("sender"), groupId,
+                (String) m.get("content"), LocalDateTime.parse((String) m.get("timestamp")));
+    }
+
+    // The group's home node owns its cached roster, so membership changes go through it
+    public Group changeGroupMember(String groupId, String username, boolean add) {
+        if (groupId == null) throw new RuntimeException("No such group");
+        invoke(homeOf(groupId), "groupMember", args("groupId", groupId, "username", username, "add", add));
+        return server.getGroupManager().getStore().loadGroup(groupId);
+    }
+
+    public void markConversationsRead(String username, Collection<String> peers) {
+        invoke(homeOf(username), "markConversationsRead", args("username", username, "peers", new ArrayList<>(peers)));
+    }
+
+    // Watermarks of a user's inbox live on its home node
+    @SuppressWarnings("unchecked")
+    public Map<String, Long> unreadCounts(String username) {
+        Map<String, Long> out = new TreeMap<>();
+        Map<String, Object> counts = (Map<String, Object>) invoke(homeOf(username), "unread", args("username", username));
+        for (Map.Entry<String, Object> e : counts.entrySet()) out.put(e.getKey(), ((Number) e.getValue()).longValue());
+        return out;
+    }
+
+    public void watch(String subscriber, String target) {
+        invoke(homeOf(subscriber), "watch", args("subscriber", subscriber, "target", target));
+    }
+
+    // The user opened a session here: the home node learns it first, then everyone else;
+    // the home node then delivers what queued up while the user was offline
+    public void connected(String username) {
+        Map<String, Object> a = args("username", username, "node", self);
+        String home = homeOf(username);
+        invoke(home, "connected", a);
+        broadcast("connected", a, home);
+        invoke(home, "deliverOffline", args("username", username));
+    }
+
+    public void disconnected(String username) {
+        Map<String, Object> a = args("username", username, "node", self);
+        String home = homeOf(username);
+        invoke(home, "disconnected", a);
+        broadcast("disconnected", a, home);
+    }
+
+    // Group fan-out: one deliverMany per node instead of one deliver per member
+    void forwardAll(Collection<String> usernames, Notification n) {
+        Map<String, List<String>> byNode = new HashMap<>();
+        for (String username : usernames) {
+            String at = directory.get(username);
+            if (at == null) forward(username, n); // the home node resolves it
+            else if (!at.equals(self)) byNode.computeIfAbsent(at, k -> new ArrayList<>()).add(username);
+        }
+        if (byNode.isEmpty()) return;
+        Map<String, Object> notification = toMap(n);
+        for (Map.Entry<String, List<String>> e : byNode.entrySet()) {
+            post(e.getKey(), "deliverMany", args("usernames", e.getValue(), "notification", notification));
+        }
+    }
+
+    // Notifications for users without an observer on this node (ClusterNotificationManager)
+    void forward(String username, Notification n) {
+        String at = directory.get(username);
+        if (at != null && !at.equals(self)) {
+            post(at, "deliver", args("username", username, "notification", toMap(n)));
+        } else if (at == null && !homeOf(username).equals(self)) {
+            // not in our copy of the directory yet; the home node has the authoritative entry
+            post(homeOf(username), "notify", args("username", username, "notification", toMap(n)));
+        }
+        // otherwise offline (or here without observers): dropped, as on a single node
+    }
+
+    @Override
+    public void close() {
+        for (ExecutorService queue : outbound.values()) queue.shutdown();
+        for (ExecutorService queue : outbound.values()) {
+            try { queue.awaitTermination(2, TimeUnit.SECONDS); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        }
+        transport.close();
+    }
+
+    /* Inbound side */
+
+    // Transport entry point: {"ok":true,"result":...} or {"ok":false,"error":"..."}
+    @SuppressWarnings("unchecked")
+    String handle(String op, String json) {
+        Map<String, Object> reply = new HashMap<>();
+        try {
+            Map<String, Object> a = json.isEmpty() ? new HashMap<>() : gson.fromJson(json, Map.class);
+            reply.put("result", dispatch(op, a));
+            reply.put("ok", true);
+        } catch (RuntimeException e) {
+            reply.put("ok", false);
+            reply.put("error", String.valueOf(e.getMessage()));
+        }
+        return gson.toJson(reply);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object dispatch(String op, Map<String, Object> a) {
+        MessagingServer s = server;
+        if (s == null) throw new RuntimeException("Node " + self + " is starting");
+        String username = (String) a.get("username");
+        switch (op) {
+            case "register":
+                s.getUserManager().register(username, (String) a.get("password"));
+                return null;
+            case "send": {
+                String sender = (String) a.get("sender");
+                String receiver = (String) a.get("receiver");
+                Message m = s.getMessageManager().sendMessage(sender, receiver, (String) a.get("content"));
+                // contacts for presence: the receiver's side is kept here, the sender's at its home
+                if (s.getPresence().watch(receiver, sender)) {
+                    invokeAsync(homeOf(sender), "watch", args("subscriber", sender, "target", receiver));
+                }
+                return RESTServer.messageToMap(m);
+            }
+            case "sendBatch": {
+                List<BatchedSend> items = new ArrayList<>();
+                for (Object o : (List<Object>) a.get("sends")) {
+                    Map<String, Object> send = (Map<String, Object>) o;
+                    items.add(new BatchedSend((String) send.get("sender"), (String) send.get("receiver"), (String) send.get("content")));
+                }
+                s.getMessageManager().sendBatch(items);
+                List<Map<String, Object>> results = new ArrayList<>(items.size());
+                Set<String> watched = new HashSet<>();
+                for (BatchedSend item : items) {
+                    Map<String, Object> r = new HashMap<>();
+                    if (item.isSent()) {
+                        r.put("message", RESTServer.messageToMap(item.getMessage()));
+                        // as for "send": the receiver's contacts are kept here, the sender's at its home
+                        boolean first = watched.add(item.getSender() + Message.CONVERSATION_KEY_SEPARATOR + item.getReceiver());
+                        if (first && s.getPresence().watch(item.getReceiver(), item.getSender())) {
+                            invokeAsync(homeOf(item.getSender()), "watch", args("subscriber", item.getSender(), "target", item.getReceiver()));
+                        }
+                    } else {
+                        r.put("error", item.getError());
+                    }
+                    results.add(r);
+                }
+                return results;
+            }
+            case "markRead": {
+                List<Message> messages = new ArrayList<>();
+                for (Object m : (List<Object>) a.get("messages")) messages.add(messageFrom((Map<String, Object>) m));
+                s.getMessageManager().markMessagesRead(username, messages);
+                return null;
+            }
+            case "markConversationsRead":
+                s.getMessageManager().markConversationsRead(username, (List<String>) a.get("peers"));
+                return null;
+            case "unread":
+                return s.getMessageManager().getUnreadCounts(username);
+            case "deliverOffline":
+                s.getMessageManager().deliverOfflineMessages(username);
+                return null;
+            case "watch":
+                s.getPresence().watch((String) a.get("subscriber"), (String) a.get("target"));
+                return null;
+            case "sendGroup":
+                return RESTServer.messageToMap(s.getMessageManager().sendGroupMessage(
+                        (String) a.get("sender"), (String) a.get("groupId"), (String) a.get("content")));
+            case "groupMember":
+                if (Boolean.TRUE.equals(a.get("add"))) s.getGroupManager().addMember((String) a.get("groupId"), username);
+                else s.getGroupManager().removeMember((String) a.get("groupId"), username);
+                return null;
+            case "deliverMany":
+                ((ClusterNotificationManager) s.getNotificationManager()).deliverLocal(
+                        (List<String>) a.get("usernames"), notificationFrom((Map<String, Object>) a.get("notification")));
+                return null;
+            case "connected":
+                directory.put(username, (String) a.get("node"));
+                s.getPresence().statusChanged(username, UserStatus.ONLINE);
+                return null;
+            case "disconnected":
+                // a newer session on another node wins over a late logout from the old one
+                if (directory.remove(username, a.get("node"))) s.getPresence().statusChanged(username, UserStatus.OFFLINE);
+                return null;
+            case "sessions": {
+                List<String> here = new ArrayList<>();
+                for (Map.Entry<String, String> e : directory.entrySet()) if (e.getValue().equals(self)) here.add(e.getKey());
+                return here;
+            }
+            case "notify": { // we are the user's home: resolve where the user is
+                String at = directory.get(username);
+                if (at == null) return null;
+                if (at.equals(self)) deliverHere(s, username, a);
+                else post(at, "deliver", a);
+                return null;
+            }
+            case "deliver":
+                deliverHere(s, username, a);
+                return null;
+            default:
+                throw new RuntimeException("Unknown cluster operation " + op);
+        }
+    }
+
+    // The user is connected to this node: hand the notification to their local observers
+    @SuppressWarnings("unchecked")
+    private void deliverHere(MessagingServer s, String username, Map<String, Object> a) {
+        ((ClusterNotificationManager) s.getNotificationManager())
+                .deliverLocal(username, notificationFrom((Map<String, Object>) a.get("notification")));
+    }
+
+    /* Outbound helpers */
+
+    // Run op on node and wait; runs in place when node is this one
+    @SuppressWarnings("unchecked")
+    private Object invoke(String node, String op, Map<String, Object> a) {
+        if (node.equals(self)) return dispatch(op, a);
+        Map<String, Object> reply = gson.fromJson(transport.call(node, op, gson.toJson(a)), Map.class);
+        if (!Boolean.TRUE.equals(reply.get("ok"))) throw new RuntimeException(String.valueOf(reply.get("error")));
+        return reply.get("result");
+    }
+
+    // Fire and forget, in order per peer; failures are logged
+    private void post(String node, String op, Map<String, Object> a) {
+        String json = gson.toJson(a); // encode now: messages may change status before the queue runs
+        outbound.get(node).execute(() -> {
+            try {
+                transport.call(node, op, json);
+            } catch (RuntimeException e) {
+                System.err.println("Cluster " + op + " to " + node + " failed: " + e.getMessage());
+            }
+        });
+    }
+
+    private void invokeAsync(String node, String op, Map<String, Object> a) {
+        if (node.equals(self)) dispatch(op, a);
+        else post(node, op, a);
+    }
+
+    private void broadcast(String op, Map<String, Object> a, String skip) {
+        for (String node : ring.nodes()) {
+            if (!node.equals(skip)) invokeAsync(node, op, a);
+        }
+    }
+
+    // On startup, ask every peer who is connected to it; peers that are not up yet have nobody
+    @SuppressWarnings("unchecked")
+    private void syncDirectory() {
+        for (String node : ring.nodes()) {
+            if (node.equals(self)) continue;
+            try {
+                for (Object user : (List<Object>) invoke(node, "sessions", new HashMap<>())) {
+                    directory.putIfAbsent((String) user, node);
+                }
+            } catch (RuntimeException e) {
+                System.err.println("Cluster node " + node + " not reachable for directory sync: " + e.getMessage());
+            }
+        }
+    }
+
+    /* Wire format */
+
+    private static Map<String, Object> args(Object... kv) {
+        Map<String, Object> m = new HashMap<>();
+        for (int i = 0; i < kv.length; i += 2) m.put((String) kv[i], kv[i + 1]);
+        return m;
+    }
+
+    static Message messageFrom(Map<String, Object> m) {
+        Message msg = new Message((String) m.get("id"), (String) m.get("sender"), (String) m.get("receiver"),
+                (String) m.get("content"), LocalDateTime.parse((String) m.get("timestamp")));
+        Object seq = m.get("seq");
+        if (seq instanceof Number) msg.setSeq(((Number) seq).longValue());
+        msg.setStatus(MessageStatus.valueOf((String) m.get("status")));
+        return msg;
+    }
+
+    static Map<String, Object> toMap(Notification n) {
+        Map<String, Object> m = new HashMap<>();
+        m.put("type", n.getType().name());
+        m.put("username", n.getUsername());
+        m.put("note", n.getNote());
+        if (n.getMessage() != null) m.put("message", RESTServer.messageToMap(n.getMessage()));
+        if (n.isBatch()) {
+            List<Map<String, Object>> batch = new ArrayList<>();
+            for (Message msg : n.getMessages()) batch.add(RESTServer.messageToMap(msg));
+            m.put("messages", batch);
+        }
+        if (n.getReadUpTo() != null) m.put("readUpTo", n.getReadUpTo());
+        if (n.getPresence() != null) {
+            Map<String, String> presence = new HashMap<>();
+            for (Map.Entry<String, UserStatus> e : n.getPresence().entrySet()) presence.put(e.getKey(), e.getValue().name());
+            m.put("presence", presence);
+        }
+        return m;
+    }
+
+    @SuppressWarnings("unchecked")
+    static Notification notificationFrom(Map<String, Object> m) {
+        NotificationType type = NotificationType.valueOf((String) m.get("type"));
+        if (type == NotificationType.PRESENCE_UPDATE) {
+            Map<String, UserStatus> changes = new HashMap<>();
+            for (Map.Entry<String, Object> e : ((Map<String, Object>) m.get("presence")).entrySet()) {
+                changes.put(e.getKey(), UserStatus.valueOf((String) e.getValue()));
+            }
+            return Notification.presence(changes);
+        }
+        if (type == NotificationType.READ_RECEIPT) return Notification.readReceipt((String) m.get("username"),
+                ((Number) m.get("readUpTo")).longValue());
+        if (m.get("messages") != null) {
+            List<Message> batch = new ArrayList<>();
+            for (Object o : (List<Object>) m.get("messages")) batch.add(messageFrom((Map<String, Object>) o));
+            return Notification.batch(type, (String) m.get("username"), batch, (String) m.get("note"));
+        }
+        Map<String, Object> message = (Map<String, Object>) m.get("message");
+        return new Notification(type, (String) m.get("username"), message == null ? null : messageFrom(message),
+                (String) m.get("note"));
+    }
+}
+
+/* Consistent hashing of usernames onto nodes; virtual nodes even out the share per node */
+class HashRing {
+    static final int VIRTUAL_NODES = 128;
+
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    private final List<String> nodes;
+
+    HashRing(Collection<String> nodes) {
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        for (String node : nodes) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) ring.put(hash(node + "#" + i), node);
+        }
+    }
+
+    String nodeFor(String key) {
+        Map.Entry<Long, String> e = ring.ceilingEntry(hash(key));
+        return e != null ? e.getValue() : ring.firstEntry().getValue();
+    }
+
+    List<String> nodes() { return nodes; }
+
+    // FNV-1a over the UTF-8 bytes, then a murmur3 finalizer to spread close keys apart
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
+
+/* NotificationManager that forwards to the node a user is connected to when it isn't this one */
+class ClusterNotificationManager extends NotificationManager {
+    private final ClusterNode cluster;
+
+    ClusterNotificationManager(ClusterNode cluster) {
+        this.cluster = cluster;
+    }
+
+    @Override
+    public void notifyUser(String username, Notification notification) {
+        if (hasObservers(username)) super.notifyUser(username, notification);
+        else cluster.forward(username, notification);
+    }
+
+    @Override
+    public void notifyUsers(Collection<String> usernames, Notification notification) {
+        List<String> local = new ArrayList<>();
+        List<String> remote = new ArrayList<>();
+        for (String username : usernames) (hasObservers(username) ? local : remote).add(username);
+        super.notifyUsers(local, notification);
+        if (!remote.isEmpty()) cluster.forwardAll(remote, notification);
+    }
+
+    void deliverLocal(String username, Notification notification) {
+        super.notifyUser(username, notification);
+    }
+
+    void deliverLocal(Collection<String> usernames, Notification notification) {
+        super.notifyUsers(usernames, notification);
+    }
+}
@@ -0,0 +1,142 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+/**
+ * How ClusterNodes reach each other. An operation is a name plus a JSON body and returns a
+ * JSON body; ClusterNode does the encoding. Implementations: HttpClusterTransport (one small
+ * HTTP endpoint per node, for separate processes) and LocalClusterTransport (direct calls,
+ * for several nodes in one JVM).
+ */
+public interface ClusterTransport extends AutoCloseable {
+    // Start accepting operations addressed to `self`; handler maps (op, json) to a json reply
+    void bind(String self, BiFunction<String, String, String> handler);
+
+    // Run `op` on `node` and wait for its reply; throws if the node can't be reached
+    String call(String node, String op, String json);
+
+    @Override
+    default void close() { }
+}
+
+/* In-process transport: every node in the JVM registers its handler in one shared instance */
+class LocalClusterTransport implements ClusterTransport {
+    private final Map<String, BiFunction<String, String, String>> handlers = new ConcurrentHashMap<>();
+
+    @Override
+    public void bind(String self, BiFunction<String, String, String> handler) {
+        handlers.put(self, handler);
+    }
+
+    @Override
+    public String call(String node, String op, String json) {
+        BiFunction<String, String, String> handler = handlers.get(node);
+        if (handler == null) throw new RuntimeException("Cluster node " + node + " unreachable");
+        return handler.apply(op, json);
+    }
+}
+
+/*
+ * POST http://host:port/cluster/<op> with the JSON body; JDK HttpServer and HttpClient only.
+ * The endpoint runs any operation as any user, so every call carries the cluster's shared
+ * secret (-Dwhatsapp.cluster.secret) in SECRET_HEADER; calls without it get 401.
+ */
+class HttpClusterTransport implements ClusterTransport {
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+    private static final String SECRET_HEADER = "X-Cluster-Secret";
+
+    private final Map<String, InetSocketAddress> addresses;
+    private final String secret;
+    private final byte[] secretBytes;
+    private final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(2)).build();
+    private HttpServer server;
+    private ExecutorService workers;
+
+    public HttpClusterTransport(Map<String, InetSocketAddress> addresses, String secret) {
+        if (secret == null || secret.isEmpty()) throw new RuntimeException("The cluster needs a shared secret");
+        this.addresses = addresses;
+        this.secret = secret;
+        this.secretBytes = secret.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void bind(String self, BiFunction<String, String, String> handler) {
+        try {
+            server = HttpServer.create(addresses.get(self), 0);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot listen for cluster traffic on " + addresses.get(self) + ": " + e.getMessage(), e);
+        }
+        AtomicInteger n = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors() * 2), r -> {
+            Thread t = new Thread(r, "cluster-in-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(workers);
+        server.createContext("/cluster/", exchange -> {
+            try (InputStream in = exchange.getRequestBody(); OutputStream out = exchange.getResponseBody()) {
+                if (!authorized(exchange.getRequestHeaders().getFirst(SECRET_HEADER))) {
+                    exchange.sendResponseHeaders(401, -1);
+                    return;
+                }
+                String op = exchange.getRequestURI().getPath().substring("/cluster/".length());
+                byte[] reply = handler.apply(op, new String(in.readAllBytes(), StandardCharsets.UTF_8))
+                        .getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, reply.length);
+                out.write(reply);
+            }
+        });
+        server.start();
+    }
+
+    @Override
+    public String call(String node, String op, String json) {
+        InetSocketAddress address = addresses.get(node);
+        if (address == null) throw new RuntimeException("Unknown cluster node " + node);
+        HttpRequest request = HttpRequest.newBuilder(
+                        URI.create("http://" + address.getHostString() + ":" + address.getPort() + "/cluster/" + op))
+                .timeout(TIMEOUT)
+                .header("Content-Type", "application/json")
+                .header(SECRET_HEADER, secret)
+                .POST(HttpRequest.BodyPublishers.ofString(json))
+                .build();
+        try {
+            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) throw new RuntimeException("Cluster node " + node + " replied " + response.statusCode());
+            return response.body();
+        } catch (IOException e) {
+            throw new RuntimeException("Cluster node " + node + " unreachable: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while calling cluster node " + node);
+        }
+    }
+
+    // Constant time, so the secret can't be guessed byte by byte from response times
+    private boolean authorized(String presented) {
+        return presented != null && MessageDigest.isEqual(secretBytes, presented.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void close() {
+        if (server != null) server.stop(0);
+        if (workers != null) workers.shutdownNow();
+    }
+}
@@ -0,0 +1,378 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Shared, bounded cache of the most recent messages per conversation.
+ * - Each conversation keeps a contiguous newest tail (at most maxPerConversation messages).
+ * - Conversations are evicted least-recently-used first once the estimated heap use of a
+ *   segment passes its share of the byte budget.
+ * - Sends are written through (append); history pages are read through to the loader
+ *   (MongoDB) on miss and merged into the cached tail when contiguous.
+ * - While nothing behind the cache takes new messages (no loader, or its store unreachable:
+ *   memory-only mode), the cache holds the only copy of a conversation. Conversations that
+ *   take a message in that state are pinned: never trimmed or evicted and kept outside the
+ *   byte budget, so memory-only history grows like the per-user lists the cache replaced.
+ * The map is split into segments with their own lock and LRU order so unrelated
+ * conversations don't contend.
+ * Tails are stored column-wise (MessageColumns) with senders interned through UserRegistry,
+ * so a cached message costs ~33 bytes plus its text; Message objects are only built for the
+ * pages that are returned.
+ */
+public class ConversationCache {
+    public static final long DEFAULT_BUDGET_BYTES = Long.getLong("whatsapp.cache.bytes", 64L * 1024 * 1024);
+    public static final int DEFAULT_MAX_PER_CONVERSATION = Integer.getInteger("whatsapp.cache.perConversation", 1000);
+
+    // Reads a page from the backing store on cache miss
+    public interface PageLoader {
+        HistoryPage load(String username, String peer, String before, int limit);
+    }
+
+    private static class Conversation {
+        final String key;
+        final int userA, userB; // interned participants
+        final MessageColumns tail = new MessageColumns(); // chronological
+        boolean truncated; // older messages exist in the store that are not cached
+        boolean pinned; // holds messages no store has
+        long bytes;
+
+        Conversation(String key, int userA, int userB, boolean truncated) {
+            this.key = key;
+            this.userA = userA;
+            this.userB = userB;
+            this.truncated = truncated;
+        }
+    }
+
+    private class Segment {
+        final ReentrantLock lock = new ReentrantLock();
+        final LinkedHashMap<String, Conversation> lru = new LinkedHashMap<>(16, 0.75f, true);
+        final Map<String, Conversation> pinned = new HashMap<>();
+        long bytes; // unpinned conversations only, the ones the budget applies to
+        long pinnedBytes;
+
+        // caller holds lock
+        Conversation get(String key) {
+            Conversation c = lru.get(key);
+            return c != null ? c : pinned.get(key);
+        }
+
+        // caller holds lock
+        void pin(Conversation c) {
+            if (c.pinned) return;
+            lru.remove(c.key);
+            pinned.put(c.key, c);
+            c.pinned = true;
+            bytes -= c.bytes;
+            pinnedBytes += c.bytes;
+        }
+
+        // caller holds lock
+        void account(Conversation c, long delta) {
+            c.bytes += delta;
+            if (c.pinned) pinnedBytes += delta;
+            else bytes += delta;
+        }
+
+        // caller holds lock
+        void evictIfNeeded(Conversation keep) {
+            Iterator<Conversation> it = lru.values().iterator();
+            while (bytes > segmentBudget && it.hasNext()) {
+                Conversation c = it.next();
+                if (c == keep) continue;
+                it.remove();
+                bytes -= c.bytes;
+                unindex(c.key);
+                evictions.increment();
+            }
+        }
+    }
+
+    private final Segment[] segments;
+    private final long segmentBudget;
+    private final int maxPerConversation;
+    private final PageLoader loader; // null: the cache is the only store (memory-only mode)
+    private final BooleanSupplier loaderBacked; // whether the loader's store takes new messages now
+    private final UserRegistry registry;
+    // username -> cached conversation keys, so memory-only mode can answer per-user history
+    private final Map<String, Set<String>> conversationsByUser = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ConversationCache(PageLoader loader) {
+        this(loader, new UserRegistry());
+    }
+
+    public ConversationCache(PageLoader loader, UserRegistry registry) {
+        this(loader, registry, DEFAULT_BUDGET_BYTES, DEFAULT_MAX_PER_CONVERSATION, 16);
+    }
+
+    public ConversationCache(PageLoader loader, UserRegistry registry, long budgetBytes, int maxPerConversation,
+                             int segmentCount) {
+        this(loader, () -> loader != null, registry, budgetBytes, maxPerConversation, segmentCount);
+    }
+
+    // loaderBacked: false while the loader's store is unreachable (messages sent then exist
+    // only here)
+    public ConversationCache(PageLoader loader, BooleanSupplier loaderBacked, UserRegistry registry) {
+        this(loader, loaderBacked, registry, DEFAULT_BUDGET_BYTES, DEFAULT_MAX_PER_CONVERSATION, 16);
+    }
+
+    public ConversationCache(PageLoader loader, BooleanSupplier loaderBacked, UserRegistry registry, long budgetBytes,
+                             int maxPerConversation, int segmentCount) {
+        this.loader = loader;
+        this.loaderBacked = loader != null ? loaderBacked : () -> false;
+        this.registry = registry;
+        this.maxPerConversation = maxPerConversation;
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) segments[i] = new Segment();
+        this.segmentBudget = Math.max(1, budgetBytes / segmentCount);
+    }
+
+    // Write-through on send. Without a loader the conversation is created on first message;
+    // with one, a new entry is marked truncated because older messages may live in the store.
+    // A message the store does not take pins its conversation.
+    public void append(Message m) {
+        String key = m.getConversationKey();
+        boolean backed = loaderBacked.getAsBoolean();
+        Segment seg = segmentFor(key);
+        seg.lock.lock();
+        try {
+            Conversation c = seg.get(key);
+            if (c == null) {
+                c = newConversation(seg, key, m.getSender(), m.getReceiver(), backed);
+            }
+            if (!backed) seg.pin(c);
+            insertSorted(seg, c, m);
+            trim(seg, c);
+            seg.evictIfNeeded(c);
+        } finally {
+            seg.lock.unlock();
+        }
+    }
+
+    // Page of the conversation between username and peer; served from memory when the cached
+    // tail covers the requested range, otherwise loaded from the store and merged.
+    public HistoryPage getPage(String username, String peer, String before, int limit) {
+        String key = Message.conversationKey(username, peer);
+        Segment seg = segmentFor(key);
+        seg.lock.lock();
+        try {
+            Conversation c = seg.get(key);
+            if (c != null) {
+                HistoryPage page = pageFromTail(c, before, limit);
+                if (page != null) {
+                    hits.increment();
+                    return page;
+                }
+            } else if (loader == null) {
+                hits.increment(); // nothing stored anywhere: an authoritative empty answer
+                return new HistoryPage(Collections.emptyList(), null);
+            }
+        } finally {
+            seg.lock.unlock();
+        }
+        misses.increment();
+        HistoryPage loaded = loader.load(username, peer, before, limit);
+        install(seg, key, username, peer, before, loaded);
+        return loaded;
+    }
+
+    // Copy a status change onto the cached instance of the same message, if it is cached
+    public void updateStatus(Message m) {
+        String key = m.getConversationKey();
+        Segment seg = segmentFor(key);
+        seg.lock.lock();
+        try {
+            Conversation c = seg.get(key);
+            if (c == null) return;
+            int i = find(c.tail, m);
+            if (i >= 0) c.tail.setStatus(i, m.getStatus());
+        } finally {
+            seg.lock.unlock();
+        }
+    }
+
+    // All cached messages involving username, chronological (memory-only mode history)
+    public List<Message> historyOf(String username) {
+        List<Message> out = new ArrayList<>();
+        Set<String> keys = conversationsByUser.get(username);
+        if (keys == null) return out;
+        for (String key : keys.toArray(new String[0])) {
+            Segment seg = segmentFor(key);
+            seg.lock.lock();
+            try {
+                Conversation c = seg.get(key);
+                if (c != null) {
+                    for (int i = 0; i < c.tail.size(); i++) out.add(view(c, i));
+                }
+            } finally {
+                seg.lock.unlock();
+            }
+        }
+        out.sort(Message.CHRONOLOGICAL);
+        return out;
+    }
+
+    public void clear() {
+        for (Segment seg : segments) {
+            seg.lock.lock();
+            try {
+                seg.lru.clear();
+                seg.pinned.clear();
+                seg.bytes = 0;
+                seg.pinnedBytes = 0;
+            } finally {
+                seg.lock.unlock();
+            }
+        }
+        conversationsByUser.clear();
+    }
+
+    public long getHits() { return hits.sum(); }
+    public long getMisses() { return misses.sum(); }
+    public long getEvictions() { return evictions.sum(); }
+
+    public long getEstimatedBytes() {
+        long total = 0;
+        for (Segment seg : segments) {
+            seg.lock.lock();
+            try { total += seg.bytes + seg.pinnedBytes; } finally { seg.lock.unlock(); }
+        }
+        return total;
+    }
+
+    public int getConversationCount() {
+        int total = 0;
+        for (Segment seg : segments) {
+            seg.lock.lock();
+            try { total += seg.lru.size() + seg.pinned.size(); } finally { seg.lock.unlock(); }
+        }
+        return total;
+    }
+
+    // caller holds lock; null means the tail can't answer this request
+    private HistoryPage pageFromTail(Conversation c, String before, int limit) {
+        MessageColumns tail = c.tail;
+        int end = tail.size();
+        if (before != null) {
+            end = indexBefore(tail, before);
+            if (end == 0 && c.truncated) return null; // cursor is older than anything cached
+        }
+        int start = end - limit;
+        if (start < 0) {
+            if (c.truncated) return null;
+            start = 0;
+        }
+        List<Message> page = new ArrayList<>(end - start);
+        for (int i = start; i < end; i++) page.add(view(c, i));
+        boolean more = start > 0 || c.truncated;
+        return new HistoryPage(page, more && !page.isEmpty() ? HistoryPage.cursorOf(page.get(0)) : null);
+    }
+
+    // Merge a loaded page into the cache if it extends the cached tail contiguously
+    private void install(Segment seg, String key, String username, String peer, String before, HistoryPage loaded) {
+        seg.lock.lock();
+        try {
+            Conversation c = seg.get(key);
+            if (before == null) {
+                // the latest page: everything cached (appended meanwhile) is newer or equal
+                if (c == null) {
+                    c = newConversation(seg, key, username, peer, loaded.hasMore());
+                } else {
+                    c.truncated = loaded.hasMore();
+                }
+            } else {
+                // an older page only joins if it ends right where the cached tail begins
+                if (c == null || c.tail.size() == 0 || !before.equals(cursorAt(c.tail, 0))) return;
+                c.truncated = loaded.hasMore();
+            }
+            for (Message m : loaded.getMessages()) {
+                if (find(c.tail, m) < 0) insertSorted(seg, c, m);
+            }
+            trim(seg, c);
+            seg.evictIfNeeded(c);
+        } finally {
+            seg.lock.unlock();
+        }
+    }
+
+    // caller holds lock. Messages arrive nearly in order, so search back from the end.
+    private void insertSorted(Segment seg, Conversation c, Message m) {
+        int i = c.tail.size();
+        while (i > 0 && c.tail.compare(i - 1, m) > 0) i--;
+        c.tail.insert(i, m, registry);
+        seg.account(c, c.tail.bytesAt(i));
+    }
+
+    // caller holds lock; drops the oldest messages beyond the per-conversation cap
+    private void trim(Segment seg, Conversation c) {
+        int excess = c.tail.size() - maxPerConversation;
+        if (excess <= 0 || c.pinned) return;
+        for (int i = 0; i < excess; i++) seg.account(c, -c.tail.bytesAt(i));
+        c.tail.removeHead(excess);
+        c.truncated = true;
+    }
+
+    // Index of the first message not strictly before the cursor
+    private static int indexBefore(MessageColumns tail, String cursor) {
+        return lowerBound(tail, HistoryPage.parseCursor(cursor));
+    }
+
+    // Row of m in the tail, or -1
+    private static int find(MessageColumns tail, Message m) {
+        int i = lowerBound(tail, m);
+        return i < tail.size() && tail.compare(i, m) == 0 ? i : -1;
+    }
+
+    private static int lowerBound(MessageColumns tail, Message probe) {
+        int lo = 0, hi = tail.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (tail.compare(mid, probe) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private static String cursorAt(MessageColumns tail, int i) {
+        return tail.seq(i) + "|" + MessageColumns.fromMillis(tail.millis(i)) + "|" + tail.id(i);
+    }
+
+    private Message view(Conversation c, int i) {
+        return c.tail.view(i, registry, c.userA, c.userB);
+    }
+
+    // caller holds lock
+    private Conversation newConversation(Segment seg, String key, String a, String b, boolean truncated) {
+        Conversation c = new Conversation(key, registry.intern(a), registry.intern(b), truncated);
+        seg.lru.put(key, c); // seg.pin moves it out of the LRU order
+        index(a, b, key);
+        return c;
+    }
+
+    private Segment segmentFor(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
+
+    private void index(String a, String b, String key) {
+        conversationsByUser.computeIfAbsent(a, k -> ConcurrentHashMap.newKeySet()).add(key);
+        conversationsByUser.computeIfAbsent(b, k -> ConcurrentHashMap.newKeySet()).add(key);
+    }
+
+    private void unindex(String key) {
+        int sep = key.indexOf(Message.CONVERSATION_KEY_SEPARATOR);
+        for (String user : new String[]{key.substring(0, sep), key.substring(sep + 1)}) {
+            conversationsByUser.computeIfPresent(user, (k, keys) -> {
+                keys.remove(key);
+                return keys.isEmpty() ? null : keys;
+            });
+        }
+    }
+}
@@ -0,0 +1,39 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out each conversation's sequence numbers (Message.getSeq): 1, 2, 3, ... in send order.
+ * Ordering, pagination, delivery and watermarks use them instead of timestamps, which can tie
+ * or step backwards. A single node counts in memory, seeded from the highest seq its store
+ * holds for the conversation. In cluster mode the two directions of a conversation are sent
+ * on different home nodes, so the count lives in the shared store (a SequenceStore) instead.
+ */
+public class ConversationSequences {
+    private final MessageStore store; // optional
+    private final Map<String, AtomicLong> last = new ConcurrentHashMap<>();
+    private volatile SequenceStore shared; // null: count here
+
+    public ConversationSequences(MessageStore store) {
+        this.store = store;
+    }
+
+    // Allocate from the store (cluster mode); ignored unless it is a SequenceStore
+    public void setShared(boolean shared) {
+        this.shared = shared && store instanceof SequenceStore ? (SequenceStore) store : null;
+    }
+
+    public boolean isShared() { return shared != null; }
+
+    public long next(String conversationKey) {
+        SequenceStore shared = this.shared;
+        if (shared != null && shared.isConnected()) return shared.nextSeq(conversationKey);
+        return last.computeIfAbsent(conversationKey,
+                k -> new AtomicLong(store != null && store.isConnected() ? store.lastSeq(k) : 0)).incrementAndGet();
+    }
+
+    // Forget the counts (the store was replaced)
+    public void clear() {
+        last.clear();
+    }
+}
@@ -13,6 +13,8 @@ import java.util.List;
  * Uses the existing MessagingServer API.
  */
 public class GUIFrame extends JFrame {
+    private static final int CHAT_PAGE_SIZE = 200;
+
     private final MessagingServer server;
     private String activeUser = null;
     private NotificationObserver observer = null;
@@ -128,11 +130,11 @@ public class GUIFrame extends JFrame {
                     public void update(Notification notification) {
                         SwingUtilities.invokeLater(() -> {
                             if (notification.getType() == NotificationType.NEW_MESSAGE) {
-                                Message m = notification.getMessage();
-                                appendMessageToChat(m);
+                                for (Message m : notification.getMessages()) appendMessageToChat(m);
                                 // optionally show toast
                                 Toolkit.getDefaultToolkit().beep();
-                            } else if (notification.getType() == NotificationType.USER_ONLINE) {
+                            } else if (notification.getType() == NotificationType.USER_ONLINE
+                                    || notification.getType() == NotificationType.PRESENCE_UPDATE) {
                                 statusBar.setText(notification.getNote());
                             } else if (notification.getType() == NotificationType.MESSAGE_STATUS_UPDATE) {
                                 // show in status bar briefly
@@ -186,8 +188,9 @@ public class GUIFrame extends JFrame {
 
     private void loadChatWith(String username) {
         chatArea.setText("");
-        if (username == null) return;
-        List<Message> history = server.getMessageHistory(username);
+        if (username == null || activeUser == null) return;
+        // only the latest page of this conversation, not the contact's whole history
+        List<Message> history = server.getConversationPage(activeUser, username, null, CHAT_PAGE_SIZE).getMessages();
         DateTimeFormatter f = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
         for (Message m : history) {
             chatArea.append("[" + m.getTimestamp().format(f) + "] ");
@@ -0,0 +1,198 @@
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Groups and their membership, cached here and written through to a GroupStore.
+ * Membership changes and sends for one group are serialized on the group's stripe, so every
+ * message is stored against exactly the roster the store last saw for the group. Sending
+ * lives in MessageManager (sendGroupMessage).
+ */
+public class GroupManager {
+    public static final int MAX_MEMBERS = Integer.getInteger("whatsapp.groups.maxMembers", 1024);
+
+    private final Map<String, Group> groups = new ConcurrentHashMap<>();
+    private final UserManager userManager;
+    private final GroupStore store;
+    private final StripedLocks locks = new StripedLocks(MessageManager.DEFAULT_STRIPES);
+
+    public GroupManager(UserManager userManager, GroupStore store) {
+        this.userManager = userManager;
+        this.store = store;
+    }
+
+    public GroupStore getStore() { return store; }
+
+    public Group createGroup(String name, String createdBy, Collection<String> members) {
+        if (name == null || name.trim().isEmpty()) throw new RuntimeException("Invalid group name");
+        if (userManager.getUser(createdBy) == null) throw new RuntimeException("No such user: " + createdBy);
+        List<String> all = new ArrayList<>();
+        all.add(createdBy);
+        if (members != null) {
+            for (String m : members) {
+                if (userManager.getUser(m) == null) throw new RuntimeException("No such user: " + m);
+                all.add(m);
+            }
+        }
+        Roster roster = new Roster(all);
+        if (roster.size() > MAX_MEMBERS) throw new RuntimeException("Groups are limited to " + MAX_MEMBERS + " members");
+        Group g = new Group(UUID.randomUUID().toString(), name, createdBy, roster);
+        store.saveGroup(g);
+        groups.put(g.getId(), g);
+        return g;
+    }
+
+    public Group addMember(String groupId, String username) {
+        if (userManager.getUser(username) == null) throw new RuntimeException("No such user: " + username);
+        return withGroup(groupId, () -> {
+            Group g = requireGroup(groupId);
+            if (g.isMember(username)) return g;
+            if (g.getRoster().size() >= MAX_MEMBERS) throw new RuntimeException("Groups are limited to " + MAX_MEMBERS + " members");
+            Group changed = g.withRoster(g.getRoster().with(username));
+            store.saveGroup(changed); // stored before any message can be sent to the new roster
+            groups.put(groupId, changed);
+            return changed;
+        });
+    }
+
+    public Group removeMember(String groupId, String username) {
+        return withGroup(groupId, () -> {
+            Group g = requireGroup(groupId);
+            if (!g.isMember(username)) return g;
+            Group changed = g.withRoster(g.getRoster().without(username));
+            store.saveGroup(changed);
+            groups.put(groupId, changed);
+            return changed;
+        });
+    }
+
+    // null if there is no such group
+    public Group getGroup(String groupId) {
+        if (groupId == null) return null;
+        Group g = groups.get(groupId);
+        if (g != null) return g;
+        g = store.loadGroup(groupId);
+        if (g == null) return null;
+        Group raced = groups.putIfAbsent(groupId, g);
+        return raced != null ? raced : g;
+    }
+
+    public Group requireGroup(String groupId) {
+        Group g = getGroup(groupId);
+        if (g == null) throw new RuntimeException("No such group");
+        return g;
+    }
+
+    public List<Group> groupsOf(String username) {
+        return store.loadGroupsOf(username);
+    }
+
+    public List<GroupMessage> getHistory(String groupId, int limit) {
+        requireGroup(groupId);
+        return store.getGroupHistory(groupId, limit);
+    }
+
+    // Run `work` serialized with sends and membership changes of the group
+    <T> T withGroup(String groupId, Supplier<T> work) {
+        ReentrantLock lock = locks.forKey(groupId);
+        lock.lock();
+        try {
+            return work.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
+
+/* Immutable member list of a group; a membership change makes a new Roster */
+final class Roster {
+    private final String[] members;
+    private final Map<String, Integer> index;
+
+    Roster(Collection<String> members) {
+        Map<String, Integer> idx = new HashMap<>();
+        List<String> unique = new ArrayList<>(members.size());
+        for (String m : members) {
+            if (idx.putIfAbsent(m, unique.size()) == null) unique.add(m);
+        }
+        this.members = unique.toArray(new String[0]);
+        this.index = idx;
+    }
+
+    int size() { return members.length; }
+    String member(int i) { return members[i]; }
+    boolean contains(String member) { return index.containsKey(member); }
+
+    // -1 if not a member
+    int indexOf(String member) {
+        Integer i = index.get(member);
+        return i == null ? -1 : i;
+    }
+
+    List<String> members() { return Collections.unmodifiableList(Arrays.asList(members)); }
+
+    Roster with(String member) {
+        List<String> next = new ArrayList<>(Arrays.asList(members));
+        next.add(member);
+        return new Roster(next);
+    }
+
+    Roster without(String member) {
+        List<String> next = new ArrayList<>(Arrays.asList(members));
+        next.remove(member);
+        return new Roster(next);
+    }
+
+    // Positions of `subset` in this roster
+    BitSet bits(Collection<String> subset) {
+        BitSet out = new BitSet(members.length);
+        for (String m : subset) {
+            int i = indexOf(m);
+            if (i >= 0) out.set(i);
+        }
+        return out;
+    }
+}
+
+class Group {
+    private final String id;
+    private final String name;
+    private final String createdBy;
+    private final Roster roster;
+
+    Group(String id, String name, String createdBy, Roster roster) {
+        this.id = id;
+        this.name = name;
+        this.createdBy = createdBy;
+        this.roster = roster;
+    }
+
+    public String getId() { return id; }
+    public String getName() { return name; }
+    public String getCreatedBy() { return createdBy; }
+    public Roster getRoster() { return roster; }
+    public List<String> getMembers() { return roster.members(); }
+    public boolean isMember(String username) { return roster.contains(username); }
+
+    Group withRoster(Roster next) { return new Group(id, name, createdBy, next); }
+}
+
+/*
+ * A message to a group. Stored once; getReceiver() is the group id, and the per-member
+ * status lives in the store's receipts (GroupStore.getReceipts), not in getStatus().
+ */
+class GroupMessage extends Message {
+    public GroupMessage(String id, String sender, String groupId, String content, LocalDateTime timestamp) {
+        super(id, sender, groupId, content, timestamp);
+    }
+
+    public String getGroupId() { return getReceiver(); }
+
+    static GroupMessage create(String sender, String groupId, String content) {
+        return new GroupMessage(UUID.randomUUID().toString(), sender, groupId, content,
+                LocalDateTime.now().truncatedTo(ChronoUnit.MILLIS));
+    }
+}
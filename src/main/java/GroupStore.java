@@ -0,0 +1,87 @@
+import java.util.*;
+
+/**
+ * Group persistence. A group message is stored once; each member's progress (SENT, DELIVERED,
+ * READ) lives in a separate delivery-state table keyed by (message, member), instead of one
+ * copy of the message per member.
+ * Backends: MongoDBService, WalStorage, MemoryStore.
+ */
+public interface GroupStore extends Store {
+    // Create or replace the group, members included
+    void saveGroup(Group g);
+
+    // null if there is no such group
+    Group loadGroup(String groupId);
+
+    List<Group> loadGroupsOf(String username);
+
+    // Stores m once, with a receipt per member of `roster` except the sender: DELIVERED for
+    // members in `delivered`, SENT for the rest. `roster` is the one last passed to saveGroup.
+    void saveGroupMessage(GroupMessage m, Roster roster, Set<String> delivered);
+
+    // Forward-only receipt changes for one member: message id -> new status
+    void advanceReceipts(String member, Map<String, MessageStatus> updates);
+
+    // Group messages still SENT for member, oldest first
+    List<GroupMessage> getUndeliveredGroupMessages(String member);
+
+    List<GroupMessage> getGroupMessages(Collection<String> messageIds);
+
+    // The newest `limit` messages of the group, oldest first
+    List<GroupMessage> getGroupHistory(String groupId, int limit);
+
+    // member -> status for one message (the sender has no receipt)
+    Map<String, MessageStatus> getReceipts(String messageId);
+}
+
+/*
+ * In-memory receipts of one group message for the local backends: the roster it was sent to
+ * plus one status byte per member, about 1 byte per member instead of a Message per member.
+ * Not thread-safe; callers synchronize.
+ */
+final class GroupReceipts {
+    private static final MessageStatus[] STATUSES = MessageStatus.values();
+    private static final byte NO_RECEIPT = -1; // the sender's own slot
+
+    private final Roster roster;
+    private final byte[] states;
+
+    GroupReceipts(Roster roster, String sender, BitSet delivered) {
+        this.roster = roster;
+        this.states = new byte[roster.size()];
+        for (int i = 0; i < states.length; i++) {
+            states[i] = (byte) (delivered.get(i) ? MessageStatus.DELIVERED : MessageStatus.SENT).ordinal();
+        }
+        int self = roster.indexOf(sender);
+        if (self >= 0) states[self] = NO_RECEIPT;
+    }
+
+    Roster roster() { return roster; }
+
+    // null when member has no receipt for this message
+    MessageStatus get(String member) {
+        int i = roster.indexOf(member);
+        return i < 0 || states[i] == NO_RECEIPT ? null : STATUSES[states[i]];
+    }
+
+    // Moves member forward to status; false if there is no receipt or it was already there
+    boolean advance(String member, MessageStatus status) {
+        int i = roster.indexOf(member);
+        if (i < 0 || states[i] == NO_RECEIPT || states[i] >= status.ordinal()) return false;
+        states[i] = (byte) status.ordinal();
+        return true;
+    }
+
+    // Members still SENT
+    List<String> pending() {
+        List<String> out = new ArrayList<>();
+        for (int i = 0; i < states.length; i++) if (states[i] == MessageStatus.SENT.ordinal()) out.add(roster.member(i));
+        return out;
+    }
+
+    Map<String, MessageStatus> toMap() {
+        Map<String, MessageStatus> out = new LinkedHashMap<>();
+        for (int i = 0; i < states.length; i++) if (states[i] != NO_RECEIPT) out.put(roster.member(i), STATUSES[states[i]]);
+        return out;
+    }
+}
@@ -2,14 +2,37 @@ import javax.swing.SwingUtilities;
 
 public class Main {
     public static void main(String[] args) {
-        // Launch GUI by default; use --console argument to run CLI
+        // Launch GUI by default; use --console argument to run CLI, --rest for the HTTP API
         if (args.length > 0 && "--console".equals(args[0])) {
             ConsoleView view = new ConsoleView();
-            boolean mongoOk = MessagingServer.getInstance().isMongoConnected();
-            if (mongoOk) System.out.println("✅ MongoDB connected (default: mongodb://127.0.0.1:27017, db: whatsapp)");
+            MessagingServer server = MessagingServer.getInstance();
+            boolean mongoOk = server.isMongoConnected();
+            if ("wal".equals(server.getStorageName())) System.out.println("✅ Local write-ahead log storage (" + WalStorage.DEFAULT_DIR + ")");
+            else if ("memory".equals(server.getStorageName())) System.out.println("⚠️  In-memory storage: nothing is kept after exit.");
+            else if (mongoOk) System.out.println("✅ MongoDB connected (default: mongodb://127.0.0.1:27017, db: whatsapp)");
             else System.out.println("⚠️  MongoDB not connected. Use option 9 to configure DB connection.");
             AppController controller = new AppController(view, MessagingServer.getInstance());
             controller.start();
+        } else if (args.length > 0 && "--rest".equals(args[0])) {
+            // --rest [port] [--virtual-threads] [--max-threads=N] [--binary-port=N]
+            int port = 4567;
+            int binaryPort = -1;
+            RESTServer.ThreadMode mode = RESTServer.ThreadMode.PLATFORM;
+            int maxThreads = RESTServer.DEFAULT_MAX_THREADS;
+            for (int i = 1; i < args.length; i++) {
+                if ("--virtual-threads".equals(args[i])) mode = RESTServer.ThreadMode.VIRTUAL;
+                else if (args[i].startsWith("--max-threads=")) maxThreads = Integer.parseInt(args[i].substring("--max-threads=".length()));
+                else if (args[i].startsWith("--binary-port=")) binaryPort = Integer.parseInt(args[i].substring("--binary-port=".length()));
+                else port = Integer.parseInt(args[i]);
+            }
+            RESTServer.start(MessagingServer.getInstance(), port, mode, maxThreads);
+            System.out.println("REST server listening on port " + port + " (" + mode + " threads)");
+            if (binaryPort >= 0) {
+                BinaryServer binary = new BinaryServer(MessagingServer.getInstance(), RESTServer.getSessions(), binaryPort);
+                System.out.println("Binary protocol listening on port " + binary.getPort());
+            }
+            ClusterNode cluster = MessagingServer.getInstance().getCluster();
+            if (cluster != null) System.out.println("Cluster node " + cluster.getSelf() + " of " + cluster.getNodes());
         } else {
             SwingUtilities.invokeLater(() -> {
                 GUIFrame frame = new GUIFrame(MessagingServer.getInstance());
@@ -0,0 +1,394 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Offline inbox kept in memory-mapped, append-only segment files, so queued messages live in
+ * the page cache instead of the Java heap and survive a restart without MongoDB.
+ * - Receivers are sharded by hash; each shard appends to its own series of segment files
+ *   (shard-<s>-<n>.seg in the inbox directory).
+ * - Each record links to the receiver's next record, so the heap only holds a head/tail
+ *   position per receiver with pending messages. enqueue is an append plus patching the
+ *   previous tail's link; peek walks the chain front to back over the mapped segments.
+ * - Consumed records are flagged in place; a segment whose records are all consumed is
+ *   deleted once it is no longer the one being written. Until then a record survives a
+ *   restart, even if it was peeked at.
+ * On open the segments are scanned and the chains rebuilt from the records still pending.
+ * Writes reach the page cache immediately (safe against a process crash); close() forces
+ * them to disk.
+ *
+ * Segment layout: int SEGMENT_MAGIC | int format version | records
+ * Record layout:  int length | byte state | long next | long millis | byte status | long seq |
+ *                 receiver, id, sender, content as (int length, UTF-8 bytes)
+ * Version 1 segments have no segment header and no seq; they are still recovered and drained
+ * (with seq 0, for the caller to number), and new records always go to a current segment.
+ */
+public class MappedOfflineInbox implements OfflineInbox {
+    public static final String DEFAULT_DIR = System.getProperty("whatsapp.offline.dir", "data/offline");
+    public static final int DEFAULT_SHARDS = 16;
+    public static final int DEFAULT_SEGMENT_BYTES = Integer.getInteger("whatsapp.offline.segmentBytes", 16 << 20);
+
+    private static final int SEGMENT_MAGIC = 0x80D1B0C5; // negative, so never a version 1 record length
+    private static final int FORMAT_VERSION = 2;
+    private static final int SEGMENT_HEADER_BYTES = 8;
+    private static final int STATE_OFFSET = 4;
+    private static final int NEXT_OFFSET = 5;
+    private static final int MILLIS_OFFSET = 13;
+    private static final int STATUS_OFFSET = 21;
+    private static final int SEQ_OFFSET = 22;
+    private static final int HEADER_BYTES = 4 + 1 + 8 + 8 + 1 + 8;
+    private static final int V1_HEADER_BYTES = 4 + 1 + 8 + 8 + 1;
+    private static final byte PENDING = 0;
+    private static final byte CONSUMED = 1;
+    private static final long NONE = -1L;
+    private static final MessageStatus[] STATUSES = MessageStatus.values();
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final Shard[] shards;
+
+    public MappedOfflineInbox() {
+        this(Paths.get(DEFAULT_DIR), DEFAULT_SHARDS, DEFAULT_SEGMENT_BYTES);
+    }
+
+    public MappedOfflineInbox(Path dir, int shardCount, int segmentBytes) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.shards = new Shard[shardCount];
+        try {
+            Files.createDirectories(dir);
+            for (int i = 0; i < shardCount; i++) shards[i] = new Shard(i);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot open offline inbox at " + dir + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void append(Message m) {
+        byte[] receiver = utf8(m.getReceiver());
+        byte[] id = utf8(m.getId());
+        byte[] sender = utf8(m.getSender());
+        byte[] content = utf8(m.getContent());
+        int length = HEADER_BYTES + 16 + receiver.length + id.length + sender.length + content.length;
+        if (length > segmentBytes - SEGMENT_HEADER_BYTES - 4) throw new RuntimeException("Message too large for the offline inbox");
+        shardFor(m.getReceiver()).append(m, length, receiver, id, sender, content);
+    }
+
+    @Override
+    public List<Message> peek(String receiver) {
+        return shardFor(receiver).peek(receiver);
+    }
+
+    @Override
+    public void consume(String receiver, int count) {
+        shardFor(receiver).consume(receiver, count);
+    }
+
+    @Override
+    public int pendingCount(String receiver) {
+        return shardFor(receiver).pendingCount(receiver);
+    }
+
+    // Total pending messages across all receivers
+    public long pendingCount() {
+        long total = 0;
+        for (Shard s : shards) total += s.pendingTotal();
+        return total;
+    }
+
+    public int getSegmentCount() {
+        int total = 0;
+        for (Shard s : shards) total += s.segmentCount();
+        return total;
+    }
+
+    @Override
+    public void close() {
+        for (Shard s : shards) s.force();
+    }
+
+    private Shard shardFor(String receiver) {
+        int h = receiver.hashCode();
+        h ^= (h >>> 16);
+        return shards[(h & 0x7fffffff) % shards.length];
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long position(int segment, int offset) {
+        return ((long) segment << 32) | (offset & 0xffffffffL);
+    }
+
+    private static class Segment {
+        final int number;
+        final Path path;
+        final MappedByteBuffer buf;
+        final int version;
+        int live; // pending records
+
+        Segment(int number, Path path, MappedByteBuffer buf, int version) {
+            this.number = number;
+            this.path = path;
+            this.buf = buf;
+            this.version = version;
+        }
+
+        int firstRecord() { return version == 1 ? 0 : SEGMENT_HEADER_BYTES; }
+
+        int headerBytes() { return version == 1 ? V1_HEADER_BYTES : HEADER_BYTES; }
+    }
+
+    private class Shard {
+        final int index;
+        final ReentrantLock lock = new ReentrantLock();
+        final TreeMap<Integer, Segment> segments = new TreeMap<>();
+        // receiver -> {head position, tail position, count}
+        final Map<String, long[]> chains = new HashMap<>();
+        Segment active;
+        int writeOffset;
+        long pending;
+
+        Shard(int index) throws IOException {
+            this.index = index;
+            recover();
+        }
+
+        void append(Message m, int length, byte[] receiver, byte[] id, byte[] sender, byte[] content) {
+            lock.lock();
+            try {
+                if (writeOffset + length > segmentBytes - 4) roll(); // keep room for the zero end marker
+                MappedByteBuffer buf = active.buf;
+                int at = writeOffset;
+                buf.put(at + STATE_OFFSET, PENDING);
+                buf.putLong(at + NEXT_OFFSET, NONE);
+                buf.putLong(at + MILLIS_OFFSET, MessageColumns.toMillis(m.getTimestamp()));
+                buf.put(at + STATUS_OFFSET, (byte) m.getStatus().ordinal());
+                buf.putLong(at + SEQ_OFFSET, m.getSeq());
+                int p = at + HEADER_BYTES;
+                p = putBytes(buf, p, receiver);
+                p = putBytes(buf, p, id);
+                p = putBytes(buf, p, sender);
+                putBytes(buf, p, content);
+                buf.putInt(at + length, 0); // end marker, over anything a crashed write left behind
+                buf.putInt(at, length); // length last: recovery ignores a record cut off mid-write
+                writeOffset += length;
+                link(m.getReceiver(), position(active.number, at));
+                active.live++;
+                pending++;
+            } catch (IOException e) {
+                throw new RuntimeException("Offline inbox write failed: " + e.getMessage(), e);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        List<Message> peek(String receiver) {
+            lock.lock();
+            try {
+                long[] chain = chains.get(receiver);
+                if (chain == null) return Collections.emptyList();
+                List<Message> out = new ArrayList<>((int) chain[2]);
+                for (long pos = chain[0]; pos != NONE; ) {
+                    Segment seg = segments.get((int) (pos >>> 32));
+                    int at = (int) pos;
+                    out.add(read(seg, at));
+                    pos = seg.buf.getLong(at + NEXT_OFFSET);
+                }
+                return out;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Flags the first `count` records of the chain consumed and moves its head past them
+        void consume(String receiver, int count) {
+            lock.lock();
+            try {
+                long[] chain = chains.get(receiver);
+                if (chain == null) return;
+                long pos = chain[0];
+                int n = 0;
+                for (; n < count && pos != NONE; n++) {
+                    Segment seg = segments.get((int) (pos >>> 32));
+                    int at = (int) pos;
+                    pos = seg.buf.getLong(at + NEXT_OFFSET);
+                    seg.buf.put(at + STATE_OFFSET, CONSUMED);
+                    pending--;
+                    if (--seg.live == 0 && seg != active) delete(seg);
+                }
+                if (pos == NONE) {
+                    chains.remove(receiver);
+                } else {
+                    chain[0] = pos;
+                    chain[2] -= n;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int pendingCount(String receiver) {
+            lock.lock();
+            try {
+                long[] chain = chains.get(receiver);
+                return chain == null ? 0 : (int) chain[2];
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long pendingTotal() {
+            lock.lock();
+            try { return pending; } finally { lock.unlock(); }
+        }
+
+        int segmentCount() {
+            lock.lock();
+            try { return segments.size(); } finally { lock.unlock(); }
+        }
+
+        void force() {
+            lock.lock();
+            try {
+                for (Segment seg : segments.values()) seg.buf.force();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // caller holds lock; appends pos to receiver's chain, patching the old tail's link
+        private void link(String receiver, long pos) {
+            long[] chain = chains.get(receiver);
+            if (chain == null) {
+                chains.put(receiver, new long[]{pos, pos, 1});
+                return;
+            }
+            Segment tailSeg = segments.get((int) (chain[1] >>> 32));
+            tailSeg.buf.putLong((int) chain[1] + NEXT_OFFSET, pos);
+            chain[1] = pos;
+            chain[2]++;
+        }
+
+        // caller holds lock
+        private void roll() throws IOException {
+            Segment old = active;
+            active = open(old.number + 1, true);
+            writeOffset = active.firstRecord();
+            if (old.live == 0) delete(old);
+        }
+
+        // create: a new segment in the current format; otherwise the format is read from the file
+        private Segment open(int number, boolean create) throws IOException {
+            Path path = dir.resolve("shard-" + index + "-" + number + ".seg");
+            try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+                // the mapping stays valid after the channel is closed
+                MappedByteBuffer buf = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+                if (create) {
+                    buf.putInt(4, FORMAT_VERSION);
+                    buf.putInt(0, SEGMENT_MAGIC);
+                }
+                int version = buf.getInt(0) == SEGMENT_MAGIC ? buf.getInt(4) : 1;
+                if (version > FORMAT_VERSION) throw new IOException(path + " has unknown format version " + version);
+                Segment seg = new Segment(number, path, buf, version);
+                segments.put(number, seg);
+                return seg;
+            }
+        }
+
+        private void delete(Segment seg) {
+            segments.remove(seg.number);
+            try {
+                Files.deleteIfExists(seg.path); // the mapping is released when the buffer is collected
+            } catch (IOException e) {
+                System.err.println("Could not delete offline segment " + seg.path + ": " + e.getMessage());
+            }
+        }
+
+        // Scan existing segments oldest first and rebuild the chains of pending records.
+        // Links are rewritten as we go, so a crash between appending and linking loses nothing.
+        private void recover() throws IOException {
+            String prefix = "shard-" + index + "-";
+            List<Integer> numbers = new ArrayList<>();
+            try (Stream<Path> files = Files.list(dir)) {
+                files.map(p -> p.getFileName().toString())
+                        .filter(n -> n.startsWith(prefix) && n.endsWith(".seg"))
+                        .forEach(n -> numbers.add(Integer.parseInt(n.substring(prefix.length(), n.length() - 4))));
+            }
+            Collections.sort(numbers);
+            for (int number : numbers) {
+                Segment seg = open(number, false);
+                int at = seg.firstRecord();
+                int header = seg.headerBytes();
+                int length;
+                while (at + header <= segmentBytes && (length = seg.buf.getInt(at)) > 0) {
+                    if (seg.buf.get(at + STATE_OFFSET) == PENDING) {
+                        seg.buf.putLong(at + NEXT_OFFSET, NONE);
+                        byte[] receiver = new byte[seg.buf.getInt(at + header)];
+                        getBytes(seg.buf, at + header + 4, receiver);
+                        link(new String(receiver, StandardCharsets.UTF_8), position(number, at));
+                        seg.live++;
+                        pending++;
+                    }
+                    at += length;
+                }
+                active = seg;
+                writeOffset = at;
+            }
+            for (Segment seg : new ArrayList<>(segments.values())) {
+                if (seg.live == 0 && seg != active) delete(seg);
+            }
+            if (active == null) {
+                active = open(0, true);
+                writeOffset = active.firstRecord();
+            } else if (active.version != FORMAT_VERSION) {
+                roll(); // never append current records to an older segment
+            }
+        }
+    }
+
+    // Absolute bulk get/put only arrived in Java 13, so go through a positioned duplicate
+    private static int putBytes(MappedByteBuffer buf, int at, byte[] bytes) {
+        buf.putInt(at, bytes.length);
+        ByteBuffer view = buf.duplicate();
+        view.position(at + 4);
+        view.put(bytes);
+        return at + 4 + bytes.length;
+    }
+
+    private static void getBytes(MappedByteBuffer buf, int at, byte[] into) {
+        ByteBuffer view = buf.duplicate();
+        view.position(at);
+        view.get(into);
+    }
+
+    // Decode one record straight out of the mapping
+    private static Message read(Segment seg, int at) {
+        MappedByteBuffer buf = seg.buf;
+        long millis = buf.getLong(at + MILLIS_OFFSET);
+        MessageStatus status = STATUSES[buf.get(at + STATUS_OFFSET)];
+        long seq = seg.version == 1 ? 0 : buf.getLong(at + SEQ_OFFSET);
+        int p = at + seg.headerBytes();
+        String[] fields = new String[4]; // receiver, id, sender, content
+        for (int i = 0; i < fields.length; i++) {
+            byte[] bytes = new byte[buf.getInt(p)];
+            getBytes(buf, p + 4, bytes);
+            fields[i] = new String(bytes, StandardCharsets.UTF_8);
+            p += 4 + bytes.length;
+        }
+        Message m = new Message(fields[1], fields[2], fields[0], fields[3], MessageColumns.fromMillis(millis));
+        m.setStatus(status);
+        m.setSeq(seq);
+        return m;
+    }
+}
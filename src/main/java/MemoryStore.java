@@ -0,0 +1,375 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Concurrent in-memory MessageStore/UserStore/GroupStore: the same queries as the other backends with
+ * nothing persisted, for tests, benchmarks and throwaway deployments (-Dwhatsapp.storage=memory).
+ * Unlike the bounded ConversationCache it keeps every message, so history is complete for the
+ * lifetime of the process.
+ */
+public class MemoryStore implements SequenceStore, UserStore, GroupStore {
+    private static final Set<Capability> CAPABILITIES =
+            Collections.unmodifiableSet(EnumSet.of(Capability.ATOMIC_STATUS_TRANSITIONS));
+
+    private final Map<String, User> users = new ConcurrentHashMap<>();
+    private final Map<String, Long> lastSeen = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Message> messagesById = new ConcurrentHashMap<>();
+    // conversation key -> messages in Message.CONVERSATION_ORDER; each list is guarded by itself
+    private final Map<String, List<Message>> conversations = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> conversationsByUser = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> undeliveredByReceiver = new ConcurrentHashMap<>();
+    private final Map<String, Group> groups = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> groupsByMember = new ConcurrentHashMap<>();
+    private final Map<String, GroupMessage> groupMessagesById = new ConcurrentHashMap<>();
+    // group id -> messages in send order; each list is guarded by itself
+    private final Map<String, List<GroupMessage>> groupTimelines = new ConcurrentHashMap<>();
+    private final Map<String, GroupReceipts> receipts = new ConcurrentHashMap<>(); // each guarded by itself
+    private final Map<String, Set<String>> pendingGroupMessages = new ConcurrentHashMap<>(); // member -> ids
+    private final Map<String, Map<String, ConversationMarks>> marks = new ConcurrentHashMap<>(); // receiver -> sender -> copy
+    private final Map<String, AtomicLong> sequences = new ConcurrentHashMap<>(); // conversation key -> last seq
+    private volatile boolean open = true;
+
+    @Override
+    public boolean isConnected() { return open; }
+
+    @Override
+    public void close() { open = false; }
+
+    @Override
+    public Set<Capability> capabilities() { return CAPABILITIES; }
+
+    // USERS
+    @Override
+    public void saveOrUpdateUser(User u) {
+        if (!open || u == null) return;
+        users.put(u.getUsername(), copy(u));
+        lastSeen.put(u.getUsername(), System.currentTimeMillis());
+    }
+
+    @Override
+    public User loadUser(String username) {
+        if (!open || username == null) return null;
+        User u = users.get(username);
+        return u == null ? null : copy(u);
+    }
+
+    @Override
+    public List<User> loadRecentUsers(int limit) {
+        List<User> out = new ArrayList<>();
+        if (!open || limit <= 0) return out;
+        List<Map.Entry<String, Long>> byTime = new ArrayList<>(lastSeen.entrySet());
+        byTime.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        for (Map.Entry<String, Long> e : byTime) {
+            if (out.size() == limit) break;
+            User u = users.get(e.getKey());
+            if (u != null) out.add(copy(u));
+        }
+        return out;
+    }
+
+    @Override
+    public List<User> loadAllUsers() {
+        List<User> out = new ArrayList<>();
+        if (!open) return out;
+        for (User u : users.values()) out.add(copy(u));
+        return out;
+    }
+
+    @Override
+    public void forEachUser(Consumer<User> sink) {
+        if (!open) return;
+        for (User u : users.values()) sink.accept(copy(u));
+    }
+
+    // MESSAGES
+    @Override
+    public void saveMessages(List<Message> batch) {
+        if (!open || batch == null) return;
+        for (Message m : batch) {
+            Message stored = copy(m);
+            if (messagesById.putIfAbsent(stored.getId(), stored) != null) continue; // retried batch
+            String key = stored.getConversationKey();
+            List<Message> conv = conversations.computeIfAbsent(key, k -> new ArrayList<>());
+            synchronized (conv) {
+                int i = conv.size();
+                while (i > 0 && Message.CONVERSATION_ORDER.compare(conv.get(i - 1), stored) > 0) i--;
+                conv.add(i, stored);
+            }
+            conversationsByUser.computeIfAbsent(stored.getSender(), k -> ConcurrentHashMap.newKeySet()).add(key);
+            conversationsByUser.computeIfAbsent(stored.getReceiver(), k -> ConcurrentHashMap.newKeySet()).add(key);
+            if (stored.getStatus() == MessageStatus.SENT) {
+                undeliveredByReceiver.computeIfAbsent(stored.getReceiver(), k -> ConcurrentHashMap.newKeySet()).add(stored.getId());
+            }
+        }
+    }
+
+    @Override
+    public void applyStatusUpdates(Map<String, MessageStatus> updates) {
+        update(updates, false);
+    }
+
+    @Override
+    public void advanceStatuses(Map<String, MessageStatus> updates) {
+        update(updates, true);
+    }
+
+    @Override
+    public List<Message> getUndeliveredMessages(String receiver) {
+        List<Message> out = new ArrayList<>();
+        if (!open || receiver == null) return out;
+        Set<String> ids = undeliveredByReceiver.get(receiver);
+        if (ids == null) return out;
+        for (String id : ids) {
+            Message m = messagesById.get(id);
+            if (m != null && m.getStatus() == MessageStatus.SENT) out.add(copy(m));
+        }
+        out.sort(Message.DELIVERY_ORDER);
+        return out;
+    }
+
+    @Override
+    public List<Message> getMessageHistory(String username) {
+        List<Message> out = new ArrayList<>();
+        if (!open || username == null) return out;
+        Set<String> keys = conversationsByUser.get(username);
+        if (keys == null) return out;
+        for (String key : keys) {
+            List<Message> conv = conversations.get(key);
+            synchronized (conv) {
+                for (Message m : conv) out.add(copy(m));
+            }
+        }
+        out.sort(Message.CHRONOLOGICAL);
+        return out;
+    }
+
+    @Override
+    public HistoryPage getConversationPage(String username, String peer, String before, int limit) {
+        if (!open || username == null || peer == null) return new HistoryPage(Collections.emptyList(), null);
+        List<Message> conv = conversations.get(Message.conversationKey(username, peer));
+        if (conv == null) return new HistoryPage(Collections.emptyList(), null);
+        Message probe = before == null ? null : HistoryPage.parseCursor(before);
+        synchronized (conv) {
+            int end = conv.size();
+            if (probe != null) {
+                int lo = 0;
+                while (lo < end) {
+                    int mid = (lo + end) >>> 1;
+                    if (Message.CONVERSATION_ORDER.compare(conv.get(mid), probe) < 0) lo = mid + 1;
+                    else end = mid;
+                }
+            }
+            int start = Math.max(0, end - limit);
+            List<Message> page = new ArrayList<>(end - start);
+            for (int i = start; i < end; i++) page.add(copy(conv.get(i)));
+            return new HistoryPage(page, start > 0 && !page.isEmpty() ? HistoryPage.cursorOf(page.get(0)) : null);
+        }
+    }
+
+    // WATERMARKS
+    @Override
+    public List<ConversationMarks> loadMarks(String receiver) {
+        List<ConversationMarks> out = new ArrayList<>();
+        if (!open || receiver == null) return out;
+        for (ConversationMarks cm : marks.getOrDefault(receiver, Collections.emptyMap()).values()) out.add(cm.copy());
+        return out;
+    }
+
+    @Override
+    public void saveMarks(Collection<ConversationMarks> batch) {
+        if (!open || batch == null) return;
+        for (ConversationMarks cm : batch) {
+            marks.computeIfAbsent(cm.getReceiver(), k -> new ConcurrentHashMap<>()).put(cm.getSender(), cm.copy());
+        }
+    }
+
+    // Walks the conversation back from its newest message: O(messages not yet counted)
+    @Override
+    public void catchUp(ConversationMarks cm) {
+        if (!open) return;
+        List<Message> conv = conversations.get(Message.conversationKey(cm.getSender(), cm.getReceiver()));
+        if (conv == null) return;
+        long after = cm.getLastSeq();
+        long n = 0;
+        long newest = after;
+        synchronized (conv) {
+            for (int i = conv.size() - 1; i >= 0; i--) {
+                Message m = conv.get(i);
+                if (m.getSeq() <= after) break;
+                if (!m.getSender().equals(cm.getSender())) continue;
+                newest = Math.max(newest, m.getSeq());
+                n++;
+            }
+        }
+        cm.counted(n, newest);
+    }
+
+    // Walks back from the end of the sequence range: O(messages newer than afterSeq)
+    @Override
+    public long countMessages(String sender, String receiver, long afterSeq, long upToSeq) {
+        List<Message> conv = !open ? null : conversations.get(Message.conversationKey(sender, receiver));
+        if (conv == null) return 0;
+        long n = 0;
+        synchronized (conv) {
+            for (int i = conv.size() - 1; i >= 0 && conv.get(i).getSeq() > afterSeq; i--) {
+                Message m = conv.get(i);
+                if (m.getSeq() <= upToSeq && m.getSender().equals(sender)) n++;
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public long lastSeq(String conversationKey) {
+        List<Message> conv = !open ? null : conversations.get(conversationKey);
+        if (conv == null) return 0;
+        synchronized (conv) {
+            return conv.isEmpty() ? 0 : conv.get(conv.size() - 1).getSeq();
+        }
+    }
+
+    @Override
+    public long nextSeq(String conversationKey) {
+        return sequences.computeIfAbsent(conversationKey, k -> new AtomicLong(lastSeq(k))).incrementAndGet();
+    }
+
+    // GROUPS
+    @Override
+    public void saveGroup(Group g) {
+        if (!open || g == null) return;
+        Group previous = groups.put(g.getId(), g); // Group and Roster are immutable, no copy needed
+        if (previous != null) {
+            for (String m : previous.getMembers()) {
+                if (!g.isMember(m)) groupsByMember.getOrDefault(m, Collections.emptySet()).remove(g.getId());
+            }
+        }
+        for (String m : g.getMembers()) groupsByMember.computeIfAbsent(m, k -> ConcurrentHashMap.newKeySet()).add(g.getId());
+    }
+
+    @Override
+    public Group loadGroup(String groupId) {
+        return !open || groupId == null ? null : groups.get(groupId);
+    }
+
+    @Override
+    public List<Group> loadGroupsOf(String username) {
+        List<Group> out = new ArrayList<>();
+        if (!open || username == null) return out;
+        for (String id : groupsByMember.getOrDefault(username, Collections.emptySet())) {
+            Group g = groups.get(id);
+            if (g != null) out.add(g);
+        }
+        return out;
+    }
+
+    @Override
+    public void saveGroupMessage(GroupMessage m, Roster roster, Set<String> delivered) {
+        if (!open || m == null) return;
+        GroupMessage stored = copy(m);
+        if (groupMessagesById.putIfAbsent(stored.getId(), stored) != null) return;
+        GroupReceipts r = new GroupReceipts(roster, stored.getSender(), roster.bits(delivered));
+        receipts.put(stored.getId(), r);
+        for (String member : r.pending()) {
+            pendingGroupMessages.computeIfAbsent(member, k -> ConcurrentHashMap.newKeySet()).add(stored.getId());
+        }
+        List<GroupMessage> timeline = groupTimelines.computeIfAbsent(stored.getGroupId(), k -> new ArrayList<>());
+        synchronized (timeline) {
+            timeline.add(stored);
+        }
+    }
+
+    @Override
+    public void advanceReceipts(String member, Map<String, MessageStatus> updates) {
+        if (!open || member == null || updates == null) return;
+        Set<String> pending = pendingGroupMessages.get(member);
+        for (Map.Entry<String, MessageStatus> e : updates.entrySet()) {
+            GroupReceipts r = receipts.get(e.getKey());
+            if (r == null) continue;
+            synchronized (r) {
+                r.advance(member, e.getValue());
+            }
+            if (pending != null && e.getValue() != MessageStatus.SENT) pending.remove(e.getKey());
+        }
+    }
+
+    @Override
+    public List<GroupMessage> getUndeliveredGroupMessages(String member) {
+        List<GroupMessage> out = new ArrayList<>();
+        if (!open || member == null) return out;
+        for (String id : pendingGroupMessages.getOrDefault(member, Collections.emptySet())) {
+            GroupMessage m = groupMessagesById.get(id);
+            if (m != null) out.add(copy(m));
+        }
+        out.sort(Message.CHRONOLOGICAL);
+        return out;
+    }
+
+    @Override
+    public List<GroupMessage> getGroupMessages(Collection<String> messageIds) {
+        List<GroupMessage> out = new ArrayList<>();
+        if (!open || messageIds == null) return out;
+        for (String id : messageIds) {
+            GroupMessage m = groupMessagesById.get(id);
+            if (m != null) out.add(copy(m));
+        }
+        return out;
+    }
+
+    @Override
+    public List<GroupMessage> getGroupHistory(String groupId, int limit) {
+        List<GroupMessage> out = new ArrayList<>();
+        List<GroupMessage> timeline = !open || groupId == null ? null : groupTimelines.get(groupId);
+        if (timeline == null) return out;
+        synchronized (timeline) {
+            for (int i = Math.max(0, timeline.size() - limit); i < timeline.size(); i++) out.add(copy(timeline.get(i)));
+        }
+        return out;
+    }
+
+    @Override
+    public Map<String, MessageStatus> getReceipts(String messageId) {
+        GroupReceipts r = !open || messageId == null ? null : receipts.get(messageId);
+        if (r == null) return Collections.emptyMap();
+        synchronized (r) {
+            return r.toMap();
+        }
+    }
+
+    // computeIfPresent holds the entry's lock, so concurrent transitions of one message serialize
+    private void update(Map<String, MessageStatus> updates, boolean forwardOnly) {
+        if (!open || updates == null) return;
+        for (Map.Entry<String, MessageStatus> e : updates.entrySet()) {
+            MessageStatus status = e.getValue();
+            Message m = messagesById.computeIfPresent(e.getKey(), (id, stored) -> {
+                if (!forwardOnly || stored.getStatus().ordinal() < status.ordinal()) stored.setStatus(status);
+                return stored;
+            });
+            if (m == null) continue;
+            if (m.getStatus() == MessageStatus.SENT) {
+                undeliveredByReceiver.computeIfAbsent(m.getReceiver(), k -> ConcurrentHashMap.newKeySet()).add(m.getId());
+            } else {
+                Set<String> ids = undeliveredByReceiver.get(m.getReceiver());
+                if (ids != null) ids.remove(m.getId());
+            }
+        }
+    }
+
+    private static User copy(User u) {
+        User c = new User(u.getUsername(), u.getPassword());
+        c.setStatus(u.getStatus());
+        return c;
+    }
+
+    private static GroupMessage copy(GroupMessage m) {
+        return new GroupMessage(m.getId(), m.getSender(), m.getGroupId(), m.getContent(), m.getTimestamp());
+    }
+
+    private static Message copy(Message m) {
+        Message c = new Message(m.getId(), m.getSender(), m.getReceiver(), m.getContent(), m.getTimestamp());
+        c.setSeq(m.getSeq());
+        c.setStatus(m.getStatus());
+        return c;
+    }
+}
@@ -0,0 +1,210 @@
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Compact, columnar storage for an ordered run of messages (one conversation's tail in
+ * ConversationCache, in Message.CONVERSATION_ORDER). Instead of a Message object with a
+ * LocalDateTime, a 36-char UUID string and two name strings per message, each message is a
+ * row across primitive arrays:
+ *   id      two longs (the UUID's 128 bits)
+ *   seq     the conversation sequence number
+ *   sender  an int from UserRegistry
+ *   time    epoch millis
+ *   status  a byte
+ * plus a reference to the content string. That is ~41 bytes of fixed state per message
+ * instead of ~250. Message objects are only materialized (view()) for the rows a caller
+ * actually reads. Ids that aren't canonical UUIDs are kept as strings in a side column that
+ * is only allocated when one shows up.
+ * Not thread-safe; ConversationCache guards each instance with its segment lock.
+ */
+public class MessageColumns {
+    private static final MessageStatus[] STATUSES = MessageStatus.values();
+
+    private long[] idHi;
+    private long[] idLo;
+    private long[] seq;
+    private long[] millis;
+    private int[] sender;
+    private byte[] status;
+    private String[] content;
+    private String[] rawId; // null until a non-UUID id is stored
+
+    private int start; // rows [start, start + size) are live; removeHead just advances start
+    private int size;
+
+    public MessageColumns() {
+        this(8);
+    }
+
+    public MessageColumns(int initialCapacity) {
+        int n = Math.max(1, initialCapacity);
+        idHi = new long[n];
+        idLo = new long[n];
+        seq = new long[n];
+        millis = new long[n];
+        sender = new int[n];
+        status = new byte[n];
+        content = new String[n];
+    }
+
+    public int size() { return size; }
+
+    public void add(Message m, UserRegistry registry) {
+        insert(size, m, registry);
+    }
+
+    // Insert m so that it becomes row `index`, shifting later rows up by one
+    public void insert(int index, Message m, UserRegistry registry) {
+        if (index < 0 || index > size) throw new IndexOutOfBoundsException("Row " + index + " of " + size);
+        ensureRoomAtEnd();
+        int at = start + index;
+        int tail = size - index;
+        if (tail > 0) {
+            System.arraycopy(idHi, at, idHi, at + 1, tail);
+            System.arraycopy(idLo, at, idLo, at + 1, tail);
+            System.arraycopy(seq, at, seq, at + 1, tail);
+            System.arraycopy(millis, at, millis, at + 1, tail);
+            System.arraycopy(sender, at, sender, at + 1, tail);
+            System.arraycopy(status, at, status, at + 1, tail);
+            System.arraycopy(content, at, content, at + 1, tail);
+            if (rawId != null) System.arraycopy(rawId, at, rawId, at + 1, tail);
+        }
+        size++;
+        set(at, m, registry);
+    }
+
+    // Drop the n oldest rows
+    public void removeHead(int n) {
+        n = Math.min(n, size);
+        Arrays.fill(content, start, start + n, null); // let the strings go
+        if (rawId != null) Arrays.fill(rawId, start, start + n, null);
+        start += n;
+        size -= n;
+        if (size == 0) start = 0;
+    }
+
+    public MessageStatus status(int index) { return STATUSES[status[start + index]]; }
+    public void setStatus(int index, MessageStatus s) { status[start + index] = (byte) s.ordinal(); }
+    public String content(int index) { return content[start + index]; }
+    public long millis(int index) { return millis[start + index]; }
+    public long seq(int index) { return seq[start + index]; }
+
+    public String id(int index) {
+        int at = start + index;
+        if (rawId != null && rawId[at] != null) return rawId[at];
+        return new UUID(idHi[at], idLo[at]).toString();
+    }
+
+    // A Message for row `index`; the receiver is the conversation's other participant.
+    // Later status changes must go through setStatus, the view is a copy.
+    public Message view(int index, UserRegistry registry, int userA, int userB) {
+        int at = start + index;
+        int from = sender[at];
+        Message m = new Message(id(index), registry.name(from), registry.name(from == userA ? userB : userA),
+                content[at], fromMillis(millis[at]));
+        m.setSeq(seq[at]);
+        m.setStatus(STATUSES[status[at]]);
+        return m;
+    }
+
+    // Same order as Message.CONVERSATION_ORDER: seq, time, then id. For canonical UUIDs
+    // comparing the 128 bits unsigned gives the same order as comparing the lowercase hex
+    // strings.
+    public int compare(int index, long otherSeq, long otherMillis, String otherId, long otherHi, long otherLo,
+                       boolean otherIsUuid) {
+        int at = start + index;
+        int c = Long.compare(seq[at], otherSeq);
+        if (c != 0) return c;
+        c = Long.compare(millis[at], otherMillis);
+        if (c != 0) return c;
+        boolean isUuid = rawId == null || rawId[at] == null;
+        if (isUuid && otherIsUuid) {
+            c = Long.compareUnsigned(idHi[at], otherHi);
+            return c != 0 ? c : Long.compareUnsigned(idLo[at], otherLo);
+        }
+        return id(index).compareTo(otherId);
+    }
+
+    public int compare(int index, Message m) {
+        long[] bits = uuidBits(m.getId());
+        return compare(index, m.getSeq(), toMillis(m.getTimestamp()), m.getId(),
+                bits == null ? 0 : bits[0], bits == null ? 0 : bits[1], bits != null);
+    }
+
+    // Approximate heap bytes held by row `index` (fixed columns plus the content string)
+    public long bytesAt(int index) {
+        String s = content[start + index];
+        long b = 8 + 8 + 8 + 8 + 4 + 1 + 4 + 40 + (s == null ? 0 : s.length());
+        if (rawId != null && rawId[start + index] != null) b += 40 + rawId[start + index].length();
+        return b;
+    }
+
+    private void set(int at, Message m, UserRegistry registry) {
+        long[] bits = uuidBits(m.getId());
+        if (bits != null) {
+            idHi[at] = bits[0];
+            idLo[at] = bits[1];
+            if (rawId != null) rawId[at] = null;
+        } else {
+            if (rawId == null) rawId = new String[idHi.length];
+            rawId[at] = m.getId();
+        }
+        seq[at] = m.getSeq();
+        millis[at] = toMillis(m.getTimestamp());
+        sender[at] = registry.intern(m.getSender());
+        status[at] = (byte) m.getStatus().ordinal();
+        content[at] = m.getContent();
+    }
+
+    // Make room for one more row after the last live one: slide down over dropped head rows
+    // when that frees at least half the array, otherwise grow.
+    private void ensureRoomAtEnd() {
+        if (start + size < idHi.length) return;
+        int capacity = idHi.length;
+        if (start >= capacity / 2) {
+            relocate(capacity);
+        } else {
+            relocate(capacity * 2);
+        }
+    }
+
+    private void relocate(int capacity) {
+        idHi = move(idHi, new long[capacity]);
+        idLo = move(idLo, new long[capacity]);
+        seq = move(seq, new long[capacity]);
+        millis = move(millis, new long[capacity]);
+        sender = move(sender, new int[capacity]);
+        status = move(status, new byte[capacity]);
+        content = move(content, new String[capacity]);
+        if (rawId != null) rawId = move(rawId, new String[capacity]);
+        start = 0;
+    }
+
+    private <T> T move(T from, T to) {
+        System.arraycopy(from, start, to, 0, size);
+        return to;
+    }
+
+    public static long toMillis(LocalDateTime t) {
+        return t.toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    public static LocalDateTime fromMillis(long millis) {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000L),
+                (int) Math.floorMod(millis, 1000L) * 1_000_000, ZoneOffset.UTC);
+    }
+
+    // {mostSigBits, leastSigBits} for a canonical lowercase UUID string, else null
+    public static long[] uuidBits(String id) {
+        if (id == null || id.length() != 36) return null;
+        try {
+            UUID u = UUID.fromString(id);
+            if (!u.toString().equals(id)) return null; // e.g. upper case: wouldn't round-trip
+            return new long[]{u.getMostSignificantBits(), u.getLeastSignificantBits()};
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Message persistence for MessageManager, MessageWriteBehind and ConversationCache.
+ * Returned messages are the caller's own copies; status changes go back through the store.
+ */
+public interface MessageStore extends Store {
+    // Saving an id that is already stored is ignored, so batches can be retried
+    void saveMessages(List<Message> batch);
+
+    // Set each message to the given status (id -> new status)
+    void applyStatusUpdates(Map<String, MessageStatus> updates);
+
+    // Like applyStatusUpdates, but a message only ever moves forward (SENT -> DELIVERED -> READ).
+    // Atomic per message when the store supports ATOMIC_STATUS_TRANSITIONS; the fallback is a
+    // plain update.
+    default void advanceStatuses(Map<String, MessageStatus> updates) {
+        applyStatusUpdates(updates);
+    }
+
+    // SENT messages for receiver, each conversation in sequence order
+    List<Message> getUndeliveredMessages(String receiver);
+
+    // Everything username sent or received, oldest first
+    List<Message> getMessageHistory(String username);
+
+    // getMessageHistory one message at a time, for callers that stream the result out. Stores
+    // that read from a server cursor hand rows over as they arrive instead of listing them first.
+    default void forEachInHistory(String username, Consumer<Message> sink) {
+        for (Message m : getMessageHistory(username)) sink.accept(m);
+    }
+
+    // Newest `limit` messages of the conversation strictly before the cursor, oldest first.
+    // The fallback filters the full history; the backends answer from an index.
+    default HistoryPage getConversationPage(String username, String peer, String before, int limit) {
+        List<Message> conv = new ArrayList<>();
+        for (Message m : getMessageHistory(username)) {
+            if (m.getSender().equals(peer) || m.getReceiver().equals(peer)) conv.add(m);
+        }
+        conv.sort(Message.CONVERSATION_ORDER);
+        int end = conv.size();
+        if (before != null) {
+            Message probe = HistoryPage.parseCursor(before);
+            while (end > 0 && Message.CONVERSATION_ORDER.compare(conv.get(end - 1), probe) >= 0) end--;
+        }
+        int start = Math.max(0, end - limit);
+        List<Message> page = new ArrayList<>(conv.subList(start, end));
+        return new HistoryPage(page, start > 0 && !page.isEmpty() ? HistoryPage.cursorOf(page.get(0)) : null);
+    }
+
+    // Watermarks (see Watermarks) of every conversation into receiver; a store without them
+    // returns none and ignores saves
+    default List<ConversationMarks> loadMarks(String receiver) {
+        return Collections.emptyList();
+    }
+
+    // Saved as they are now; a conversation has one set of marks, the latest save wins
+    default void saveMarks(Collection<ConversationMarks> marks) { }
+
+    // Counts the stored messages from marks' sender to its receiver past the newest sequence
+    // number marks knows of
+    default void catchUp(ConversationMarks marks) {
+        long after = marks.getLastSeq();
+        long n = 0;
+        long newest = after;
+        for (Message m : getMessageHistory(marks.getReceiver())) {
+            if (!m.getSender().equals(marks.getSender()) || m.getSeq() <= after) continue;
+            n++;
+            newest = Math.max(newest, m.getSeq());
+        }
+        marks.counted(n, newest);
+    }
+
+    // Messages from sender to receiver with afterSeq < seq <= upToSeq. The fallback scans the
+    // receiver's history; stores with an index on the sequence count a range.
+    default long countMessages(String sender, String receiver, long afterSeq, long upToSeq) {
+        long n = 0;
+        for (Message m : getMessageHistory(receiver)) {
+            if (m.getSender().equals(sender) && m.getSeq() > afterSeq && m.getSeq() <= upToSeq) n++;
+        }
+        return n;
+    }
+
+    // Highest sequence number stored for the conversation (Message.conversationKey), 0 if none
+    default long lastSeq(String conversationKey) {
+        long max = 0;
+        String user = conversationKey.substring(0, conversationKey.indexOf(Message.CONVERSATION_KEY_SEPARATOR));
+        for (Message m : getMessageHistory(user)) {
+            if (m.getConversationKey().equals(conversationKey)) max = Math.max(max, m.getSeq());
+        }
+        return max;
+    }
+
+    default void saveMessage(Message m) {
+        if (m != null) saveMessages(Collections.singletonList(m));
+    }
+
+    default void updateMessageStatus(String messageId, MessageStatus newStatus) {
+        if (messageId != null) applyStatusUpdates(Collections.singletonMap(messageId, newStatus));
+    }
+
+    default void updateMessageStatuses(Collection<String> messageIds, MessageStatus newStatus) {
+        if (messageIds == null || messageIds.isEmpty()) return;
+        applyStatusUpdates(sameStatus(messageIds, newStatus));
+    }
+
+    default void advanceStatuses(Collection<String> messageIds, MessageStatus newStatus) {
+        if (messageIds == null || messageIds.isEmpty()) return;
+        advanceStatuses(sameStatus(messageIds, newStatus));
+    }
+
+    static Map<String, MessageStatus> sameStatus(Collection<String> messageIds, MessageStatus status) {
+        Map<String, MessageStatus> updates = new LinkedHashMap<>();
+        for (String id : messageIds) updates.put(id, status);
+        return updates;
+    }
+}
@@ -0,0 +1,197 @@
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-behind queue in front of a MessageStore (MongoDB) for message writes.
+ * Senders only enqueue; a background flusher writes batches with insertMany/bulkWrite when
+ * either batchSize messages are pending or flushIntervalMs has passed.
+ * A status change for a message that is still queued is folded into its insert, so the
+ * online send path costs one document write instead of insert + update.
+ * At most `capacity` inserts may be pending; further senders block (backpressure) and fail
+ * after maxBlockMs. close() drains everything that was accepted.
+ * While the store is unreachable or writes fail, the flusher waits flushIntervalMs, doubling
+ * up to MAX_BACKOFF_MS, between attempts.
+ */
+public class MessageWriteBehind {
+    private static final long MAX_BACKOFF_MS = 5_000;
+
+    private final MessageStore storage;
+    private final int batchSize;
+    private final long flushIntervalMs;
+    private final long maxBlockMs;
+    private final int capacityLimit;
+    private final Semaphore capacity;
+
+    // Guarded by `this`. Insertion order is kept so a batch is written in send order.
+    private LinkedHashMap<String, Message> pendingInserts = new LinkedHashMap<>();
+    private LinkedHashMap<String, MessageStatus> pendingStatus = new LinkedHashMap<>();
+
+    // Serializes flushes between the background thread and callers of flush()/close()
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    public MessageWriteBehind(MessageStore storage) {
+        this(storage, 10_000, 500, 50, 5_000);
+    }
+
+    public MessageWriteBehind(MessageStore storage, int capacity, int batchSize, long flushIntervalMs, long maxBlockMs) {
+        this.storage = storage;
+        this.batchSize = batchSize;
+        this.flushIntervalMs = flushIntervalMs;
+        this.maxBlockMs = maxBlockMs;
+        this.capacityLimit = capacity;
+        this.capacity = new Semaphore(capacity);
+        this.flusher = new Thread(this::runFlusher, "mongo-write-behind");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    // Queue a new message for insertion. Blocks while the queue is full.
+    public void enqueueInsert(Message m) {
+        enqueueInserts(Collections.singletonList(m));
+    }
+
+    // Queue several messages at once: one wait for room for all of them and one lock
+    // acquisition. Lists longer than the queue's capacity are taken in capacity-sized pieces.
+    public void enqueueInserts(List<Message> batch) {
+        for (int from = 0; from < batch.size(); from += capacityLimit) {
+            List<Message> piece = batch.subList(from, Math.min(batch.size(), from + capacityLimit));
+            acquire(piece.size());
+            boolean wake;
+            synchronized (this) {
+                // close() may have run its last flush while we waited for room
+                if (!running) {
+                    capacity.release(piece.size());
+                    throw closed();
+                }
+                for (Message m : piece) pendingInserts.put(m.getId(), m);
+                wake = pendingInserts.size() >= batchSize;
+            }
+            if (wake) wakeFlusher();
+        }
+    }
+
+    private void acquire(int permits) {
+        if (!running) throw closed();
+        try {
+            if (!capacity.tryAcquire(permits, maxBlockMs, TimeUnit.MILLISECONDS)) {
+                throw new RuntimeException("Persistence queue full, try again later");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for persistence queue");
+        }
+    }
+
+    // Queue a status change. If the insert has not been written yet the document will simply be
+    // inserted with the message's current status, so nothing extra is queued.
+    public void enqueueStatus(String messageId, MessageStatus status) {
+        synchronized (this) {
+            if (pendingInserts.containsKey(messageId)) return;
+            pendingStatus.put(messageId, status); // latest status wins
+        }
+    }
+
+    // Queue the same status change for a batch of messages under one lock acquisition
+    public void enqueueStatuses(Collection<String> messageIds, MessageStatus status) {
+        synchronized (this) {
+            for (String id : messageIds) {
+                if (!pendingInserts.containsKey(id)) pendingStatus.put(id, status);
+            }
+        }
+    }
+
+    public synchronized int pendingCount() {
+        return pendingInserts.size() + pendingStatus.size();
+    }
+
+    // Write everything queued so far. Used before DB reads that must see our own writes.
+    // Nothing is dropped while the DB is unreachable; the queue just fills up.
+    public void flush() {
+        tryFlush();
+    }
+
+    // false if something stayed queued: the store is unreachable or a write failed
+    private boolean tryFlush() {
+        if (!storage.isConnected()) return pendingCount() == 0;
+        flushLock.lock();
+        try {
+            LinkedHashMap<String, Message> inserts;
+            LinkedHashMap<String, MessageStatus> statuses;
+            synchronized (this) {
+                if (pendingInserts.isEmpty() && pendingStatus.isEmpty()) return true;
+                inserts = pendingInserts;
+                statuses = pendingStatus;
+                pendingInserts = new LinkedHashMap<>();
+                pendingStatus = new LinkedHashMap<>();
+            }
+            // inserts first so status updates in the same round find their documents
+            try {
+                storage.saveMessages(new ArrayList<>(inserts.values()));
+            } catch (RuntimeException e) {
+                System.err.println("Write-behind insert failed, will retry: " + e.getMessage());
+                requeue(inserts, statuses);
+                return false;
+            }
+            capacity.release(inserts.size());
+            try {
+                // forward-only where the store can, so a late DELIVERED never undoes a READ
+                if (storage.supports(Store.Capability.ATOMIC_STATUS_TRANSITIONS)) storage.advanceStatuses(statuses);
+                else storage.applyStatusUpdates(statuses);
+            } catch (RuntimeException e) {
+                System.err.println("Write-behind status update failed, will retry: " + e.getMessage());
+                requeue(new LinkedHashMap<>(), statuses);
+                return false;
+            }
+            return true;
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    // Stop the flusher and write out everything that was accepted
+    public void close() {
+        // enqueues check it under this monitor, so none lands after the flush below
+        synchronized (this) {
+            running = false;
+        }
+        flusher.interrupt();
+        try { flusher.join(flushIntervalMs * 4); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        flush();
+    }
+
+    private void runFlusher() {
+        long backoff = 0; // > 0 after a flush that left work queued
+        while (running) {
+            synchronized (this) {
+                long deadline = System.currentTimeMillis() + (backoff > 0 ? backoff : flushIntervalMs);
+                // a full batch goes out at once, except after a failure: then the whole wait
+                // is served, so a disconnected store is not polled in a loop
+                while (running && (backoff > 0 || pendingInserts.size() < batchSize)) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) break;
+                    try { wait(left); } catch (InterruptedException e) { if (!running) return; }
+                }
+            }
+            backoff = tryFlush() ? 0 : Math.min(MAX_BACKOFF_MS, backoff > 0 ? backoff * 2 : flushIntervalMs);
+        }
+    }
+
+    private synchronized void wakeFlusher() { notifyAll(); }
+
+    private static IllegalStateException closed() {
+        return new IllegalStateException("Write-behind queue is closed");
+    }
+
+    private synchronized void requeue(LinkedHashMap<String, Message> inserts, LinkedHashMap<String, MessageStatus> statuses) {
+        // failed batch goes back in front of anything queued meanwhile; newer statuses still win
+        inserts.putAll(pendingInserts);
+        pendingInserts = inserts;
+        for (Map.Entry<String, MessageStatus> e : pendingStatus.entrySet()) statuses.put(e.getKey(), e.getValue());
+        pendingStatus = statuses;
+        for (String id : pendingInserts.keySet()) pendingStatus.remove(id);
+    }
+}
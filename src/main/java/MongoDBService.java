@@ -1,22 +1,51 @@
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
 import com.mongodb.client.*;
+import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
 import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateManyModel;
 import com.mongodb.client.model.Updates;
 import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.model.Sorts;
 import org.bson.Document;
+import org.bson.conversions.Bson;
 
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 /**
- * MongoDB-backed implementation of MongoDBService using mongodb-driver-sync.
- * Stores users in collection `users` and messages in `messages` in the configured database.
+ * MongoDB-backed MessageStore/UserStore/GroupStore using mongodb-driver-sync.
+ * Stores users in collection `users` and messages in `messages` in the configured database;
+ * groups in `groups`, group messages once each in `group_messages` and the per-member
+ * delivery state in `group_receipts` (one small document per message and member), and the
+ * per-conversation watermarks in `watermarks` (one document per direction of a conversation).
+ * Each conversation's sequence counter lives in `sequences`, so nodes sharing the database
+ * number a conversation together (nextSeq).
  */
-public class MongoDBService {
+public class MongoDBService implements SequenceStore, UserStore, GroupStore {
+    // Keeps a single $in filter well below the 16MB BSON document limit
+    private static final int MAX_IDS_PER_UPDATE = 10_000;
+    private static final Set<Capability> CAPABILITIES = Collections.unmodifiableSet(EnumSet.allOf(Capability.class));
+
     private MongoClient client;
     private MongoDatabase db;
     private MongoCollection<Document> usersColl;
     private MongoCollection<Document> messagesColl;
+    private MongoCollection<Document> groupsColl;
+    private MongoCollection<Document> groupMessagesColl;
+    private MongoCollection<Document> receiptsColl;
+    private MongoCollection<Document> marksColl;
+    private MongoCollection<Document> seqColl;
+    private final Map<String, Boolean> seededSequences = new ConcurrentHashMap<>();
     private boolean connected = false;
 
     public boolean connect(String connectionString, String dbName) {
@@ -32,8 +61,32 @@ public class MongoDBService {
 
             // create useful indexes: username unique, messages by receiver+status, messages by timestamp
             usersColl.createIndex(new Document("username", 1), new IndexOptions().unique(true));
-            messagesColl.createIndex(new Document("receiver", 1).append("status", 1));
+            usersColl.createIndex(new Document("lastSeen", -1)); // warm-up reads the most recently active
+            // an inbox backlog comes back conversation by conversation in sequence order
+            messagesColl.createIndex(new Document("receiver", 1).append("status", 1).append("conv", 1).append("seq", 1));
             messagesColl.createIndex(new Document("timestamp", 1));
+            // conversation history: keyset pagination on (conv, seq, timestamp, id), per-direction
+            // range counts on the sequence
+            messagesColl.createIndex(new Document("conv", 1).append("seq", -1).append("timestamp", -1).append("id", -1));
+            messagesColl.createIndex(new Document("sender", 1).append("receiver", 1).append("seq", -1));
+            backfillConversationKeys();
+            backfillSequences();
+            // unique message id: lets write-behind batches be retried without duplicating messages
+            messagesColl.createIndex(new Document("id", 1), new IndexOptions().unique(true));
+
+            groupsColl = db.getCollection("groups");
+            groupMessagesColl = db.getCollection("group_messages");
+            receiptsColl = db.getCollection("group_receipts");
+            groupsColl.createIndex(new Document("id", 1), new IndexOptions().unique(true));
+            groupsColl.createIndex(new Document("members", 1));
+            groupMessagesColl.createIndex(new Document("id", 1), new IndexOptions().unique(true));
+            groupMessagesColl.createIndex(new Document("groupId", 1).append("timestamp", -1).append("id", -1));
+            // receipts: a member's backlog, and all receipts of one message
+            receiptsColl.createIndex(new Document("u", 1).append("s", 1));
+            receiptsColl.createIndex(new Document("m", 1).append("u", 1), new IndexOptions().unique(true));
+            marksColl = db.getCollection("watermarks");
+            marksColl.createIndex(new Document("r", 1).append("s", 1), new IndexOptions().unique(true));
+            seqColl = db.getCollection("sequences");
 
             connected = true;
             System.out.println("Connected to MongoDB: " + connectionString + " (db: " + dbName + ")");
@@ -45,6 +98,8 @@ public class MongoDBService {
         }
     }
 
+    public Set<Capability> capabilities() { return CAPABILITIES; }
+
     public boolean isConnected() {
         return connected && client != null;
     }
@@ -56,43 +111,84 @@ public class MongoDBService {
             db = null;
             usersColl = null;
             messagesColl = null;
+            groupsColl = null;
+            groupMessagesColl = null;
+            receiptsColl = null;
         }
         connected = false;
     }
 
+    // Drops the whole configured database (benchmarks use throwaway databases)
+    void dropDatabase() {
+        if (isConnected()) db.drop();
+    }
+
     // USERS
     public void saveOrUpdateUser(User u) {
         if (!isConnected() || u == null) return;
         Document doc = new Document("username", u.getUsername())
                 .append("password", u.getPassword())
-                .append("status", u.getStatus().name());
+                .append("status", u.getStatus().name())
+                .append("lastSeen", System.currentTimeMillis());
         usersColl.updateOne(Filters.eq("username", u.getUsername()), new Document("$set", doc), new UpdateOptions().upsert(true));
     }
 
+    public User loadUser(String username) {
+        if (!isConnected() || username == null) return null;
+        Document d = usersColl.find(Filters.eq("username", username)).first();
+        return d == null ? null : docToUser(d);
+    }
+
+    public List<User> loadRecentUsers(int limit) {
+        List<User> out = new ArrayList<>();
+        if (!isConnected() || limit <= 0) return out;
+        for (Document d : usersColl.find().sort(Sorts.descending("lastSeen")).limit(limit)) out.add(docToUser(d));
+        return out;
+    }
+
     public List<User> loadAllUsers() {
         List<User> out = new ArrayList<>();
         if (!isConnected()) return out;
-        for (Document d : usersColl.find()) {
-            String username = d.getString("username");
-            String password = d.getString("password");
-            String status = d.getString("status");
-            User u = new User(username, password);
-            if (status != null) u.setStatus(UserStatus.valueOf(status));
-            out.add(u);
-        }
+        for (Document d : usersColl.find()) out.add(docToUser(d));
         return out;
     }
 
+    // Straight off the server cursor, one batch in memory at a time
+    public void forEachUser(Consumer<User> sink) {
+        if (!isConnected()) return;
+        try (MongoCursor<Document> cursor = usersColl.find().iterator()) {
+            while (cursor.hasNext()) sink.accept(docToUser(cursor.next()));
+        }
+    }
+
+    private User docToUser(Document d) {
+        String username = d.getString("username");
+        String password = d.getString("password");
+        String status = d.getString("status");
+        User u = new User(username, password);
+        if (status != null) u.setStatus(UserStatus.valueOf(status));
+        return u;
+    }
+
     // MESSAGES
     public void saveMessage(Message m) {
         if (!isConnected() || m == null) return;
-        Document doc = new Document("id", m.getId())
-                .append("sender", m.getSender())
-                .append("receiver", m.getReceiver())
-                .append("content", m.getContent())
-                .append("timestamp", m.getTimestamp().toString())
-                .append("status", m.getStatus().name());
-        messagesColl.insertOne(doc);
+        messagesColl.insertOne(messageToDoc(m));
+    }
+
+    // Batched insert used by MessageWriteBehind. Unordered, and duplicate ids (a retried batch
+    // that partially succeeded before) are ignored; any other write error is rethrown.
+    public void saveMessages(List<Message> batch) {
+        if (!isConnected() || batch == null || batch.isEmpty()) return;
+        List<Document> docs = new ArrayList<>(batch.size());
+        for (Message m : batch) docs.add(messageToDoc(m));
+        try {
+            messagesColl.insertMany(docs, new InsertManyOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            for (BulkWriteError err : e.getWriteErrors()) {
+                if (err.getCode() != 11000) throw e; // 11000 = duplicate key
+            }
+        }
     }
 
     public void updateMessageStatus(String messageId, MessageStatus newStatus) {
@@ -100,27 +196,328 @@ public class MongoDBService {
         messagesColl.updateOne(Filters.eq("id", messageId), Updates.set("status", newStatus.name()));
     }
 
+    // Move many messages to the same status with one updateMany per chunk of ids
+    public void updateMessageStatuses(Collection<String> messageIds, MessageStatus newStatus) {
+        if (!isConnected() || messageIds == null || messageIds.isEmpty()) return;
+        List<String> ids = new ArrayList<>(messageIds);
+        for (int from = 0; from < ids.size(); from += MAX_IDS_PER_UPDATE) {
+            List<String> chunk = ids.subList(from, Math.min(ids.size(), from + MAX_IDS_PER_UPDATE));
+            messagesColl.updateMany(Filters.in("id", chunk), Updates.set("status", newStatus.name()));
+        }
+    }
+
+    // Apply many independent status changes (id -> new status): one updateMany per target status,
+    // sent together in a single bulkWrite round-trip
+    public void applyStatusUpdates(Map<String, MessageStatus> updates) {
+        bulkStatusWrite(updates, false);
+    }
+
+    // Same round-trip, but each update also filters on the current status being lower, so the
+    // server applies it as a per-document compare-and-set
+    public void advanceStatuses(Map<String, MessageStatus> updates) {
+        bulkStatusWrite(updates, true);
+    }
+
+    private void bulkStatusWrite(Map<String, MessageStatus> updates, boolean forwardOnly) {
+        if (!isConnected() || updates == null || updates.isEmpty()) return;
+        Map<MessageStatus, List<String>> byStatus = new EnumMap<>(MessageStatus.class);
+        for (Map.Entry<String, MessageStatus> e : updates.entrySet()) {
+            byStatus.computeIfAbsent(e.getValue(), k -> new ArrayList<>()).add(e.getKey());
+        }
+        List<WriteModel<Document>> ops = new ArrayList<>();
+        for (Map.Entry<MessageStatus, List<String>> e : byStatus.entrySet()) {
+            List<String> ids = e.getValue();
+            for (int from = 0; from < ids.size(); from += MAX_IDS_PER_UPDATE) {
+                List<String> chunk = ids.subList(from, Math.min(ids.size(), from + MAX_IDS_PER_UPDATE));
+                Bson filter = Filters.in("id", chunk);
+                if (forwardOnly) filter = Filters.and(filter, Filters.in("status", lowerThan(e.getKey())));
+                ops.add(new UpdateManyModel<>(filter, Updates.set("status", e.getKey().name())));
+            }
+        }
+        messagesColl.bulkWrite(ops, new BulkWriteOptions().ordered(false));
+    }
+
     public List<Message> getUndeliveredMessages(String receiver) {
         List<Message> out = new ArrayList<>();
         if (!isConnected() || receiver == null) return out;
-        for (Document d : messagesColl.find(Filters.and(Filters.eq("receiver", receiver), Filters.eq("status", MessageStatus.SENT.name())))) {
-            Message m = docToMessage(d);
-            out.add(m);
+        Bson filter = Filters.and(Filters.eq("receiver", receiver), Filters.eq("status", MessageStatus.SENT.name()));
+        for (Document d : messagesColl.find(filter).sort(Sorts.ascending("conv", "seq"))) {
+            out.add(docToMessage(d));
         }
-        out.sort(Comparator.comparing(Message::getTimestamp));
         return out;
     }
 
     public List<Message> getMessageHistory(String username) {
         List<Message> out = new ArrayList<>();
         if (!isConnected() || username == null) return out;
-        for (Document d : messagesColl.find(Filters.or(Filters.eq("sender", username), Filters.eq("receiver", username)))) {
+        Bson filter = Filters.or(Filters.eq("sender", username), Filters.eq("receiver", username));
+        for (Document d : messagesColl.find(filter).sort(Sorts.ascending("timestamp", "seq", "id"))) {
             out.add(docToMessage(d));
         }
-        out.sort(Comparator.comparing(Message::getTimestamp));
         return out;
     }
 
+    // Straight off the server cursor; closing it early (the sink threw) releases it on the server
+    public void forEachInHistory(String username, Consumer<Message> sink) {
+        if (!isConnected() || username == null) return;
+        Bson filter = Filters.or(Filters.eq("sender", username), Filters.eq("receiver", username));
+        try (MongoCursor<Document> cursor = messagesColl.find(filter).sort(Sorts.ascending("timestamp", "seq", "id")).iterator()) {
+            while (cursor.hasNext()) sink.accept(docToMessage(cursor.next()));
+        }
+    }
+
+    // One page of a conversation via keyset pagination: newest `limit` messages strictly before
+    // the cursor, read from the (conv, seq, timestamp, id) index and sorted by the server.
+    // Sequenced messages are a range scan on seq; timestamp and id only order the seq-0 ones.
+    public HistoryPage getConversationPage(String username, String peer, String before, int limit) {
+        if (!isConnected() || username == null || peer == null) return new HistoryPage(Collections.emptyList(), null);
+        Bson filter = Filters.eq("conv", Message.conversationKey(username, peer));
+        if (before != null) {
+            Message c = HistoryPage.parseCursor(before);
+            String ts = c.getTimestamp().toString();
+            filter = Filters.and(filter, Filters.or(
+                    Filters.lt("seq", c.getSeq()),
+                    Filters.and(Filters.eq("seq", c.getSeq()), Filters.lt("timestamp", ts)),
+                    Filters.and(Filters.eq("seq", c.getSeq()), Filters.eq("timestamp", ts), Filters.lt("id", c.getId()))));
+        }
+        List<Message> page = new ArrayList<>(limit + 1);
+        // fetch one extra row to learn whether an older page exists
+        for (Document d : messagesColl.find(filter).sort(Sorts.descending("seq", "timestamp", "id")).limit(limit + 1)) {
+            page.add(docToMessage(d));
+        }
+        boolean more = page.size() > limit;
+        if (more) page.remove(page.size() - 1);
+        Collections.reverse(page);
+        return new HistoryPage(page, more ? HistoryPage.cursorOf(page.get(0)) : null);
+    }
+
+    // WATERMARKS
+    public List<ConversationMarks> loadMarks(String receiver) {
+        List<ConversationMarks> out = new ArrayList<>();
+        if (!isConnected() || receiver == null) return out;
+        // documents from before sequencing have no lastSeq; those conversations are counted afresh
+        for (Document d : marksColl.find(Filters.and(Filters.eq("r", receiver), Filters.exists("lastSeq")))) {
+            out.add(new ConversationMarks(d.getString("s"), receiver, longOf(d, "sent"), longOf(d, "lastSeq"),
+                    longOf(d, "delivered"), longOf(d, "deliveredSeq"), longOf(d, "read"), longOf(d, "readSeq")));
+        }
+        return out;
+    }
+
+    // One bulkWrite for the whole batch
+    public void saveMarks(Collection<ConversationMarks> batch) {
+        if (!isConnected() || batch == null || batch.isEmpty()) return;
+        List<WriteModel<Document>> ops = new ArrayList<>(batch.size());
+        for (ConversationMarks cm : batch) {
+            ConversationMarks c = cm.copy();
+            Document doc = new Document("r", c.getReceiver()).append("s", c.getSender())
+                    .append("sent", c.getSent()).append("lastSeq", c.getLastSeq())
+                    .append("delivered", c.getDelivered()).append("deliveredSeq", c.getDeliveredSeq())
+                    .append("read", c.getRead()).append("readSeq", c.getReadSeq());
+            ops.add(new ReplaceOneModel<>(Filters.and(Filters.eq("r", c.getReceiver()), Filters.eq("s", c.getSender())),
+                    doc, new ReplaceOptions().upsert(true)));
+        }
+        marksColl.bulkWrite(ops, new BulkWriteOptions().ordered(false));
+    }
+
+    // A range count and a newest-first lookup on the (sender, receiver, seq) index
+    public void catchUp(ConversationMarks cm) {
+        if (!isConnected()) return;
+        Bson filter = Filters.and(Filters.eq("sender", cm.getSender()), Filters.eq("receiver", cm.getReceiver()),
+                Filters.gt("seq", cm.getLastSeq()));
+        long n = messagesColl.countDocuments(filter);
+        if (n == 0) return;
+        Document newest = messagesColl.find(filter).sort(Sorts.descending("seq")).first();
+        cm.counted(n, newest == null ? cm.getLastSeq() : longOf(newest, "seq"));
+    }
+
+    public long countMessages(String sender, String receiver, long afterSeq, long upToSeq) {
+        if (!isConnected()) return 0;
+        return messagesColl.countDocuments(Filters.and(Filters.eq("sender", sender), Filters.eq("receiver", receiver),
+                Filters.gt("seq", afterSeq), Filters.lte("seq", upToSeq)));
+    }
+
+    public long lastSeq(String conversationKey) {
+        if (!isConnected()) return 0;
+        Document newest = messagesColl.find(Filters.eq("conv", conversationKey)).sort(Sorts.descending("seq"))
+                .projection(new Document("seq", 1)).first();
+        return newest == null ? 0 : longOf(newest, "seq");
+    }
+
+    // $inc on the conversation's counter document; the first use in this process raises the
+    // counter ($max) to the highest stored seq, so conversations from before it existed go on
+    // where their history ends
+    public long nextSeq(String conversationKey) {
+        if (!isConnected()) throw new RuntimeException("MongoDB is not connected");
+        seededSequences.computeIfAbsent(conversationKey, k -> {
+            seqColl.updateOne(Filters.eq("_id", k), Updates.max("seq", lastSeq(k)), new UpdateOptions().upsert(true));
+            return Boolean.TRUE;
+        });
+        Document d = seqColl.findOneAndUpdate(Filters.eq("_id", conversationKey), Updates.inc("seq", 1L),
+                new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+        return longOf(d, "seq");
+    }
+
+    // GROUPS
+    public void saveGroup(Group g) {
+        if (!isConnected() || g == null) return;
+        Document doc = new Document("id", g.getId())
+                .append("name", g.getName())
+                .append("createdBy", g.getCreatedBy())
+                .append("members", g.getMembers());
+        groupsColl.replaceOne(Filters.eq("id", g.getId()), doc, new ReplaceOptions().upsert(true));
+    }
+
+    public Group loadGroup(String groupId) {
+        if (!isConnected() || groupId == null) return null;
+        Document d = groupsColl.find(Filters.eq("id", groupId)).first();
+        return d == null ? null : docToGroup(d);
+    }
+
+    public List<Group> loadGroupsOf(String username) {
+        List<Group> out = new ArrayList<>();
+        if (!isConnected() || username == null) return out;
+        for (Document d : groupsColl.find(Filters.eq("members", username))) out.add(docToGroup(d));
+        return out;
+    }
+
+    // One insert for the message and one insertMany for its receipts (short field names: there
+    // is one receipt document per member)
+    public void saveGroupMessage(GroupMessage m, Roster roster, Set<String> delivered) {
+        if (!isConnected() || m == null) return;
+        try {
+            groupMessagesColl.insertOne(new Document("id", m.getId())
+                    .append("groupId", m.getGroupId())
+                    .append("sender", m.getSender())
+                    .append("content", m.getContent())
+                    .append("timestamp", m.getTimestamp().toString()));
+        } catch (com.mongodb.MongoWriteException e) {
+            if (e.getError().getCode() != 11000) throw e; // a retry; the receipts may be partly there
+        }
+        List<Document> rows = new ArrayList<>(roster.size());
+        for (String member : roster.members()) {
+            if (member.equals(m.getSender())) continue;
+            MessageStatus s = delivered.contains(member) ? MessageStatus.DELIVERED : MessageStatus.SENT;
+            rows.add(new Document("m", m.getId()).append("g", m.getGroupId()).append("u", member).append("s", s.name()));
+        }
+        if (rows.isEmpty()) return;
+        try {
+            receiptsColl.insertMany(rows, new InsertManyOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            for (BulkWriteError err : e.getWriteErrors()) {
+                if (err.getCode() != 11000) throw e;
+            }
+        }
+    }
+
+    // One updateMany per target status, in a single bulkWrite, each a compare-and-set on s
+    public void advanceReceipts(String member, Map<String, MessageStatus> updates) {
+        if (!isConnected() || member == null || updates == null || updates.isEmpty()) return;
+        Map<MessageStatus, List<String>> byStatus = new EnumMap<>(MessageStatus.class);
+        for (Map.Entry<String, MessageStatus> e : updates.entrySet()) {
+            byStatus.computeIfAbsent(e.getValue(), k -> new ArrayList<>()).add(e.getKey());
+        }
+        List<WriteModel<Document>> ops = new ArrayList<>();
+        for (Map.Entry<MessageStatus, List<String>> e : byStatus.entrySet()) {
+            List<String> ids = e.getValue();
+            for (int from = 0; from < ids.size(); from += MAX_IDS_PER_UPDATE) {
+                List<String> chunk = ids.subList(from, Math.min(ids.size(), from + MAX_IDS_PER_UPDATE));
+                Bson filter = Filters.and(Filters.eq("u", member), Filters.in("m", chunk), Filters.in("s", lowerThan(e.getKey())));
+                ops.add(new UpdateManyModel<>(filter, Updates.set("s", e.getKey().name())));
+            }
+        }
+        receiptsColl.bulkWrite(ops, new BulkWriteOptions().ordered(false));
+    }
+
+    public List<GroupMessage> getUndeliveredGroupMessages(String member) {
+        if (!isConnected() || member == null) return new ArrayList<>();
+        List<String> ids = new ArrayList<>();
+        for (Document d : receiptsColl.find(Filters.and(Filters.eq("u", member), Filters.eq("s", MessageStatus.SENT.name())))) {
+            ids.add(d.getString("m"));
+        }
+        List<GroupMessage> out = getGroupMessages(ids);
+        out.sort(Message.CHRONOLOGICAL);
+        return out;
+    }
+
+    public List<GroupMessage> getGroupMessages(Collection<String> messageIds) {
+        List<GroupMessage> out = new ArrayList<>();
+        if (!isConnected() || messageIds == null || messageIds.isEmpty()) return out;
+        List<String> ids = new ArrayList<>(messageIds);
+        for (int from = 0; from < ids.size(); from += MAX_IDS_PER_UPDATE) {
+            List<String> chunk = ids.subList(from, Math.min(ids.size(), from + MAX_IDS_PER_UPDATE));
+            for (Document d : groupMessagesColl.find(Filters.in("id", chunk))) out.add(docToGroupMessage(d));
+        }
+        return out;
+    }
+
+    public List<GroupMessage> getGroupHistory(String groupId, int limit) {
+        List<GroupMessage> out = new ArrayList<>();
+        if (!isConnected() || groupId == null) return out;
+        for (Document d : groupMessagesColl.find(Filters.eq("groupId", groupId)).sort(Sorts.descending("timestamp", "id")).limit(limit)) {
+            out.add(docToGroupMessage(d));
+        }
+        Collections.reverse(out);
+        return out;
+    }
+
+    public Map<String, MessageStatus> getReceipts(String messageId) {
+        Map<String, MessageStatus> out = new LinkedHashMap<>();
+        if (!isConnected() || messageId == null) return out;
+        for (Document d : receiptsColl.find(Filters.eq("m", messageId))) {
+            out.put(d.getString("u"), MessageStatus.valueOf(d.getString("s")));
+        }
+        return out;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Group docToGroup(Document d) {
+        return new Group(d.getString("id"), d.getString("name"), d.getString("createdBy"),
+                new Roster((List<String>) d.get("members")));
+    }
+
+    private GroupMessage docToGroupMessage(Document d) {
+        return new GroupMessage(d.getString("id"), d.getString("sender"), d.getString("groupId"),
+                d.getString("content"), LocalDateTime.parse(d.getString("timestamp")));
+    }
+
+    private static List<String> lowerThan(MessageStatus status) {
+        List<String> names = new ArrayList<>();
+        for (MessageStatus s : MessageStatus.values()) if (s.ordinal() < status.ordinal()) names.add(s.name());
+        return names;
+    }
+
+    // Documents written before the conv field existed get it computed server-side
+    private void backfillConversationKeys() {
+        String sep = String.valueOf(Message.CONVERSATION_KEY_SEPARATOR);
+        Document lower = new Document("$lte", Arrays.asList("$sender", "$receiver"));
+        Document key = new Document("$cond", Arrays.asList(lower,
+                new Document("$concat", Arrays.asList("$sender", sep, "$receiver")),
+                new Document("$concat", Arrays.asList("$receiver", sep, "$sender"))));
+        messagesColl.updateMany(Filters.exists("conv", false),
+                Collections.singletonList(new Document("$set", new Document("conv", key))));
+    }
+
+    // Messages stored before sequencing get seq 0, so the seq index and range filters cover them
+    private void backfillSequences() {
+        messagesColl.updateMany(Filters.exists("seq", false), Updates.set("seq", 0L));
+    }
+
+    private static long longOf(Document d, String field) {
+        Object v = d.get(field);
+        return v instanceof Number ? ((Number) v).longValue() : 0;
+    }
+
+    private Document messageToDoc(Message m) {
+        return new Document("id", m.getId())
+                .append("conv", m.getConversationKey())
+                .append("seq", m.getSeq())
+                .append("sender", m.getSender())
+                .append("receiver", m.getReceiver())
+                .append("content", m.getContent())
+                .append("timestamp", m.getTimestamp().toString())
+                .append("status", m.getStatus().name());
+    }
+
     private Message docToMessage(Document d) {
         String id = d.getString("id");
         String sender = d.getString("sender");
@@ -130,6 +527,7 @@ public class MongoDBService {
         LocalDateTime timestamp = ts == null ? LocalDateTime.now() : LocalDateTime.parse(ts);
         MessageStatus status = MessageStatus.valueOf(d.getString("status"));
         Message m = new Message(id, sender, receiver, content, timestamp);
+        m.setSeq(longOf(d, "seq"));
         m.setStatus(status);
         return m;
     }
@@ -0,0 +1,138 @@
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded mailbox in front of one NotificationObserver.
+ * NotificationManager only enqueues (O(1)); the observer is called later on the dispatcher
+ * executor, one drain at a time, so notifications for an observer stay in order while a
+ * slow observer never blocks senders or other observers.
+ * When the mailbox is full the overflow policy decides what gives.
+ */
+public class ObserverMailbox {
+    public enum OverflowPolicy {
+        DROP_OLDEST,     // discard the oldest queued notification
+        COALESCE_STATUS, // replace an older status update for the same message, else drop oldest
+        DISCONNECT       // close the mailbox and unregister the observer
+    }
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    // Notifications delivered per drain before yielding the dispatcher thread to other mailboxes
+    private static final int DRAIN_BATCH = 64;
+
+    private final String username;
+    private final NotificationObserver observer;
+    private final OverflowPolicy policy;
+    private final int capacity;
+    private final Executor dispatcher;
+    private final Runnable onDisconnect;
+
+    private final ArrayDeque<Notification> queue = new ArrayDeque<>(); // guarded by `this`
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile boolean closed;
+    private final LongAdder dropped = new LongAdder();
+
+    public ObserverMailbox(String username, NotificationObserver observer, OverflowPolicy policy, int capacity,
+                           Executor dispatcher, Runnable onDisconnect) {
+        this.username = username;
+        this.observer = observer;
+        this.policy = policy;
+        this.capacity = capacity;
+        this.dispatcher = dispatcher;
+        this.onDisconnect = onDisconnect;
+    }
+
+    public String getUsername() { return username; }
+    public NotificationObserver getObserver() { return observer; }
+    public long getDroppedCount() { return dropped.sum(); }
+    public boolean isClosed() { return closed; }
+
+    public synchronized int size() { return queue.size(); }
+
+    // Enqueue and make sure a drain is scheduled. Never calls the observer directly.
+    public void offer(Notification n) {
+        if (closed) return;
+        boolean overflowDisconnect = false;
+        synchronized (this) {
+            if (queue.size() >= capacity) {
+                switch (policy) {
+                    case DROP_OLDEST:
+                        queue.pollFirst();
+                        dropped.increment();
+                        break;
+                    case COALESCE_STATUS:
+                        if (!coalesce(n)) {
+                            queue.pollFirst();
+                            dropped.increment();
+                        }
+                        break;
+                    case DISCONNECT:
+                        overflowDisconnect = true;
+                        break;
+                }
+            }
+            if (!overflowDisconnect) queue.addLast(n);
+        }
+        if (overflowDisconnect) {
+            close();
+            onDisconnect.run();
+            observer.disconnected();
+            return;
+        }
+        schedule();
+    }
+
+    public void close() {
+        closed = true;
+        synchronized (this) { queue.clear(); }
+    }
+
+    // caller holds lock. Replaces a queued status update about the same message with the newer one
+    // (not batch updates: they cover more messages than their getMessage()).
+    private boolean coalesce(Notification n) {
+        if (n.getType() == NotificationType.MESSAGE_STATUS_UPDATE && n.getMessage() != null && !n.isBatch()) {
+            String id = n.getMessage().getId();
+            for (Iterator<Notification> it = queue.iterator(); it.hasNext(); ) {
+                Notification q = it.next();
+                if (q.getType() == NotificationType.MESSAGE_STATUS_UPDATE && q.getMessage() != null && !q.isBatch()
+                        && q.getMessage().getId().equals(id)) {
+                    it.remove();
+                    return true;
+                }
+            }
+        }
+        // otherwise make room by dropping the oldest status update, which a later one supersedes anyway
+        for (Iterator<Notification> it = queue.iterator(); it.hasNext(); ) {
+            if (it.next().getType() == NotificationType.MESSAGE_STATUS_UPDATE) {
+                it.remove();
+                dropped.increment();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) dispatcher.execute(this::drain);
+    }
+
+    private void drain() {
+        try {
+            for (int i = 0; i < DRAIN_BATCH && !closed; i++) {
+                Notification n;
+                synchronized (this) { n = queue.pollFirst(); }
+                if (n == null) break;
+                try {
+                    observer.update(n);
+                } catch (RuntimeException e) {
+                    System.err.println("Observer for " + username + " failed: " + e.getMessage());
+                }
+            }
+        } finally {
+            scheduled.set(false);
+        }
+        // more arrived meanwhile (or batch limit hit): go round again
+        if (!closed && size() > 0) schedule();
+    }
+}
@@ -0,0 +1,65 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Messages waiting for receivers who are offline. MessageManager appends on send and drains
+ * on login, always under the receiver's stripe lock, so per-receiver order is preserved.
+ * Draining is two steps: peek at the pending messages, then consume them once their delivery
+ * is recorded, so a failure or crash in between leaves them pending.
+ * Implementations: MemoryOfflineInbox (heap, lost on restart) and MappedOfflineInbox
+ * (memory-mapped segment files, survives restarts).
+ */
+public interface OfflineInbox extends AutoCloseable {
+    void append(Message m);
+
+    // All pending messages for receiver, oldest first; they stay pending
+    List<Message> peek(String receiver);
+
+    // The oldest `count` pending messages for receiver (as returned by peek) are delivered
+    void consume(String receiver, int count);
+
+    // peek and consume at once, for callers with nowhere to lose the messages to
+    default List<Message> drain(String receiver) {
+        List<Message> out = peek(receiver);
+        consume(receiver, out.size());
+        return out;
+    }
+
+    int pendingCount(String receiver);
+
+    @Override
+    default void close() { }
+}
+
+/* On-heap queues per receiver: the original behaviour, used when no inbox directory is set */
+class MemoryOfflineInbox implements OfflineInbox {
+    private final Map<String, Queue<Message>> queues = new ConcurrentHashMap<>();
+
+    @Override
+    public void append(Message m) {
+        queues.computeIfAbsent(m.getReceiver(), k -> new ConcurrentLinkedQueue<>()).add(m);
+    }
+
+    @Override
+    public List<Message> peek(String receiver) {
+        Queue<Message> q = queues.get(receiver);
+        return q == null ? Collections.emptyList() : new ArrayList<>(q);
+    }
+
+    @Override
+    public void consume(String receiver, int count) {
+        Queue<Message> q = queues.get(receiver);
+        if (q == null) return;
+        for (int i = 0; i < count; i++) {
+            if (q.poll() == null) break;
+        }
+        if (q.isEmpty()) queues.remove(receiver, q);
+    }
+
+    @Override
+    public int pendingCount(String receiver) {
+        Queue<Message> q = queues.get(receiver);
+        return q == null ? 0 : q.size();
+    }
+}
@@ -0,0 +1,151 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Interest-based presence. Only users who watch someone (explicitly, or because they have
+ * exchanged messages) hear about that user's status changes, and changes are coalesced over a
+ * short window and delivered as one PRESENCE_UPDATE diff per subscriber.
+ * A login costs O(1) to record; each window costs O(changes x watchers) instead of the old
+ * O(online users) broadcast per login, which made a reconnect storm O(N^2).
+ * A user who comes online also gets a snapshot of everyone they watch in the next window.
+ * Subscriptions are held only while the subscriber is online: logging out drops what they
+ * watch, and logging in rebuilds it from their contacts (setContacts), so the maps stay
+ * proportional to the online users' contacts rather than every pair that ever talked.
+ * Explicit watches last until logout.
+ */
+public class PresenceService {
+    public static final long DEFAULT_WINDOW_MS = 100;
+
+    private final UserManager userManager;
+    private final NotificationManager notificationManager;
+
+    // target -> users watching target, and the reverse for snapshots
+    private final Map<String, Set<String>> watchers = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> watching = new ConcurrentHashMap<>();
+
+    // Changes since the last window; a later change for the same user replaces the earlier one
+    private final ConcurrentHashMap<String, UserStatus> pendingChanges = new ConcurrentHashMap<>();
+    private final Set<String> pendingSnapshots = ConcurrentHashMap.newKeySet();
+
+    private final ScheduledExecutorService ticker;
+    private volatile Function<String, Collection<String>> contacts = u -> Collections.emptyList();
+
+    public PresenceService(UserManager userManager, NotificationManager notificationManager) {
+        this(userManager, notificationManager, DEFAULT_WINDOW_MS);
+    }
+
+    public PresenceService(UserManager userManager, NotificationManager notificationManager, long windowMs) {
+        this.userManager = userManager;
+        this.notificationManager = notificationManager;
+        this.ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "presence-flush");
+            t.setDaemon(true);
+            return t;
+        });
+        ticker.scheduleWithFixedDelay(this::flush, windowMs, windowMs, TimeUnit.MILLISECONDS);
+    }
+
+    // Who a user who logs in watches again: the users they have talked to
+    void setContacts(Function<String, Collection<String>> contacts) {
+        this.contacts = contacts;
+    }
+
+    // subscriber wants to hear about target's status; false if it already did
+    public boolean watch(String subscriber, String target) {
+        if (subscriber.equals(target)) return false;
+        // under compute, so it can't land in a set that unwatch is dropping
+        watchers.compute(target, (k, s) -> {
+            if (s == null) s = ConcurrentHashMap.newKeySet();
+            s.add(subscriber);
+            return s;
+        });
+        return watching.computeIfAbsent(subscriber, k -> ConcurrentHashMap.newKeySet()).add(target);
+    }
+
+    public void unwatch(String subscriber, String target) {
+        dropWatcher(target, subscriber);
+        Set<String> t = watching.get(subscriber);
+        if (t != null) t.remove(target);
+    }
+
+    // Users who talk to each other are each other's contacts. Only online users subscribe; an
+    // offline one picks the contact up from setContacts when they log in.
+    public void recordConversation(String a, String b) {
+        Set<String> t = watching.get(a);
+        if (t != null && t.contains(b)) return; // common case: already contacts, skip the writes
+        if (userManager.isOnline(a)) watch(a, b);
+        if (userManager.isOnline(b)) watch(b, a);
+    }
+
+    public void statusChanged(String username, UserStatus status) {
+        if (status == UserStatus.ONLINE) rebuild(username);
+        else forget(username);
+        pendingChanges.put(username, status);
+        if (status == UserStatus.ONLINE) pendingSnapshots.add(username);
+    }
+
+    // Number of users with subscriptions
+    public int watchingCount() {
+        return watching.size();
+    }
+
+    public void shutdown() {
+        ticker.shutdownNow();
+    }
+
+    private void rebuild(String username) {
+        try {
+            for (String peer : contacts.apply(username)) watch(username, peer);
+        } catch (RuntimeException e) {
+            System.err.println("Could not load the contacts of " + username + ": " + e.getMessage());
+        }
+    }
+
+    // The user went offline: drop what they watch (who watches them stays, for their watchers)
+    private void forget(String username) {
+        Set<String> targets = watching.remove(username);
+        if (targets == null) return;
+        for (String target : targets) dropWatcher(target, username);
+    }
+
+    private void dropWatcher(String target, String subscriber) {
+        watchers.computeIfPresent(target, (k, s) -> {
+            s.remove(subscriber);
+            return s.isEmpty() ? null : s;
+        });
+    }
+
+    // Build and publish one diff per affected subscriber. Runs on the ticker thread.
+    void flush() {
+        if (pendingChanges.isEmpty() && pendingSnapshots.isEmpty()) return;
+        Map<String, Map<String, UserStatus>> diffs = new HashMap<>();
+
+        for (String user : pendingChanges.keySet()) {
+            UserStatus status = pendingChanges.remove(user);
+            if (status == null) continue;
+            Set<String> subs = watchers.get(user);
+            if (subs == null) continue;
+            for (String sub : subs) {
+                if (userManager.isOnline(sub)) diffs.computeIfAbsent(sub, k -> new HashMap<>()).put(user, status);
+            }
+        }
+        for (String sub : pendingSnapshots) {
+            pendingSnapshots.remove(sub);
+            Set<String> targets = watching.get(sub);
+            if (targets == null || !userManager.isOnline(sub)) continue;
+            Map<String, UserStatus> diff = diffs.computeIfAbsent(sub, k -> new HashMap<>());
+            for (String target : targets) {
+                diff.putIfAbsent(target, userManager.isOnline(target) ? UserStatus.ONLINE : UserStatus.OFFLINE);
+            }
+        }
+
+        for (Map.Entry<String, Map<String, UserStatus>> e : diffs.entrySet()) {
+            if (e.getValue().isEmpty()) continue;
+            notificationManager.notifyUser(e.getKey(), Notification.presence(e.getValue()));
+        }
+    }
+}
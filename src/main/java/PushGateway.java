@@ -0,0 +1,155 @@
+import com.google.gson.Gson;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketError;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
+import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * WebSocket push channel for web clients, mounted by RESTServer at /ws?token=<token> with a
+ * session token from /api/login; the session names the user to push for. Each connection
+ * registers a NotificationObserver with NotificationManager and streams NEW_MESSAGE /
+ * MESSAGE_STATUS_UPDATE / PRESENCE_UPDATE events as compact JSON frames, so clients no longer
+ * poll /api/messages. Connections are attached to their session (SessionManager.attach):
+ * a session has at most MAX_SOCKETS_PER_SESSION of them, and logout or expiry closes them.
+ * Writes are asynchronous (Jetty NIO), so idle connections cost no threads. Each connection
+ * may have at most maxPendingFrames unacknowledged writes; a client that falls further
+ * behind is disconnected as a slow consumer rather than buffering without bound.
+ */
+@WebSocket
+public class PushGateway {
+    public static final int DEFAULT_MAX_PENDING_FRAMES = 256;
+
+    private static final Gson gson = new Gson();
+
+    private final MessagingServer server;
+    private final SessionManager sessions;
+    private final int maxPendingFrames;
+    private final Map<Session, PushConnection> connections = new ConcurrentHashMap<>();
+
+    public PushGateway(MessagingServer server, SessionManager sessions) {
+        this(server, sessions, DEFAULT_MAX_PENDING_FRAMES);
+    }
+
+    public PushGateway(MessagingServer server, SessionManager sessions, int maxPendingFrames) {
+        this.server = server;
+        this.sessions = sessions;
+        this.maxPendingFrames = maxPendingFrames;
+    }
+
+    @OnWebSocketConnect
+    public void onConnect(Session session) {
+        List<String> tokens = session.getUpgradeRequest().getParameterMap().get("token");
+        SessionManager.Session login = tokens == null || tokens.isEmpty() ? null : sessions.resolve(tokens.get(0));
+        if (login == null) {
+            session.close(StatusCode.POLICY_VIOLATION, "Not logged in");
+            return;
+        }
+        PushConnection conn = new PushConnection(login, session);
+        connections.put(session, conn);
+        // the mailbox bounds what we hold for this client; overflowing it drops the connection
+        server.getNotificationManager().registerObserver(conn.username, conn, ObserverMailbox.OverflowPolicy.DISCONNECT);
+        // attached after registering, so a session that ends in between still finds it (or we
+        // undo the registration)
+        if (!sessions.attach(login, conn)) {
+            connections.remove(session);
+            server.getNotificationManager().removeObserver(conn.username, conn);
+            session.close(StatusCode.POLICY_VIOLATION, "Too many connections for this session");
+        }
+    }
+
+    @OnWebSocketClose
+    public void onClose(Session session, int statusCode, String reason) {
+        detach(session);
+    }
+
+    @OnWebSocketError
+    public void onError(Session session, Throwable error) {
+        detach(session);
+    }
+
+    // Clients only listen; anything they send is ignored (pings are handled by Jetty)
+    @OnWebSocketMessage
+    public void onMessage(Session session, String text) { }
+
+    public int getConnectionCount() { return connections.size(); }
+
+    private void detach(Session session) {
+        PushConnection conn = connections.remove(session);
+        if (conn == null) return;
+        server.getNotificationManager().removeObserver(conn.username, conn);
+        sessions.detach(conn.login, conn);
+    }
+
+    static Map<String, Object> eventToMap(Notification n) {
+        Map<String, Object> event = new LinkedHashMap<>();
+        event.put("type", n.getType().name());
+        event.put("user", n.getUsername());
+        event.put("note", n.getNote());
+        if (n.getMessage() != null) event.put("message", RESTServer.messageToMap(n.getMessage()));
+        if (n.isBatch()) {
+            List<Map<String, Object>> batch = new ArrayList<>();
+            for (Message m : n.getMessages()) batch.add(RESTServer.messageToMap(m));
+            event.put("messages", batch);
+        }
+        if (n.getPresence() != null) event.put("presence", n.getPresence());
+        if (n.getReadUpTo() != null) event.put("readUpTo", n.getReadUpTo());
+        return event;
+    }
+
+    private class PushConnection implements NotificationObserver, WriteCallback, SessionManager.Attachment {
+        final SessionManager.Session login;
+        final String username;
+        final Session session;
+        final AtomicInteger pending = new AtomicInteger();
+
+        PushConnection(SessionManager.Session login, Session session) {
+            this.login = login;
+            this.username = login.getUsername();
+            this.session = session;
+        }
+
+        @Override
+        public void update(Notification notification) {
+            if (!session.isOpen()) return;
+            if (pending.incrementAndGet() > maxPendingFrames) {
+                // slow consumer: drop it; the client reconnects and reloads history
+                pending.decrementAndGet();
+                detach(session);
+                session.close(StatusCode.TRY_AGAIN_LATER, "Slow consumer");
+                return;
+            }
+            session.getRemote().sendString(gson.toJson(eventToMap(notification)), this);
+        }
+
+        @Override
+        public void disconnected() {
+            // the mailbox has already removed itself
+            if (connections.remove(session) != null) sessions.detach(login, this);
+            session.close(StatusCode.TRY_AGAIN_LATER, "Slow consumer");
+        }
+
+        @Override
+        public void sessionEnded() {
+            if (connections.remove(session) == null) return;
+            server.getNotificationManager().removeObserver(username, this);
+            session.close(StatusCode.POLICY_VIOLATION, "Session ended");
+        }
+
+        @Override
+        public void writeSuccess() { pending.decrementAndGet(); }
+
+        @Override
+        public void writeFailed(Throwable x) {
+            pending.decrementAndGet();
+            detach(session);
+        }
+    }
+}
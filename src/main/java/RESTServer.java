@@ -1,60 +1,119 @@
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
 import spark.Filter;
 import spark.Request;
 import spark.Response;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
 
+import javax.servlet.http.HttpServletResponse;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
 
 import static spark.Spark.*;
 
 public class RESTServer {
-    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    // Compact JSON unless -Dwhatsapp.json.pretty=true (for reading responses by hand)
+    private static final boolean PRETTY_JSON = Boolean.getBoolean("whatsapp.json.pretty");
+    private static final Gson gson = PRETTY_JSON
+            ? new GsonBuilder().setPrettyPrinting().serializeNulls().create()
+            : new GsonBuilder().serializeNulls().create();
+    private static final int STREAM_BUFFER_CHARS = 8192;
+    private static final int DEFAULT_PAGE_SIZE = 50;
+    private static final int MAX_PAGE_SIZE = 500;
+    public static final int MAX_BATCH_SIZE = Integer.getInteger("whatsapp.batch.maxSize", 1000);
+    // Idle push connections are kept for a while; clients ping to stay connected longer
+    private static final int WS_IDLE_TIMEOUT_MS = 10 * 60 * 1000;
+
+    // PLATFORM: Jetty's fixed pool of maxThreads runs every request.
+    // VIRTUAL: one virtual thread per request (Java 21+), maxThreads only sizes Jetty's I/O threads.
+    public enum ThreadMode { PLATFORM, VIRTUAL }
+
+    public static final int DEFAULT_MAX_THREADS = 200;
+    private static final int MIN_THREADS = 8;
+    private static final int THREAD_IDLE_TIMEOUT_MS = 60_000;
+
+    private static SessionManager sessions;
 
     public static void start(MessagingServer server, int port) {
+        start(server, port, ThreadMode.PLATFORM, DEFAULT_MAX_THREADS);
+    }
+
+    public static void start(MessagingServer server, int port, ThreadMode mode, int maxThreads) {
+        if (mode == ThreadMode.VIRTUAL) {
+            ExecutorService virtualThreads = RequestThreadPool.newVirtualExecutor();
+            if (virtualThreads == null) throw new RuntimeException("Virtual threads require Java 21 or newer");
+            int ioThreads = Math.min(maxThreads, Runtime.getRuntime().availableProcessors() + 4);
+            EmbeddedServers.add(EmbeddedServers.defaultIdentifier(),
+                    new EmbeddedJettyFactory().withThreadPool(new RequestThreadPool(virtualThreads, ioThreads)));
+        } else {
+            threadPool(maxThreads, Math.min(MIN_THREADS, maxThreads), THREAD_IDLE_TIMEOUT_MS);
+        }
         port(port);
+        sessions = new SessionManager(server);
+        // WebSocket routes must be mapped before any HTTP route
+        webSocketIdleTimeoutMillis(WS_IDLE_TIMEOUT_MS);
+        webSocket("/ws", new PushGateway(server, sessions));
         enableCORS("*", "GET,POST,OPTIONS", "Content-Type,Authorization");
 
         get("/api/health", (req, res) -> {
             res.type("application/json");
-            return gson.toJson(Map.of("ok", true));
+            Map<String, Object> body = new LinkedHashMap<>();
+            body.put("ok", true);
+            body.put("storage", server.getStorageName());
+            body.put("persistent", server.isPersistent());
+            body.put("capabilities", server.getStorageCapabilities());
+            if (server.getCluster() != null) {
+                body.put("node", server.getCluster().getSelf());
+                body.put("nodes", server.getCluster().getNodes());
+            }
+            return gson.toJson(body);
         });
 
         post("/api/register", (req, res) -> {
             res.type("application/json");
-            Map body = gson.fromJson(req.body(), Map.class);
-            String username = (String) body.get("username");
-            String password = (String) body.get("password");
+            RestRequests.Credentials body = RestRequests.read(req, RestRequests.CREDENTIALS);
             try {
-                server.registerUser(username, password);
-                return gson.toJson(Map.of("ok", true, "username", username));
+                server.registerUser(body.username, body.password);
+                return gson.toJson(Map.of("ok", true, "username", body.username));
             } catch (Exception e) {
                 res.status(400);
                 return gson.toJson(Map.of("ok", false, "error", e.getMessage()));
             }
         });
 
+        // Opens a session: later calls send "Authorization: Bearer <token>" and act as this user
         post("/api/login", (req, res) -> {
             res.type("application/json");
-            Map body = gson.fromJson(req.body(), Map.class);
-            String username = (String) body.get("username");
-            String password = (String) body.get("password");
+            RestRequests.Credentials body = RestRequests.read(req, RestRequests.CREDENTIALS);
             try {
-                // Use a no-op observer — notifications are printed to server console
-                server.loginUser(username, password, notification -> System.out.println("[notify] " + notification.getNote()));
-                return gson.toJson(Map.of("ok", true, "username", username));
+                SessionManager.Session session = sessions.login(body.username, body.password);
+                return gson.toJson(Map.of("ok", true, "username", body.username, "token", session.getToken(),
+                        "expiresAt", session.getExpiresAt()));
             } catch (Exception e) {
                 res.status(400);
                 return gson.toJson(Map.of("ok", false, "error", e.getMessage()));
             }
         });
 
+        // Ends the caller's session (and its notification observer)
         post("/api/logout", (req, res) -> {
             res.type("application/json");
-            Map body = gson.fromJson(req.body(), Map.class);
-            String username = (String) body.get("username");
+            if (!sessions.logout(bearerToken(req))) throw new RestRequests.ClientError(401, "Not logged in");
+            return gson.toJson(Map.of("ok", true));
+        });
+
+        post("/api/presence/watch", (req, res) -> {
+            res.type("application/json");
+            String caller = caller(req);
+            RestRequests.Watch body = RestRequests.read(req, RestRequests.WATCH);
+            String username = RestRequests.actingAs(body.username, caller);
             try {
-                server.logoutUser(username, null);
+                server.watchPresence(username, body.target);
                 return gson.toJson(Map.of("ok", true));
             } catch (Exception e) {
                 res.status(400);
@@ -62,23 +121,23 @@ public class RESTServer {
             }
         });
 
-        get("/api/users", (req, res) -> {
-            res.type("application/json");
-            List<Map<String, Object>> out = new ArrayList<>();
-            for (User u : server.listUsers()) {
-                out.add(Map.of("username", u.getUsername(), "status", u.getStatus().name()));
-            }
-            return gson.toJson(out);
-        });
+        // Streamed: rows go out as the store's cursor yields them
+        get("/api/users", (req, res) -> streamJson(res, w -> {
+            w.beginArray();
+            server.forEachUser(rows(u -> w.beginObject()
+                    .name("username").value(u.getUsername())
+                    .name("status").value(u.getStatus().name())
+                    .endObject()));
+            w.endArray();
+        }));
 
         post("/api/message", (req, res) -> {
             res.type("application/json");
-            Map body = gson.fromJson(req.body(), Map.class);
-            String sender = (String) body.get("sender");
-            String receiver = (String) body.get("receiver");
-            String content = (String) body.get("content");
+            String caller = caller(req);
+            RestRequests.Send body = RestRequests.read(req, RestRequests.SEND);
+            String sender = RestRequests.actingAs(body.sender, caller);
             try {
-                Message m = server.sendMessage(sender, receiver, content);
+                Message m = server.sendMessage(sender, body.receiver, body.content);
                 return gson.toJson(Map.of("ok", true, "messageId", m.getId()));
             } catch (Exception e) {
                 res.status(400);
@@ -86,33 +145,215 @@ public class RESTServer {
             }
         });
 
+        // Batch send: a JSON array of {receiver, content}, or the same objects as NDJSON (one per
+        // line), all from the caller. Runs as one MessageManager batch; the response has a result
+        // per item, in request order.
+        post("/api/message/batch", (req, res) -> {
+            List<BatchedSend> items = RestRequests.readSends(req, caller(req));
+            server.sendBatch(items);
+            int sent = 0;
+            for (BatchedSend item : items) if (item.isSent()) sent++;
+            int sentCount = sent;
+            return streamJson(res, w -> {
+                w.beginObject().name("ok").value(true).name("sent").value(sentCount)
+                        .name("failed").value(items.size() - sentCount).name("results").beginArray();
+                for (BatchedSend item : items) {
+                    w.beginObject().name("ok").value(item.isSent());
+                    if (item.isSent()) w.name("messageId").value(item.getMessage().getId()).name("seq").value(item.getMessage().getSeq());
+                    else w.name("error").value(item.getError());
+                    w.endObject();
+                }
+                w.endArray().endObject();
+            });
+        });
+
+        // Streamed like /api/users: a user's whole history is never held for the response
         get("/api/messages/:username", (req, res) -> {
+            String username = caller(req, req.params(":username"));
+            return streamJson(res, w -> {
+                w.beginArray();
+                server.forEachInHistory(username, rows(m -> writeMessage(w, m)));
+                w.endArray();
+            });
+        });
+
+        // Paginated conversation: /api/messages/alice/bob?limit=50&before=<nextCursor>
+        get("/api/messages/:username/:peer", (req, res) -> {
+            res.type("application/json");
+            String username = caller(req, req.params(":username"));
+            String peer = req.params(":peer");
+            int limit = pageLimit(req);
+            try {
+                HistoryPage page = server.getConversationPage(username, peer, req.queryParams("before"), limit);
+                List<Map<String, Object>> out = new ArrayList<>();
+                for (Message m : page.getMessages()) out.add(messageToMap(m));
+                Map<String, Object> body = new LinkedHashMap<>();
+                body.put("messages", out);
+                body.put("nextCursor", page.getNextCursor());
+                body.put("hasMore", page.hasMore());
+                return gson.toJson(body);
+            } catch (Exception e) {
+                res.status(400);
+                return gson.toJson(Map.of("ok", false, "error", String.valueOf(e.getMessage())));
+            }
+        });
+
+        // Groups, same routes as the Node backend plus member removal and read receipts
+        post("/api/groups", (req, res) -> {
+            res.type("application/json");
+            String caller = caller(req);
+            RestRequests.NewGroup body = RestRequests.read(req, RestRequests.NEW_GROUP);
+            String createdBy = RestRequests.actingAs(body.createdBy, caller);
+            try {
+                Group g = server.createGroup(body.name, createdBy, body.members);
+                return gson.toJson(groupToMap(g));
+            } catch (Exception e) {
+                res.status(400);
+                return gson.toJson(Map.of("ok", false, "error", String.valueOf(e.getMessage())));
+            }
+        });
+
+        // Members (and the creator) manage the roster
+        post("/api/groups/:id/add", (req, res) -> {
+            res.type("application/json");
+            String caller = caller(req);
+            Group g = pathGroup(server, req);
+            if (!g.isMember(caller) && !caller.equals(g.getCreatedBy())) throw notMember();
+            RestRequests.UserRef body = RestRequests.read(req, RestRequests.USER);
+            try {
+                return gson.toJson(groupToMap(server.addGroupMember(req.params(":id"), body.username)));
+            } catch (Exception e) {
+                res.status(400);
+                return gson.toJson(Map.of("ok", false, "error", String.valueOf(e.getMessage())));
+            }
+        });
+
+        // Members (and the creator) manage the roster
+        post("/api/groups/:id/remove", (req, res) -> {
+            res.type("application/json");
+            String caller = caller(req);
+            Group g = pathGroup(server, req);
+            if (!g.isMember(caller) && !caller.equals(g.getCreatedBy())) throw notMember();
+            RestRequests.UserRef body = RestRequests.read(req, RestRequests.USER);
+            try {
+                return gson.toJson(groupToMap(server.removeGroupMember(req.params(":id"), body.username)));
+            } catch (Exception e) {
+                res.status(400);
+                return gson.toJson(Map.of("ok", false, "error", String.valueOf(e.getMessage())));
+            }
+        });
+
+        get("/api/groups/user/:username", (req, res) -> {
             res.type("application/json");
-            String username = req.params(":username");
-            List<Message> messages = server.getMessageHistory(username);
             List<Map<String, Object>> out = new ArrayList<>();
-            for (Message m : messages) {
-                out.add(Map.of(
-                        "id", m.getId(),
-                        "sender", m.getSender(),
-                        "receiver", m.getReceiver(),
-                        "content", m.getContent(),
-                        "timestamp", m.getTimestamp().toString(),
-                        "status", m.getStatus().name()
-                ));
+            for (Group g : server.listUserGroups(caller(req, req.params(":username")))) out.add(groupToMap(g));
+            return gson.toJson(out);
+        });
+
+        // The newest `limit` messages, oldest first
+        get("/api/groups/:id/messages", (req, res) -> {
+            res.type("application/json");
+            if (!pathGroup(server, req).isMember(caller(req))) throw notMember();
+            int limit = pageLimit(req);
+            try {
+                List<GroupMessage> history = server.getGroupHistory(req.params(":id"), limit);
+                return streamJson(res, w -> {
+                    w.beginArray();
+                    for (Message m : history) writeMessage(w, m);
+                    w.endArray();
+                });
+            } catch (Exception e) {
+                res.status(404);
+                return gson.toJson(Map.of("ok", false, "error", String.valueOf(e.getMessage())));
             }
+        });
+
+        post("/api/groups/:id/message", (req, res) -> {
+            res.type("application/json");
+            String caller = caller(req);
+            RestRequests.GroupSend body = RestRequests.read(req, RestRequests.GROUP_SEND);
+            String from = RestRequests.actingAs(body.from, caller);
+            try {
+                GroupMessage m = server.sendGroupMessage(from, req.params(":id"), body.content);
+                return gson.toJson(Map.of("ok", true, "message", messageToMap(m)));
+            } catch (Exception e) {
+                res.status(400);
+                return gson.toJson(Map.of("ok", false, "error", String.valueOf(e.getMessage())));
+            }
+        });
+
+        post("/api/groups/:id/read", (req, res) -> {
+            res.type("application/json");
+            String caller = caller(req);
+            RestRequests.GroupRead body = RestRequests.read(req, RestRequests.GROUP_READ);
+            String username = RestRequests.actingAs(body.username, caller);
+            server.markGroupMessagesRead(username, body.messageIds == null ? Collections.emptyList() : body.messageIds);
+            return gson.toJson(Map.of("ok", true));
+        });
+
+        // Per-member status of one group message
+        get("/api/groups/:id/receipts/:messageId", (req, res) -> {
+            res.type("application/json");
+            if (!pathGroup(server, req).isMember(caller(req))) throw notMember();
+            Map<String, MessageStatus> receipts;
+            try {
+                receipts = server.getGroupReceipts(req.params(":id"), req.params(":messageId"));
+            } catch (Exception e) {
+                res.status(404);
+                return gson.toJson(Map.of("ok", false, "error", String.valueOf(e.getMessage())));
+            }
+            Map<String, String> out = new LinkedHashMap<>();
+            for (Map.Entry<String, MessageStatus> e : receipts.entrySet()) out.put(e.getKey(), e.getValue().name());
             return gson.toJson(out);
         });
 
+        // peer -> unread count, from the read watermarks
+        get("/api/unread/:username", (req, res) -> {
+            res.type("application/json");
+            return gson.toJson(server.getUnreadCounts(caller(req, req.params(":username"))));
+        });
+
+        // Marks everything received from `peer` read (every conversation when peer is omitted)
+        post("/api/read", (req, res) -> {
+            res.type("application/json");
+            String caller = caller(req);
+            RestRequests.MarkRead body = RestRequests.read(req, RestRequests.MARK_READ);
+            String username = RestRequests.actingAs(body.username, caller);
+            try {
+                server.markConversationsRead(username, body.peer == null ? null : Collections.singletonList(body.peer));
+                return gson.toJson(Map.of("ok", true));
+            } catch (Exception e) {
+                res.status(400);
+                return gson.toJson(Map.of("ok", false, "error", String.valueOf(e.getMessage())));
+            }
+        });
+
+        get("/api/stats/cache", (req, res) -> {
+            res.type("application/json");
+            ConversationCache cache = server.getConversationCache();
+            Map<String, Object> body = new LinkedHashMap<>();
+            body.put("hits", cache.getHits());
+            body.put("misses", cache.getMisses());
+            body.put("evictions", cache.getEvictions());
+            body.put("conversations", cache.getConversationCount());
+            body.put("estimatedBytes", cache.getEstimatedBytes());
+            return gson.toJson(body);
+        });
+
         post("/api/configure-db", (req, res) -> {
             res.type("application/json");
-            Map body = gson.fromJson(req.body(), Map.class);
-            String uri = (String) body.get("uri");
-            String dbName = (String) body.get("db");
-            boolean ok = server.configureMongo(uri, dbName);
+            RestRequests.DbConfig body = RestRequests.read(req, RestRequests.DB_CONFIG);
+            boolean ok = server.configureMongo(body.uri, body.db);
             return gson.toJson(Map.of("ok", ok));
         });
 
+        // Requests refused before the route runs: bad bodies (RestRequests), missing sessions
+        exception(RestRequests.ClientError.class, (e, req, res) -> {
+            res.type("application/json");
+            res.status(e.getStatus());
+            res.body(gson.toJson(Map.of("ok", false, "error", String.valueOf(e.getMessage()))));
+        });
+
         exception(Exception.class, (e, req, res) -> {
             res.type("application/json");
             res.status(500);
@@ -123,6 +364,136 @@ public class RESTServer {
         before((request, response) -> response.type("application/json"));
     }
 
+    public static SessionManager getSessions() { return sessions; }
+
+    static String bearerToken(Request req) {
+        String auth = req.headers("Authorization");
+        if (auth == null || !auth.regionMatches(true, 0, "Bearer ", 0, 7)) return null;
+        return auth.substring(7).trim();
+    }
+
+    // The user whose session the request's bearer token names; 401 without a live session
+    static String caller(Request req) {
+        SessionManager.Session session = sessions.resolve(bearerToken(req));
+        if (session == null) throw new RestRequests.ClientError(401, "Not logged in");
+        return session.getUsername();
+    }
+
+    // For routes about `username` (path parameter): only that user's own session may call them
+    static String caller(Request req, String username) {
+        return RestRequests.actingAs(username, caller(req));
+    }
+
+    // The limit query parameter, DEFAULT_PAGE_SIZE if absent, at most MAX_PAGE_SIZE; 400 unless
+    // it is a positive integer
+    static int pageLimit(Request req) {
+        String limit = req.queryParams("limit");
+        if (limit == null) return DEFAULT_PAGE_SIZE;
+        try {
+            int n = Integer.parseInt(limit.trim());
+            if (n > 0) return Math.min(MAX_PAGE_SIZE, n);
+        } catch (NumberFormatException e) {
+            // falls through to the ClientError
+        }
+        throw RestRequests.invalid("limit must be a positive integer");
+    }
+
+    // The group named by the :id path parameter; 404 if there is none
+    static Group pathGroup(MessagingServer server, Request req) {
+        Group g = server.getGroup(req.params(":id"));
+        if (g == null) throw new RestRequests.ClientError(404, "No such group");
+        return g;
+    }
+
+    static RestRequests.ClientError notMember() {
+        return new RestRequests.ClientError(403, "Not a member of this group");
+    }
+
+    interface JsonBody {
+        void write(JsonWriter w) throws IOException;
+    }
+
+    interface JsonRow<T> {
+        void write(T row) throws IOException;
+    }
+
+    // Writes the body straight to the servlet output stream through a small buffer, so memory
+    // per request stays constant and the first rows leave before the last are read. The route
+    // returns "" and Spark adds nothing. A client that goes away mid-stream just ends it. Any
+    // other failure before the first byte is sent becomes the usual error response; after it,
+    // the status is gone, so the failure is logged and the connection aborted (the client sees
+    // a truncated response instead of a well-formed prefix).
+    static String streamJson(Response res, JsonBody body) throws IOException {
+        res.type("application/json");
+        res.raw().setCharacterEncoding("UTF-8");
+        Writer out = new BufferedWriter(new OutputStreamWriter(res.raw().getOutputStream(), StandardCharsets.UTF_8),
+                STREAM_BUFFER_CHARS);
+        JsonWriter w = new JsonWriter(out);
+        if (PRETTY_JSON) w.setIndent("  ");
+        try {
+            body.write(w);
+            w.flush(); // not closed: the container owns the stream
+        } catch (UncheckedIOException | EOFException e) {
+            // client disconnected
+        } catch (IOException | RuntimeException e) {
+            if (!res.raw().isCommitted()) {
+                res.raw().resetBuffer();
+                throw e;
+            }
+            System.err.println("Aborting streamed response: " + e);
+            HttpServletResponse raw = org.eclipse.jetty.server.Response.unwrap(res.raw());
+            if (raw instanceof org.eclipse.jetty.server.Response) {
+                ((org.eclipse.jetty.server.Response) raw).getHttpChannel().abort(e);
+            }
+        }
+        return "";
+    }
+
+    // Adapts a row writer to the Consumer the server's forEach methods take
+    static <T> Consumer<T> rows(JsonRow<T> row) {
+        return t -> {
+            try {
+                row.write(t);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    // Same fields as messageToMap
+    static void writeMessage(JsonWriter w, Message m) throws IOException {
+        w.beginObject()
+                .name("id").value(m.getId())
+                .name("sender").value(m.getSender())
+                .name("receiver").value(m.getReceiver())
+                .name("content").value(m.getContent())
+                .name("timestamp").value(m.getTimestamp().toString())
+                .name("seq").value(m.getSeq())
+                .name("status").value(m.getStatus().name())
+                .endObject();
+    }
+
+    static Map<String, Object> messageToMap(Message m) {
+        return Map.of(
+                "id", m.getId(),
+                "sender", m.getSender(),
+                "receiver", m.getReceiver(),
+                "content", m.getContent(),
+                "timestamp", m.getTimestamp().toString(),
+                "seq", m.getSeq(),
+                "status", m.getStatus().name()
+        );
+    }
+
+    static Map<String, Object> groupToMap(Group g) {
+        return Map.of(
+                "id", g.getId(),
+                "name", g.getName(),
+                "createdBy", g.getCreatedBy(),
+                "members", g.getMembers()
+        );
+    }
+
     private static void enableCORS(final String origin, final String methods, final String headers) {
         options("/*", (request, response) -> {
             String accessControlRequestHeaders = request.headers("Access-Control-Request-Headers");
@@ -0,0 +1,87 @@
+import org.eclipse.jetty.util.component.ContainerLifeCycle;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.eclipse.jetty.util.thread.strategy.EatWhatYouKill;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Jetty thread pool for RESTServer's virtual-thread mode.
+ * Jetty's own long-lived loops (acceptors and selector producers) stay on a small platform
+ * pool, since a selector blocked in select() would pin a virtual thread's carrier. Every other
+ * task, i.e. HTTP request handling and anything it blocks on (MongoDB calls), gets its own
+ * virtual thread, so slow DB calls no longer exhaust a fixed pool.
+ * Not a TryExecutor on purpose: without reserved threads Jetty's selector never runs a
+ * request inline ("eat what you kill") and hands each one to execute() instead.
+ * Virtual threads need Java 21; on older JVMs newVirtualExecutor() returns null.
+ */
+public class RequestThreadPool extends ContainerLifeCycle implements ThreadPool {
+    private final QueuedThreadPool infrastructure;
+    private final ExecutorService requests;
+    private final AtomicInteger active = new AtomicInteger();
+
+    public RequestThreadPool(ExecutorService requests, int infrastructureThreads) {
+        this.requests = requests;
+        this.infrastructure = new QueuedThreadPool(infrastructureThreads, infrastructureThreads);
+        this.infrastructure.setName("jetty-io");
+        addBean(infrastructure);
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() looked up reflectively so the project still
+    // builds for Java 11/17; null when the running JVM has no virtual threads.
+    public static ExecutorService newVirtualExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (isInfrastructure(task)) {
+            infrastructure.execute(task);
+            return;
+        }
+        active.incrementAndGet();
+        requests.execute(() -> {
+            try {
+                task.run();
+            } finally {
+                active.decrementAndGet();
+            }
+        });
+    }
+
+    private static boolean isInfrastructure(Runnable task) {
+        if (task instanceof EatWhatYouKill) return true;
+        String name = task.getClass().getName();
+        return name.startsWith("org.eclipse.jetty.io.ManagedSelector")
+                || name.startsWith("org.eclipse.jetty.server.AbstractConnector");
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        super.doStop();
+        requests.shutdown();
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        infrastructure.join();
+        requests.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int getThreads() { return infrastructure.getThreads() + active.get(); }
+
+    // Request threads are created per task, so there is never a shortage to report
+    @Override
+    public int getIdleThreads() { return infrastructure.getIdleThreads(); }
+
+    @Override
+    public boolean isLowOnThreads() { return false; }
+}
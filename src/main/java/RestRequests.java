@@ -0,0 +1,420 @@
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import spark.Request;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestWrapper;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Typed bodies of RESTServer's POST routes. Each has a hand-written RequestAdapter, built once,
+ * that reads the fields straight off the request stream (no LinkedTreeMap, no reflection, no
+ * body String) and validates while it reads: wrong types, missing fields, over-long strings
+ * and lists fail with a ClientError before the route runs. Unknown fields are skipped and
+ * null counts as missing.
+ * Bodies are capped at MAX_BODY_BYTES (MAX_BATCH_BODY_BYTES for batch sends), checked against
+ * Content-Length up front and while reading chunked bodies.
+ */
+public final class RestRequests {
+    public static final int MAX_BODY_BYTES = Integer.getInteger("whatsapp.rest.maxBodyBytes", 64 << 10);
+    public static final int MAX_BATCH_BODY_BYTES = Integer.getInteger("whatsapp.rest.maxBatchBodyBytes", 8 << 20);
+    public static final int MAX_NAME_CHARS = 128;
+    public static final int MAX_CONTENT_CHARS = Integer.getInteger("whatsapp.rest.maxContentChars", 32 << 10);
+    private static final int READ_BUFFER_BYTES = 512;
+
+    private RestRequests() { }
+
+    /**
+     * A request refused before the route runs: 400 (malformed or invalid body), 401 / 403 (no
+     * session, or the body names another user than the session's, or a group the caller is
+     * not in), 404 (no such group) or 413 (too large).
+     */
+    public static class ClientError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        public ClientError(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+        public int getStatus() { return status; }
+    }
+
+    static final class Credentials {
+        String username, password;
+    }
+
+    // username / sender / createdBy / from below name the acting user: optional, and when given
+    // it must be the session's user (actingAs)
+
+    static final class Watch {
+        String username, target;
+    }
+
+    static final class Send {
+        String sender, receiver, content;
+    }
+
+    static final class UserRef {
+        String username;
+    }
+
+    static final class NewGroup {
+        String name, createdBy;
+        List<String> members;
+    }
+
+    static final class GroupSend {
+        String from, content;
+    }
+
+    static final class GroupRead {
+        String username;
+        List<String> messageIds;
+    }
+
+    static final class MarkRead {
+        String username, peer; // peer optional: every conversation
+    }
+
+    static final class DbConfig {
+        String uri, db;
+    }
+
+    static final RequestAdapter<Credentials> CREDENTIALS = new RequestAdapter<Credentials>() {
+        Credentials create() { return new Credentials(); }
+        void field(Credentials c, String name, JsonReader r) throws IOException {
+            switch (name) {
+                case "username": c.username = string(r, name, MAX_NAME_CHARS); break;
+                case "password": c.password = string(r, name, MAX_NAME_CHARS); break;
+                default: r.skipValue();
+            }
+        }
+        void validate(Credentials c) {
+            require(c.username, "username");
+            require(c.password, "password");
+        }
+    };
+
+    static final RequestAdapter<Watch> WATCH = new RequestAdapter<Watch>() {
+        Watch create() { return new Watch(); }
+        void field(Watch w, String name, JsonReader r) throws IOException {
+            switch (name) {
+                case "username": w.username = string(r, name, MAX_NAME_CHARS); break;
+                case "target": w.target = string(r, name, MAX_NAME_CHARS); break;
+                default: r.skipValue();
+            }
+        }
+        void validate(Watch w) {
+            require(w.target, "target");
+        }
+    };
+
+    static final RequestAdapter<Send> SEND = new RequestAdapter<Send>() {
+        Send create() { return new Send(); }
+        void field(Send s, String name, JsonReader r) throws IOException {
+            switch (name) {
+                case "sender": s.sender = string(r, name, MAX_NAME_CHARS); break;
+                case "receiver": s.receiver = string(r, name, MAX_NAME_CHARS); break;
+                case "content": s.content = string(r, name, MAX_CONTENT_CHARS); break;
+                default: r.skipValue();
+            }
+        }
+        void validate(Send s) {
+            require(s.receiver, "receiver");
+            require(s.content, "content");
+        }
+    };
+
+    static final RequestAdapter<UserRef> USER = new RequestAdapter<UserRef>() {
+        UserRef create() { return new UserRef(); }
+        void field(UserRef u, String name, JsonReader r) throws IOException {
+            if (name.equals("username")) u.username = string(r, name, MAX_NAME_CHARS);
+            else r.skipValue();
+        }
+        void validate(UserRef u) {
+            require(u.username, "username");
+        }
+    };
+
+    static final RequestAdapter<NewGroup> NEW_GROUP = new RequestAdapter<NewGroup>() {
+        NewGroup create() { return new NewGroup(); }
+        void field(NewGroup g, String name, JsonReader r) throws IOException {
+            switch (name) {
+                case "name": g.name = string(r, name, MAX_NAME_CHARS); break;
+                case "createdBy": g.createdBy = string(r, name, MAX_NAME_CHARS); break;
+                case "members": g.members = strings(r, name, GroupManager.MAX_MEMBERS); break;
+                default: r.skipValue();
+            }
+        }
+        void validate(NewGroup g) {
+            require(g.name, "name");
+        }
+    };
+
+    static final RequestAdapter<GroupSend> GROUP_SEND = new RequestAdapter<GroupSend>() {
+        GroupSend create() { return new GroupSend(); }
+        void field(GroupSend s, String name, JsonReader r) throws IOException {
+            switch (name) {
+                case "from": s.from = string(r, name, MAX_NAME_CHARS); break;
+                case "content": s.content = string(r, name, MAX_CONTENT_CHARS); break;
+                default: r.skipValue();
+            }
+        }
+        void validate(GroupSend s) {
+            require(s.content, "content");
+        }
+    };
+
+    static final RequestAdapter<GroupRead> GROUP_READ = new RequestAdapter<GroupRead>() {
+        GroupRead create() { return new GroupRead(); }
+        void field(GroupRead g, String name, JsonReader r) throws IOException {
+            switch (name) {
+                case "username": g.username = string(r, name, MAX_NAME_CHARS); break;
+                case "messageIds": g.messageIds = strings(r, name, RESTServer.MAX_BATCH_SIZE); break;
+                default: r.skipValue();
+            }
+        }
+        void validate(GroupRead g) { }
+    };
+
+    static final RequestAdapter<MarkRead> MARK_READ = new RequestAdapter<MarkRead>() {
+        MarkRead create() { return new MarkRead(); }
+        void field(MarkRead m, String name, JsonReader r) throws IOException {
+            switch (name) {
+                case "username": m.username = string(r, name, MAX_NAME_CHARS); break;
+                case "peer": m.peer = string(r, name, MAX_NAME_CHARS); break;
+                default: r.skipValue();
+            }
+        }
+        void validate(MarkRead m) { }
+    };
+
+    static final RequestAdapter<DbConfig> DB_CONFIG = new RequestAdapter<DbConfig>() {
+        DbConfig create() { return new DbConfig(); }
+        void field(DbConfig d, String name, JsonReader r) throws IOException {
+            switch (name) {
+                case "uri": d.uri = string(r, name, 2048); break;
+                case "db": d.db = string(r, name, MAX_NAME_CHARS); break;
+                default: r.skipValue();
+            }
+        }
+        void validate(DbConfig d) {
+            require(d.uri, "uri");
+            require(d.db, "db");
+        }
+    };
+
+    // Decode the body of `req` as one object
+    static <T> T read(Request req, RequestAdapter<T> adapter) {
+        return read(body(req, MAX_BODY_BYTES), MAX_BODY_BYTES, adapter);
+    }
+
+    static <T> T read(InputStream body, int maxBytes, RequestAdapter<T> adapter) {
+        JsonReader r = new JsonReader(new Utf8Reader(body, maxBytes));
+        try {
+            if (r.peek() == JsonToken.END_DOCUMENT) throw invalid("Empty body");
+            T value = adapter.read(r);
+            if (r.peek() != JsonToken.END_DOCUMENT) throw invalid("Unexpected data after the JSON object");
+            return value;
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw invalid("Malformed JSON: " + e.getMessage());
+        }
+    }
+
+    // Batch send body: one JSON array of sends, or a sequence of top-level objects (NDJSON;
+    // the lenient reader takes any whitespace between). Every item is sent as `sender`.
+    static List<BatchedSend> readSends(Request req, String sender) {
+        return readSends(body(req, MAX_BATCH_BODY_BYTES), MAX_BATCH_BODY_BYTES, sender);
+    }
+
+    static List<BatchedSend> readSends(InputStream body, int maxBytes, String sender) {
+        JsonReader r = new JsonReader(new Utf8Reader(body, maxBytes));
+        r.setLenient(true);
+        List<BatchedSend> items = new ArrayList<>();
+        try {
+            boolean array = r.peek() == JsonToken.BEGIN_ARRAY;
+            if (array) r.beginArray();
+            while (array ? r.hasNext() : r.peek() != JsonToken.END_DOCUMENT) {
+                if (items.size() == RESTServer.MAX_BATCH_SIZE) {
+                    throw new ClientError(413, "Batches are limited to " + RESTServer.MAX_BATCH_SIZE + " messages");
+                }
+                Send s = SEND.read(r);
+                items.add(new BatchedSend(actingAs(s.sender, sender), s.receiver, s.content));
+            }
+            if (array) r.endArray();
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw invalid("Malformed JSON: " + e.getMessage());
+        }
+        if (items.isEmpty()) throw invalid("Empty batch");
+        return items;
+    }
+
+    // The container's stream: Spark's request wrapper would first copy the whole body into a
+    // byte[] (without any limit)
+    static InputStream body(Request req, int maxBytes) {
+        if (req.contentLength() > maxBytes) throw tooLarge(maxBytes);
+        ServletRequest raw = req.raw();
+        if (raw instanceof ServletRequestWrapper) raw = ((ServletRequestWrapper) raw).getRequest();
+        try {
+            return raw.getInputStream();
+        } catch (IOException e) {
+            throw invalid("Cannot read the request body: " + e.getMessage());
+        }
+    }
+
+    // The acting user a body names, checked against the session's; null means the session's
+    static String actingAs(String named, String sessionUser) {
+        if (named != null && !named.equals(sessionUser)) {
+            throw new ClientError(403, "Signed in as " + sessionUser + ", cannot act as " + named);
+        }
+        return sessionUser;
+    }
+
+    static ClientError invalid(String message) {
+        return new ClientError(400, message);
+    }
+
+    private static ClientError tooLarge(int maxBytes) {
+        return new ClientError(413, "Request body is larger than " + maxBytes + " bytes");
+    }
+
+    private static void require(String value, String field) {
+        if (value == null) throw invalid("Missing field: " + field);
+    }
+
+    private static String string(JsonReader r, String field, int maxChars) throws IOException {
+        if (r.peek() != JsonToken.STRING) throw invalid("Field " + field + " must be a string");
+        String s = r.nextString();
+        if (s.length() > maxChars) throw invalid("Field " + field + " is longer than " + maxChars + " characters");
+        return s;
+    }
+
+    private static List<String> strings(JsonReader r, String field, int maxItems) throws IOException {
+        if (r.peek() != JsonToken.BEGIN_ARRAY) throw invalid("Field " + field + " must be an array of strings");
+        List<String> out = new ArrayList<>();
+        r.beginArray();
+        while (r.hasNext()) {
+            if (out.size() == maxItems) throw invalid("Field " + field + " has more than " + maxItems + " entries");
+            out.add(string(r, field, MAX_NAME_CHARS));
+        }
+        r.endArray();
+        return out;
+    }
+
+    // Reads one object field by field; subclasses map names to DTO fields. Decode only: request
+    // bodies are never written back out.
+    abstract static class RequestAdapter<T> {
+        abstract T create();
+
+        // Read the value of `name` into dto (never null here); skipValue() for unknown names
+        abstract void field(T dto, String name, JsonReader r) throws IOException;
+
+        abstract void validate(T dto);
+
+        T read(JsonReader r) throws IOException {
+            if (r.peek() != JsonToken.BEGIN_OBJECT) throw invalid("Expected a JSON object");
+            T dto = create();
+            r.beginObject();
+            while (r.hasNext()) {
+                String name = r.nextName();
+                if (r.peek() == JsonToken.NULL) {
+                    r.nextNull();
+                    continue;
+                }
+                field(dto, name, r);
+            }
+            r.endObject();
+            validate(dto);
+            return dto;
+        }
+    }
+
+    /**
+     * UTF-8 decoding straight from the request stream through a small buffer (InputStreamReader
+     * allocates an 8 KiB one per request), counting bytes against the body limit.
+     */
+    static final class Utf8Reader extends Reader {
+        private final InputStream in;
+        private final int maxBytes;
+        private final byte[] buf = new byte[READ_BUFFER_BYTES];
+        private int pos, limit;
+        private long total;
+        private int pendingLow = -1; // second half of a surrogate pair that did not fit
+
+        Utf8Reader(InputStream in, int maxBytes) {
+            this.in = in;
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            int n = 0;
+            if (pendingLow >= 0) {
+                cbuf[off + n++] = (char) pendingLow;
+                pendingLow = -1;
+            }
+            while (n < len) {
+                if (pos == limit) {
+                    if (n > 0) break; // hand over what we have rather than block
+                    if (!fill()) return -1;
+                }
+                int b = buf[pos++] & 0xff;
+                if (b < 0x80) {
+                    cbuf[off + n++] = (char) b;
+                    continue;
+                }
+                // overlong forms (a code point encoded in more bytes than it needs) and encoded
+                // surrogates are rejected, as a strict decoder would
+                int cp;
+                if ((b & 0xE0) == 0xC0) {
+                    cp = ((b & 0x1F) << 6) | continuation();
+                    if (cp < 0x80) throw invalid("Invalid UTF-8 in request body");
+                } else if ((b & 0xF0) == 0xE0) {
+                    cp = ((b & 0x0F) << 12) | (continuation() << 6) | continuation();
+                    if (cp < 0x800 || Character.isSurrogate((char) cp)) throw invalid("Invalid UTF-8 in request body");
+                } else if ((b & 0xF8) == 0xF0) {
+                    cp = ((b & 0x07) << 18) | (continuation() << 12) | (continuation() << 6) | continuation();
+                    if (cp < 0x10000 || cp > Character.MAX_CODE_POINT) throw invalid("Invalid UTF-8 in request body");
+                } else {
+                    throw invalid("Invalid UTF-8 in request body");
+                }
+                if (cp < 0x10000) {
+                    cbuf[off + n++] = (char) cp;
+                } else {
+                    cbuf[off + n++] = Character.highSurrogate(cp);
+                    if (n < len) cbuf[off + n++] = Character.lowSurrogate(cp);
+                    else pendingLow = Character.lowSurrogate(cp);
+                }
+            }
+            return n;
+        }
+
+        private int continuation() throws IOException {
+            if (pos == limit && !fill()) throw invalid("Truncated UTF-8 in request body");
+            int b = buf[pos++] & 0xff;
+            if ((b & 0xC0) != 0x80) throw invalid("Invalid UTF-8 in request body");
+            return b & 0x3F;
+        }
+
+        private boolean fill() throws IOException {
+            int r = in.read(buf, 0, buf.length);
+            if (r <= 0) return false;
+            total += r;
+            if (total > maxBytes) throw tooLarge(maxBytes);
+            pos = 0;
+            limit = r;
+            return true;
+        }
+
+        @Override
+        public void close() { } // the container owns the stream
+    }
+}
@@ -0,0 +1,11 @@
+/**
+ * A MessageStore that can number conversations itself, so nodes sharing it agree on each
+ * conversation's sequence (see ConversationSequences). MongoDBService keeps a counter per
+ * conversation in the database; MemoryStore is shared by cluster nodes running in one JVM.
+ * WalStorage is not one: a single process owns the log.
+ */
+public interface SequenceStore extends MessageStore {
+    // Allocates the conversation's next sequence number (Message.conversationKey) in the store,
+    // continuing from the highest one stored; RuntimeException while not connected
+    long nextSeq(String conversationKey);
+}
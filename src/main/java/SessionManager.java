@@ -0,0 +1,252 @@
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sessions of logged-in users. REST login issues an opaque token (128 random bits) that later
+ * requests send as "Authorization: Bearer <token>"; the token -> Session table is a
+ * ConcurrentHashMap, so every request resolves its caller in O(1) and no route takes the
+ * acting user from the body.
+ * - Each token session is the NotificationObserver it registers at login (one per session,
+ *   never shared: removeObserver matches by identity) and removes it when the session ends
+ *   (logout, expiry, or eviction). Push sockets opened with the session's token are attached
+ *   to it, at most MAX_SOCKETS_PER_SESSION, and are closed when it ends, so
+ *   NotificationManager holds a bounded number of observers per live session.
+ * - Connections that log in on their own (BinaryServer) open a session too, with connect():
+ *   no token and no expiry, ended by disconnect() when the connection closes.
+ * - A user's sessions of every kind are kept in byUser; opening and ending one both run
+ *   under the user's stripe of userLocks, so the user is logged out exactly when their last
+ *   session ends, whichever channel it came from. The login / logout work (offline delivery,
+ *   cluster calls) runs under that lock, never inside a map operation.
+ * - Sessions expire after ttlMs without use (each use slides the expiry; an attached socket
+ *   counts as use); expired sessions end on their next lookup or in the sweep every sweepMs.
+ * - A user has at most MAX_SESSIONS_PER_USER token sessions; logging in again ends the
+ *   oldest.
+ */
+public class SessionManager implements AutoCloseable {
+    public static final long DEFAULT_TTL_MS = Long.getLong("whatsapp.session.ttlMs", 30 * 60 * 1000L);
+    public static final long DEFAULT_SWEEP_MS = Long.getLong("whatsapp.session.sweepMs", 60 * 1000L);
+    public static final int MAX_SESSIONS_PER_USER = Integer.getInteger("whatsapp.session.maxPerUser", 8);
+    public static final int MAX_SOCKETS_PER_SESSION = Integer.getInteger("whatsapp.session.maxSockets", 4);
+    // Print what session observers receive (REST has no push channel of its own; see /ws)
+    private static final boolean LOG_NOTIFICATIONS = Boolean.getBoolean("whatsapp.rest.logNotifications");
+
+    private final MessagingServer server;
+    private final long ttlMs;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final Map<String, List<Session>> byUser = new ConcurrentHashMap<>(); // oldest first
+    // serialize opening and ending a user's sessions; byUser entries change only under them
+    private final StripedLocks userLocks = new StripedLocks(MessageManager.DEFAULT_STRIPES);
+    private final SecureRandom random = new SecureRandom();
+    private final ScheduledExecutorService sweeper;
+
+    public SessionManager(MessagingServer server) {
+        this(server, DEFAULT_TTL_MS, DEFAULT_SWEEP_MS);
+    }
+
+    public SessionManager(MessagingServer server, long ttlMs, long sweepMs) {
+        this.server = server;
+        this.ttlMs = ttlMs;
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "session-sweep");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweep, sweepMs, sweepMs, TimeUnit.MILLISECONDS);
+    }
+
+    // Something that lives only as long as a session, like a push socket
+    public interface Attachment {
+        // The session ended (logout, expiry, eviction): release whatever the attachment holds
+        void sessionEnded();
+    }
+
+    public static final class Session implements NotificationObserver {
+        private final String token; // null for connect() sessions
+        private final String username;
+        private final NotificationObserver observer;
+        private volatile long expiresAt;
+        private final List<Attachment> attachments = new ArrayList<>(); // guarded by this
+        private boolean ended; // guarded by this
+
+        Session(String token, String username, NotificationObserver observer, long expiresAt) {
+            this.token = token;
+            this.username = username;
+            this.observer = observer != null ? observer : this;
+            this.expiresAt = expiresAt;
+        }
+
+        public String getToken() { return token; }
+        public String getUsername() { return username; }
+        public long getExpiresAt() { return expiresAt; }
+
+        @Override
+        public void update(Notification notification) {
+            if (LOG_NOTIFICATIONS) System.out.println("[notify " + username + "] " + notification.getNote());
+        }
+
+        synchronized boolean expired(long now) {
+            return attachments.isEmpty() && expiresAt < now;
+        }
+    }
+
+    // Checks the password (RuntimeException as loginUser) and opens a token session
+    public Session login(String username, String password) {
+        Session s = open(new Session(newToken(), username, null, System.currentTimeMillis() + ttlMs), password);
+        sessions.put(s.token, s);
+        return s;
+    }
+
+    // A session for a connection that brings its own observer; it lasts until disconnect()
+    public Session connect(String username, String password, NotificationObserver observer) {
+        return open(new Session(null, username, observer, Long.MAX_VALUE), password);
+    }
+
+    public void disconnect(Session s) {
+        end(s);
+    }
+
+    // The live session for `token`, its expiry extended; null if unknown or expired
+    public Session resolve(String token) {
+        if (token == null) return null;
+        Session s = sessions.get(token);
+        if (s == null) return null;
+        long now = System.currentTimeMillis();
+        if (s.expired(now)) {
+            end(s);
+            return null;
+        }
+        s.expiresAt = now + ttlMs;
+        return s;
+    }
+
+    // False if the token had no live session
+    public boolean logout(String token) {
+        Session s = token == null ? null : sessions.get(token);
+        return s != null && end(s);
+    }
+
+    // Ties `a` to the session; false (nothing attached) if the session has ended or already
+    // has MAX_SOCKETS_PER_SESSION attachments
+    public boolean attach(Session s, Attachment a) {
+        synchronized (s) {
+            if (s.ended || s.attachments.size() >= MAX_SOCKETS_PER_SESSION) return false;
+            s.attachments.add(a);
+            return true;
+        }
+    }
+
+    // The attachment went away on its own (socket closed); the session lives on
+    public void detach(Session s, Attachment a) {
+        synchronized (s) {
+            if (s.attachments.remove(a)) s.expiresAt = System.currentTimeMillis() + ttlMs;
+        }
+    }
+
+    public int size() { return sessions.size(); }
+
+    public int sessionsOf(String username) {
+        List<Session> list = byUser.get(username);
+        return list == null ? 0 : list.size();
+    }
+
+    // End every expired session; returns how many
+    int sweep() {
+        long now = System.currentTimeMillis();
+        int ended = 0;
+        for (Session s : sessions.values()) {
+            if (s.expired(now) && end(s)) ended++;
+        }
+        return ended;
+    }
+
+    @Override
+    public void close() {
+        sweeper.shutdownNow();
+    }
+
+    private Session open(Session s, String password) {
+        List<Session> evicted = new ArrayList<>();
+        ReentrantLock lock = userLocks.forKey(s.username);
+        // under the same lock as end(), so a concurrent end of the user's last session cannot
+        // log them out after this login
+        lock.lock();
+        try {
+            List<Session> list = byUser.get(s.username);
+            try {
+                server.loginUser(s.username, password, s.observer);
+            } catch (RuntimeException e) {
+                undoLogin(s, list == null);
+                throw e;
+            }
+            if (list == null) {
+                list = new CopyOnWriteArrayList<>();
+                byUser.put(s.username, list);
+            }
+            list.add(s);
+            if (s.token != null) {
+                int tokens = 0;
+                for (Session other : list) if (other.token != null) tokens++;
+                for (Session other : list) {
+                    if (tokens - evicted.size() <= MAX_SESSIONS_PER_USER) break;
+                    if (other.token != null) evicted.add(other);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Session old : evicted) end(old);
+        return s;
+    }
+
+    // loginUser failed part way (wrong password, or offline delivery / the cluster call threw
+    // after the observer was registered and the user marked online): take back what it did.
+    // Caller holds the user's lock.
+    private void undoLogin(Session s, boolean onlySession) {
+        try {
+            User u = onlySession ? server.getUser(s.username) : null;
+            if (u != null && u.getStatus() == UserStatus.ONLINE) server.logoutUser(s.username, s.observer);
+            else server.getNotificationManager().removeObserver(s.username, s.observer);
+        } catch (RuntimeException e) {
+            System.err.println("Could not undo the failed login of " + s.username + ": " + e.getMessage());
+        }
+    }
+
+    private boolean end(Session s) {
+        List<Attachment> attached;
+        synchronized (s) {
+            if (s.ended) return false;
+            s.ended = true;
+            attached = new ArrayList<>(s.attachments);
+            s.attachments.clear();
+        }
+        if (s.token != null) sessions.remove(s.token, s);
+        for (Attachment a : attached) a.sessionEnded();
+        ReentrantLock lock = userLocks.forKey(s.username);
+        lock.lock();
+        try {
+            List<Session> list = byUser.get(s.username);
+            if (list == null || !list.remove(s)) return true;
+            if (list.isEmpty()) {
+                byUser.remove(s.username);
+                server.logoutUser(s.username, s.observer); // the user's last session
+            } else {
+                server.getNotificationManager().removeObserver(s.username, s.observer);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    private String newToken() {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+}
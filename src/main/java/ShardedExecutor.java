@@ -0,0 +1,163 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Partitions work by key (a username) across N single-threaded shards. Each shard runs its own
+ * event loop over a lock-free multi-producer/single-consumer queue, so everything submitted for
+ * one key runs in submission order on one thread and the state it touches needs no locks.
+ * Callers on other threads (request threads, other shards) hand tasks over through the queue;
+ * a task submitted from the owning shard itself runs inline.
+ * Tasks must not block waiting on another shard, or two shards can wait on each other.
+ */
+public class ShardedExecutor implements AutoCloseable {
+    // Idle polls before a shard parks; keeps hand-offs cheap under load without burning a core idle
+    private static final int SPINS = 64;
+
+    private final Shard[] shards;
+    private final int mask;
+
+    public ShardedExecutor(int minShards) {
+        int n = 1;
+        while (n < minShards) n <<= 1; // power of two so we can mask instead of mod
+        this.shards = new Shard[n];
+        this.mask = n - 1;
+        for (int i = 0; i < n; i++) shards[i] = new Shard(i);
+    }
+
+    public int size() { return shards.length; }
+
+    public int shardOf(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16); // same spreading as StripedLocks, so both modes partition alike
+        return h & mask;
+    }
+
+    // True when the calling thread is the shard that owns `key`
+    public boolean inShard(String key) {
+        return Thread.currentThread() == shards[shardOf(key)].thread;
+    }
+
+    // Run on the owning shard and wait for the result; exceptions are rethrown to the caller
+    public <T> T call(String key, Supplier<T> task) {
+        Shard shard = shards[shardOf(key)];
+        if (Thread.currentThread() == shard.thread) return task.get();
+        CompletableFuture<T> result = new CompletableFuture<>();
+        shard.submit(() -> {
+            try {
+                result.complete(task.get());
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw e;
+        }
+    }
+
+    // Fire and forget; failures are logged by the shard
+    public void execute(String key, Runnable task) {
+        Shard shard = shards[shardOf(key)];
+        if (Thread.currentThread() == shard.thread) task.run();
+        else shard.submit(task);
+    }
+
+    public long pendingCount() {
+        long total = 0;
+        for (Shard s : shards) total += s.submitted.get() - s.completed;
+        return total;
+    }
+
+    // Stops the loops after they have run everything already submitted
+    @Override
+    public void close() {
+        for (Shard s : shards) {
+            s.running = false;
+            LockSupport.unpark(s.thread);
+        }
+        for (Shard s : shards) {
+            try { s.thread.join(5_000); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        }
+    }
+
+    private static final class Node {
+        final Runnable task;
+        volatile Node next;
+
+        Node(Runnable task) { this.task = task; }
+    }
+
+    private static final class Shard {
+        final Thread thread;
+        // Vyukov-style MPSC list: producers swap themselves in as the tail, the loop follows `next`
+        final AtomicReference<Node> tail;
+        final AtomicLong submitted = new AtomicLong();
+        Node head; // consumed stub; only the shard thread touches it
+        volatile long completed;
+        volatile boolean sleeping;
+        volatile boolean running = true;
+
+        Shard(int index) {
+            head = new Node(null);
+            tail = new AtomicReference<>(head);
+            thread = new Thread(this::loop, "shard-" + index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void submit(Runnable task) {
+            if (!running) throw new IllegalStateException("Shard is closed");
+            submitted.incrementAndGet();
+            Node node = new Node(task);
+            Node prev = tail.getAndSet(node);
+            prev.next = node; // the loop may briefly see prev without a next; it just polls again
+            if (sleeping) LockSupport.unpark(thread);
+        }
+
+        private Runnable poll() {
+            Node next = head.next;
+            if (next == null) return null;
+            head = next;
+            return next.task;
+        }
+
+        // empty as far as producers are concerned: nothing swapped in after our head
+        private boolean idle() {
+            return tail.get() == head;
+        }
+
+        private void loop() {
+            int spins = 0;
+            while (true) {
+                Runnable task = poll();
+                if (task != null) {
+                    spins = 0;
+                    try {
+                        task.run();
+                    } catch (Throwable t) {
+                        System.err.println(thread.getName() + " task failed: " + t);
+                    }
+                    completed++; // single writer
+                    continue;
+                }
+                if (!running && idle()) return;
+                if (++spins < SPINS) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                // publish sleeping before the final emptiness check; submit() checks in the other order
+                sleeping = true;
+                if (idle() && running) LockSupport.park(this);
+                sleeping = false;
+                spins = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+import java.util.Set;
+
+/**
+ * Common part of the storage SPI (MessageStore, UserStore): connection state and the
+ * capabilities a backend advertises, so callers can pick a strategy per backend instead of
+ * per class. A capability describes how a backend carries out operations every backend has;
+ * operations only some backends have get their own interface (SequenceStore).
+ * Backends: MongoDBService (MongoDB), WalStorage (local disk), MemoryStore (heap).
+ * Every operation is a no-op / empty result while isConnected() is false.
+ */
+public interface Store {
+    enum Capability {
+        // advanceStatuses moves each message forward only, atomically (READ is never undone)
+        ATOMIC_STATUS_TRANSITIONS,
+        // data survives a restart
+        DURABLE
+    }
+
+    boolean isConnected();
+
+    void close();
+
+    Set<Capability> capabilities();
+
+    default boolean supports(Capability c) { return capabilities().contains(c); }
+}
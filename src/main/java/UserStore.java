@@ -0,0 +1,25 @@
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * User persistence for UserManager. Users are looked up one at a time on demand; only
+ * listings and warm-up read more than one.
+ */
+public interface UserStore extends Store {
+    // Also records the time as the user's last activity
+    void saveOrUpdateUser(User u);
+
+    // null if there is no such user
+    User loadUser(String username);
+
+    // Up to `limit` users, most recently active first (for cache warm-up)
+    List<User> loadRecentUsers(int limit);
+
+    // Every user; a full scan, for listings only
+    List<User> loadAllUsers();
+
+    // loadAllUsers one user at a time, for listings streamed to a client
+    default void forEachUser(Consumer<User> sink) {
+        for (User u : loadAllUsers()) sink.accept(u);
+    }
+}
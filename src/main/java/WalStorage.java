@@ -0,0 +1,917 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Embedded storage engine: an append-only write-ahead log on local disk plus an in-memory
+ * index rebuilt from it on startup. Gives local durability at sequential-write speed with no
+ * network round-trip, and keeps working when MongoDB is unreachable.
+ * - Every change (user upsert, message insert, status change, group change, group message,
+ *   receipts, conversation watermarks) is one log record:
+ *   int length | int crc32 | byte type | fields. A batch becomes one write() call.
+ * - fsync policy (-Dwhatsapp.wal.fsync): ALWAYS waits for the data to reach disk before a
+ *   write returns, with group commit (one fsync covers every writer waiting at that time);
+ *   INTERVAL syncs every -Dwhatsapp.wal.fsyncMs in the background; OFF leaves it to the OS.
+ * - The log rolls to a new segment (wal-<n>.log) past -Dwhatsapp.wal.segmentBytes.
+ * - Recovery replays the segments in order; a torn or corrupt tail on the last segment (a
+ *   crash mid-write) is truncated away and appending resumes there.
+ * The whole dataset is indexed in memory, so this suits single-node deployments that fit in
+ * the heap; the log itself is never compacted.
+ */
+public class WalStorage implements MessageStore, UserStore, GroupStore {
+    public enum FsyncPolicy { ALWAYS, INTERVAL, OFF }
+
+    public static final String DEFAULT_DIR = System.getProperty("whatsapp.wal.dir", "data/wal");
+    public static final FsyncPolicy DEFAULT_FSYNC =
+            FsyncPolicy.valueOf(System.getProperty("whatsapp.wal.fsync", "INTERVAL").toUpperCase());
+    public static final long DEFAULT_FSYNC_INTERVAL_MS = Long.getLong("whatsapp.wal.fsyncMs", 50);
+    public static final long DEFAULT_SEGMENT_BYTES = Long.getLong("whatsapp.wal.segmentBytes", 64L * 1024 * 1024);
+
+    private static final byte USER = 1;
+    private static final byte MESSAGE = 2; // written before sequencing; replayed as seq 0
+    private static final byte STATUS = 3;
+    private static final byte ADVANCE = 4; // like STATUS, but replayed forward-only as well
+    private static final byte GROUP = 5;
+    // the message once, plus a bitmap of the members it was delivered to, by roster position:
+    // replay sees the same roster, since the group's GROUP record always comes first
+    private static final byte GROUP_MESSAGE = 6;
+    private static final byte RECEIPTS = 7; // forward-only, one member
+    private static final byte CURSOR_MARKS = 8; // watermarks as history cursors; ignored, recounted on load
+    private static final byte SEQ_MESSAGE = 9; // MESSAGE plus its conversation sequence number
+    private static final byte MARKS = 10; // one conversation direction's watermarks, latest wins
+    private static final Set<Capability> CAPABILITIES = Collections.unmodifiableSet(EnumSet.allOf(Capability.class));
+    private static final int RECORD_HEADER_BYTES = 8; // length + crc
+    private static final int MAX_RECORD_BYTES = 256 * 1024 * 1024; // anything longer is a corrupt length
+    private static final MessageStatus[] STATUSES = MessageStatus.values();
+    private static final UserStatus[] USER_STATUSES = UserStatus.values();
+
+    private final Path dir;
+    private final FsyncPolicy fsync;
+    private final long segmentBytes;
+
+    // guards the log tail and the index; writers append and apply under the write lock
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private FileChannel channel;
+    private int segment;
+    private long segmentSize;
+    private long writeSeq; // appends so far
+    private volatile long syncedSeq; // appends known to be on disk
+    private final Object syncLock = new Object();
+    private final ScheduledExecutorService syncer;
+    private volatile boolean open;
+
+    // index
+    private final Map<String, User> users = new LinkedHashMap<>(); // least recently saved first
+    private final Map<String, Message> messagesById = new HashMap<>();
+    private final Map<String, ArrayList<Message>> conversations = new HashMap<>(); // chronological
+    private final Map<String, Set<String>> conversationsByUser = new HashMap<>();
+    private final Map<String, Set<String>> undeliveredByReceiver = new HashMap<>();
+    private final Map<String, Group> groups = new HashMap<>();
+    private final Map<String, Set<String>> groupsByMember = new HashMap<>();
+    private final Map<String, GroupMessage> groupMessagesById = new HashMap<>();
+    private final Map<String, ArrayList<GroupMessage>> groupTimelines = new HashMap<>(); // send order
+    private final Map<String, GroupReceipts> receipts = new HashMap<>();
+    private final Map<String, Set<String>> pendingGroupMessages = new HashMap<>(); // member -> ids
+    private final Map<String, Map<String, ConversationMarks>> marks = new HashMap<>(); // receiver -> sender
+
+    public WalStorage() {
+        this(Paths.get(DEFAULT_DIR), DEFAULT_FSYNC, DEFAULT_FSYNC_INTERVAL_MS, DEFAULT_SEGMENT_BYTES);
+    }
+
+    public WalStorage(Path dir, FsyncPolicy fsync, long fsyncIntervalMs, long segmentBytes) {
+        this.dir = dir;
+        this.fsync = fsync;
+        this.segmentBytes = segmentBytes;
+        try {
+            Files.createDirectories(dir);
+            recover();
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot open write-ahead log at " + dir + ": " + e.getMessage(), e);
+        }
+        this.open = true;
+        if (fsync == FsyncPolicy.INTERVAL) {
+            syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "wal-fsync");
+                t.setDaemon(true);
+                return t;
+            });
+            syncer.scheduleWithFixedDelay(this::syncQuietly, fsyncIntervalMs, fsyncIntervalMs, TimeUnit.MILLISECONDS);
+        } else {
+            syncer = null;
+        }
+        System.out.println("Opened write-ahead log: " + dir + " (" + messagesById.size() + " messages, "
+                + users.size() + " users, fsync " + fsync + ")");
+    }
+
+    @Override
+    public boolean isConnected() { return open; }
+
+    @Override
+    public Set<Capability> capabilities() { return CAPABILITIES; }
+
+    @Override
+    public void close() {
+        if (!open) return;
+        if (syncer != null) {
+            // not shutdownNow: interrupting a force() in progress would close the channel
+            syncer.shutdown();
+            try {
+                syncer.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            open = false;
+            channel.force(false);
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Closing write-ahead log failed: " + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // USERS
+    @Override
+    public void saveOrUpdateUser(User u) {
+        if (!open || u == null) return;
+        RecordWriter w = new RecordWriter();
+        w.begin(USER).string(u.getUsername()).string(u.getPassword()).b(u.getStatus().ordinal()).end();
+        append(w, () -> applyUser(u.getUsername(), u.getPassword(), u.getStatus()));
+    }
+
+    @Override
+    public User loadUser(String username) {
+        if (!open || username == null) return null;
+        lock.readLock().lock();
+        try {
+            User stored = users.get(username);
+            return stored == null ? null : copy(stored);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<User> loadRecentUsers(int limit) {
+        List<User> out = new ArrayList<>();
+        if (!open || limit <= 0) return out;
+        lock.readLock().lock();
+        try {
+            List<User> all = new ArrayList<>(users.values());
+            for (int i = all.size() - 1; i >= 0 && out.size() < limit; i--) out.add(copy(all.get(i)));
+        } finally {
+            lock.readLock().unlock();
+        }
+        return out;
+    }
+
+    @Override
+    public List<User> loadAllUsers() {
+        List<User> out = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (User stored : users.values()) out.add(copy(stored));
+        } finally {
+            lock.readLock().unlock();
+        }
+        return out;
+    }
+
+    // MESSAGES
+    @Override
+    public void saveMessages(List<Message> batch) {
+        if (!open || batch == null || batch.isEmpty()) return;
+        RecordWriter w = new RecordWriter();
+        for (Message m : batch) {
+            w.begin(SEQ_MESSAGE).string(m.getId()).string(m.getSender()).string(m.getReceiver()).string(m.getContent())
+                    .string(m.getTimestamp().toString()).b(m.getStatus().ordinal()).l(m.getSeq()).end();
+        }
+        append(w, () -> {
+            for (Message m : batch) applyMessage(copy(m));
+        });
+    }
+
+    // One record for the whole set of changes
+    @Override
+    public void applyStatusUpdates(Map<String, MessageStatus> updates) {
+        logStatuses(STATUS, updates);
+    }
+
+    // Atomic because the check and the change both happen under the write lock
+    @Override
+    public void advanceStatuses(Map<String, MessageStatus> updates) {
+        logStatuses(ADVANCE, updates);
+    }
+
+    private void logStatuses(byte type, Map<String, MessageStatus> updates) {
+        if (!open || updates == null || updates.isEmpty()) return;
+        RecordWriter w = new RecordWriter();
+        w.begin(type).i(updates.size());
+        for (Map.Entry<String, MessageStatus> e : updates.entrySet()) w.string(e.getKey()).b(e.getValue().ordinal());
+        w.end();
+        append(w, () -> {
+            for (Map.Entry<String, MessageStatus> e : updates.entrySet()) applyStatus(e.getKey(), e.getValue(), type == ADVANCE);
+        });
+    }
+
+    // In log order, which within a conversation is sequence order: all messages to one receiver
+    // are numbered and logged under that receiver's serialization in MessageManager
+    @Override
+    public List<Message> getUndeliveredMessages(String receiver) {
+        List<Message> out = new ArrayList<>();
+        if (!open || receiver == null) return out;
+        lock.readLock().lock();
+        try {
+            Set<String> ids = undeliveredByReceiver.get(receiver);
+            if (ids != null) for (String id : ids) out.add(copy(messagesById.get(id)));
+        } finally {
+            lock.readLock().unlock();
+        }
+        return out;
+    }
+
+    @Override
+    public List<Message> getMessageHistory(String username) {
+        List<Message> out = new ArrayList<>();
+        if (!open || username == null) return out;
+        lock.readLock().lock();
+        try {
+            Set<String> keys = conversationsByUser.get(username);
+            if (keys != null) {
+                for (String key : keys) for (Message m : conversations.get(key)) out.add(copy(m));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        out.sort(Message.CHRONOLOGICAL);
+        return out;
+    }
+
+    @Override
+    public HistoryPage getConversationPage(String username, String peer, String before, int limit) {
+        if (!open || username == null || peer == null) return new HistoryPage(Collections.emptyList(), null);
+        Message probe = before == null ? null : HistoryPage.parseCursor(before);
+        lock.readLock().lock();
+        try {
+            List<Message> conv = conversations.get(Message.conversationKey(username, peer));
+            if (conv == null) return new HistoryPage(Collections.emptyList(), null);
+            int end = probe == null ? conv.size() : lowerBound(conv, probe);
+            int start = Math.max(0, end - limit);
+            List<Message> page = new ArrayList<>(end - start);
+            for (int i = start; i < end; i++) page.add(copy(conv.get(i)));
+            return new HistoryPage(page, start > 0 && !page.isEmpty() ? HistoryPage.cursorOf(page.get(0)) : null);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // WATERMARKS
+    @Override
+    public List<ConversationMarks> loadMarks(String receiver) {
+        List<ConversationMarks> out = new ArrayList<>();
+        if (!open || receiver == null) return out;
+        lock.readLock().lock();
+        try {
+            for (ConversationMarks cm : marks.getOrDefault(receiver, Collections.emptyMap()).values()) out.add(cm.copy());
+        } finally {
+            lock.readLock().unlock();
+        }
+        return out;
+    }
+
+    @Override
+    public void saveMarks(Collection<ConversationMarks> batch) {
+        if (!open || batch == null || batch.isEmpty()) return;
+        List<ConversationMarks> copies = new ArrayList<>(batch.size());
+        RecordWriter w = new RecordWriter();
+        for (ConversationMarks cm : batch) {
+            ConversationMarks c = cm.copy();
+            copies.add(c);
+            w.begin(MARKS).string(c.getSender()).string(c.getReceiver())
+                    .l(c.getSent()).l(c.getLastSeq()).l(c.getDelivered()).l(c.getDeliveredSeq())
+                    .l(c.getRead()).l(c.getReadSeq()).end();
+        }
+        append(w, () -> {
+            for (ConversationMarks c : copies) applyMarks(c);
+        });
+    }
+
+    // Walks the conversation back from its newest message: O(messages not yet counted)
+    @Override
+    public void catchUp(ConversationMarks cm) {
+        if (!open) return;
+        long after = cm.getLastSeq();
+        long n = 0;
+        long newest = after;
+        lock.readLock().lock();
+        try {
+            List<Message> conv = conversations.get(Message.conversationKey(cm.getSender(), cm.getReceiver()));
+            if (conv == null) return;
+            for (int i = conv.size() - 1; i >= 0; i--) {
+                Message m = conv.get(i);
+                if (m.getSeq() <= after) break;
+                if (!m.getSender().equals(cm.getSender())) continue;
+                newest = Math.max(newest, m.getSeq());
+                n++;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        cm.counted(n, newest);
+    }
+
+    // Walks back from the end of the sequence range: O(messages newer than afterSeq)
+    @Override
+    public long countMessages(String sender, String receiver, long afterSeq, long upToSeq) {
+        if (!open) return 0;
+        long n = 0;
+        lock.readLock().lock();
+        try {
+            List<Message> conv = conversations.get(Message.conversationKey(sender, receiver));
+            if (conv == null) return 0;
+            for (int i = conv.size() - 1; i >= 0 && conv.get(i).getSeq() > afterSeq; i--) {
+                Message m = conv.get(i);
+                if (m.getSeq() <= upToSeq && m.getSender().equals(sender)) n++;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return n;
+    }
+
+    @Override
+    public long lastSeq(String conversationKey) {
+        if (!open) return 0;
+        lock.readLock().lock();
+        try {
+            List<Message> conv = conversations.get(conversationKey);
+            return conv == null || conv.isEmpty() ? 0 : conv.get(conv.size() - 1).getSeq();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // GROUPS
+    @Override
+    public void saveGroup(Group g) {
+        if (!open || g == null) return;
+        RecordWriter w = new RecordWriter();
+        w.begin(GROUP).string(g.getId()).string(g.getName()).string(g.getCreatedBy()).i(g.getRoster().size());
+        for (String m : g.getMembers()) w.string(m);
+        w.end();
+        append(w, () -> applyGroup(g));
+    }
+
+    @Override
+    public Group loadGroup(String groupId) {
+        if (!open || groupId == null) return null;
+        lock.readLock().lock();
+        try {
+            return groups.get(groupId); // immutable
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Group> loadGroupsOf(String username) {
+        List<Group> out = new ArrayList<>();
+        if (!open || username == null) return out;
+        lock.readLock().lock();
+        try {
+            for (String id : groupsByMember.getOrDefault(username, Collections.emptySet())) out.add(groups.get(id));
+        } finally {
+            lock.readLock().unlock();
+        }
+        return out;
+    }
+
+    @Override
+    public void saveGroupMessage(GroupMessage m, Roster roster, Set<String> delivered) {
+        if (!open || m == null) return;
+        BitSet bits = roster.bits(delivered);
+        RecordWriter w = new RecordWriter();
+        w.begin(GROUP_MESSAGE).string(m.getId()).string(m.getSender()).string(m.getGroupId()).string(m.getContent())
+                .string(m.getTimestamp().toString()).i(roster.size()).bytes(bits.toByteArray()).end();
+        append(w, () -> applyGroupMessage(copy(m), roster.size(), bits));
+    }
+
+    @Override
+    public void advanceReceipts(String member, Map<String, MessageStatus> updates) {
+        if (!open || member == null || updates == null || updates.isEmpty()) return;
+        RecordWriter w = new RecordWriter();
+        w.begin(RECEIPTS).string(member).i(updates.size());
+        for (Map.Entry<String, MessageStatus> e : updates.entrySet()) w.string(e.getKey()).b(e.getValue().ordinal());
+        w.end();
+        append(w, () -> {
+            for (Map.Entry<String, MessageStatus> e : updates.entrySet()) applyReceipt(member, e.getKey(), e.getValue());
+        });
+    }
+
+    @Override
+    public List<GroupMessage> getUndeliveredGroupMessages(String member) {
+        List<GroupMessage> out = new ArrayList<>();
+        if (!open || member == null) return out;
+        lock.readLock().lock();
+        try {
+            for (String id : pendingGroupMessages.getOrDefault(member, Collections.emptySet())) {
+                out.add(copy(groupMessagesById.get(id)));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        out.sort(Message.CHRONOLOGICAL);
+        return out;
+    }
+
+    @Override
+    public List<GroupMessage> getGroupMessages(Collection<String> messageIds) {
+        List<GroupMessage> out = new ArrayList<>();
+        if (!open || messageIds == null) return out;
+        lock.readLock().lock();
+        try {
+            for (String id : messageIds) {
+                GroupMessage m = groupMessagesById.get(id);
+                if (m != null) out.add(copy(m));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return out;
+    }
+
+    @Override
+    public List<GroupMessage> getGroupHistory(String groupId, int limit) {
+        List<GroupMessage> out = new ArrayList<>();
+        if (!open || groupId == null) return out;
+        lock.readLock().lock();
+        try {
+            List<GroupMessage> timeline = groupTimelines.get(groupId);
+            if (timeline != null) {
+                for (int i = Math.max(0, timeline.size() - limit); i < timeline.size(); i++) out.add(copy(timeline.get(i)));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return out;
+    }
+
+    @Override
+    public Map<String, MessageStatus> getReceipts(String messageId) {
+        if (!open || messageId == null) return Collections.emptyMap();
+        lock.readLock().lock();
+        try {
+            GroupReceipts r = receipts.get(messageId);
+            return r == null ? Collections.emptyMap() : r.toMap();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Force everything appended so far to disk
+    public void sync() throws IOException {
+        long target;
+        lock.readLock().lock();
+        try { target = writeSeq; } finally { lock.readLock().unlock(); }
+        sync(target);
+    }
+
+    public int getSegmentCount() {
+        lock.readLock().lock();
+        try { return segment + 1; } finally { lock.readLock().unlock(); }
+    }
+
+    /* ---- log ---- */
+
+    // Append the encoded records and apply them to the index; with ALWAYS, return only once
+    // they are on disk
+    private void append(RecordWriter records, Runnable apply) {
+        long seq;
+        lock.writeLock().lock();
+        try {
+            if (!open) return;
+            ByteBuffer buf = records.buffer();
+            try {
+                while (buf.hasRemaining()) channel.write(buf);
+            } catch (IOException e) {
+                discardTail(segmentSize);
+                throw e;
+            }
+            segmentSize += records.size();
+            seq = ++writeSeq;
+            apply.run();
+            if (segmentSize >= segmentBytes) roll();
+        } catch (IOException e) {
+            throw new RuntimeException("Write-ahead log append failed: " + e.getMessage(), e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (fsync == FsyncPolicy.ALWAYS) {
+            try {
+                sync(seq);
+            } catch (IOException e) {
+                throw new RuntimeException("Write-ahead log fsync failed: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    // Group commit: the first waiter fsyncs on behalf of everyone who appended before it
+    // started; the others find their sequence already covered and return.
+    private void sync(long seq) throws IOException {
+        if (syncedSeq >= seq) return;
+        synchronized (syncLock) {
+            if (syncedSeq >= seq) return;
+            long target;
+            int seg;
+            FileChannel ch;
+            lock.readLock().lock();
+            try {
+                target = writeSeq;
+                seg = segment;
+                ch = channel;
+            } finally {
+                lock.readLock().unlock();
+            }
+            try {
+                ch.force(false);
+            } catch (ClosedChannelException e) {
+                // Covered only if the segment rolled meanwhile: roll() forced it and advanced
+                // syncedSeq past target. Any other close (an interrupt, which closes the channel
+                // for good, or close()) left these appends unsynced.
+                if (!rolledSince(seg)) {
+                    reopen(ch);
+                    throw e;
+                }
+                return;
+            }
+            syncedSeq = target;
+        }
+    }
+
+    private boolean rolledSince(int seg) {
+        lock.readLock().lock();
+        try { return segment != seg; } finally { lock.readLock().unlock(); }
+    }
+
+    // An interrupted force() closed the channel under everyone; reopen the segment at its end
+    private void reopen(FileChannel closed) {
+        lock.writeLock().lock();
+        try {
+            if (open && channel == closed && !closed.isOpen()) discardTail(segmentSize);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // caller holds the write lock: cut a partly written record back off the segment, so replay
+    // does not stop at it and skip everything appended after it. An interrupted write or
+    // force has also closed the channel; it is reopened.
+    private void discardTail(long size) {
+        boolean interrupted = Thread.interrupted(); // or the repair would be interrupted too
+        try {
+            if (!channel.isOpen()) channel = openSegment(segment);
+            channel.truncate(size);
+            channel.position(size);
+        } catch (IOException e) {
+            failed(e);
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    // caller holds the write lock: the tail is in an unknown state, so stop taking writes
+    // rather than append after a torn record (isConnected() turns false)
+    private void failed(IOException e) {
+        open = false;
+        System.err.println("Write-ahead log " + segmentPath(segment) + " could not be repaired, closing it: " + e.getMessage());
+    }
+
+    private void syncQuietly() {
+        try {
+            if (open) sync();
+        } catch (IOException e) {
+            System.err.println("Write-ahead log fsync failed: " + e.getMessage());
+        }
+    }
+
+    // caller holds the write lock
+    private void roll() throws IOException {
+        channel.force(false); // everything in the old segment is durable before we move on
+        channel.close();
+        syncedSeq = writeSeq;
+        segment++;
+        channel = openSegment(segment);
+        segmentSize = 0;
+    }
+
+    private FileChannel openSegment(int n) throws IOException {
+        return FileChannel.open(segmentPath(n), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    private Path segmentPath(int n) {
+        return dir.resolve("wal-" + n + ".log");
+    }
+
+    /* ---- recovery ---- */
+
+    private void recover() throws IOException {
+        List<Integer> numbers = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.map(p -> p.getFileName().toString())
+                    .filter(n -> n.startsWith("wal-") && n.endsWith(".log"))
+                    .forEach(n -> numbers.add(Integer.parseInt(n.substring(4, n.length() - 4))));
+        }
+        Collections.sort(numbers);
+        long validEnd = 0;
+        for (int i = 0; i < numbers.size(); i++) {
+            validEnd = replay(segmentPath(numbers.get(i)));
+            boolean last = i == numbers.size() - 1;
+            long size = Files.size(segmentPath(numbers.get(i)));
+            if (validEnd < size) {
+                System.err.println("Write-ahead log " + segmentPath(numbers.get(i)) + ": damaged record at offset "
+                        + validEnd + (last ? ", truncating the torn tail" : ", skipping the rest of the segment"));
+            }
+        }
+        segment = numbers.isEmpty() ? 0 : numbers.get(numbers.size() - 1);
+        channel = openSegment(segment);
+        channel.truncate(validEnd);
+        channel.position(validEnd);
+        segmentSize = validEnd;
+    }
+
+    // Apply every intact record of one segment; returns the offset just past the last one
+    private long replay(Path file) throws IOException {
+        long offset = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            while (true) {
+                int length;
+                int crc;
+                byte[] payload;
+                try {
+                    length = in.readInt();
+                    crc = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_BYTES) return offset;
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    return offset; // clean end, or a record cut off mid-write
+                }
+                CRC32 check = new CRC32();
+                check.update(payload);
+                if ((int) check.getValue() != crc) return offset;
+                applyRecord(payload);
+                offset += RECORD_HEADER_BYTES + length;
+            }
+        }
+    }
+
+    private void applyRecord(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        switch (type) {
+            case USER:
+                applyUser(readString(in), readString(in), USER_STATUSES[in.readByte()]);
+                break;
+            case MESSAGE:
+            case SEQ_MESSAGE: {
+                Message m = new Message(readString(in), readString(in), readString(in), readString(in),
+                        java.time.LocalDateTime.parse(readString(in)));
+                m.setStatus(STATUSES[in.readByte()]);
+                if (type == SEQ_MESSAGE) m.setSeq(in.readLong());
+                applyMessage(m);
+                break;
+            }
+            case STATUS:
+            case ADVANCE: {
+                int n = in.readInt();
+                for (int i = 0; i < n; i++) applyStatus(readString(in), STATUSES[in.readByte()], type == ADVANCE);
+                break;
+            }
+            case GROUP: {
+                String id = readString(in);
+                String name = readString(in);
+                String createdBy = readString(in);
+                List<String> members = new ArrayList<>();
+                for (int i = in.readInt(); i > 0; i--) members.add(readString(in));
+                applyGroup(new Group(id, name, createdBy, new Roster(members)));
+                break;
+            }
+            case GROUP_MESSAGE: {
+                GroupMessage m = new GroupMessage(readString(in), readString(in), readString(in), readString(in),
+                        java.time.LocalDateTime.parse(readString(in)));
+                int rosterSize = in.readInt();
+                byte[] bits = new byte[in.readInt()];
+                in.readFully(bits);
+                applyGroupMessage(m, rosterSize, BitSet.valueOf(bits));
+                break;
+            }
+            case RECEIPTS: {
+                String member = readString(in);
+                for (int i = in.readInt(); i > 0; i--) applyReceipt(member, readString(in), STATUSES[in.readByte()]);
+                break;
+            }
+            case CURSOR_MARKS:
+                break;
+            case MARKS:
+                applyMarks(new ConversationMarks(readString(in), readString(in), in.readLong(), in.readLong(),
+                        in.readLong(), in.readLong(), in.readLong(), in.readLong()));
+                break;
+            default:
+                throw new IOException("Unknown write-ahead log record type " + type);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /* ---- index (caller holds the write lock, or is recovering) ---- */
+
+    private void applyUser(String username, String password, UserStatus status) {
+        User u = new User(username, password);
+        u.setStatus(status);
+        users.remove(username); // re-insert so the order tracks last activity
+        users.put(username, u);
+    }
+
+    private void applyMessage(Message m) {
+        if (messagesById.putIfAbsent(m.getId(), m) != null) return; // retried batch
+        String key = m.getConversationKey();
+        ArrayList<Message> conv = conversations.computeIfAbsent(key, k -> new ArrayList<>());
+        int i = conv.size();
+        while (i > 0 && Message.CONVERSATION_ORDER.compare(conv.get(i - 1), m) > 0) i--; // nearly always appends
+        conv.add(i, m);
+        conversationsByUser.computeIfAbsent(m.getSender(), k -> new HashSet<>()).add(key);
+        conversationsByUser.computeIfAbsent(m.getReceiver(), k -> new HashSet<>()).add(key);
+        if (m.getStatus() == MessageStatus.SENT) {
+            undeliveredByReceiver.computeIfAbsent(m.getReceiver(), k -> new LinkedHashSet<>()).add(m.getId());
+        }
+    }
+
+    private void applyStatus(String id, MessageStatus status, boolean forwardOnly) {
+        Message m = messagesById.get(id);
+        if (m == null || (forwardOnly && m.getStatus().ordinal() >= status.ordinal())) return;
+        m.setStatus(status);
+        if (status == MessageStatus.SENT) {
+            undeliveredByReceiver.computeIfAbsent(m.getReceiver(), k -> new LinkedHashSet<>()).add(id);
+        } else {
+            Set<String> ids = undeliveredByReceiver.get(m.getReceiver());
+            if (ids != null && ids.remove(id) && ids.isEmpty()) undeliveredByReceiver.remove(m.getReceiver());
+        }
+    }
+
+    private void applyGroup(Group g) {
+        Group previous = groups.put(g.getId(), g);
+        if (previous != null) {
+            for (String m : previous.getMembers()) {
+                if (!g.isMember(m)) groupsByMember.getOrDefault(m, Collections.emptySet()).remove(g.getId());
+            }
+        }
+        for (String m : g.getMembers()) groupsByMember.computeIfAbsent(m, k -> new HashSet<>()).add(g.getId());
+    }
+
+    private void applyGroupMessage(GroupMessage m, int rosterSize, BitSet delivered) {
+        Group g = groups.get(m.getGroupId());
+        if (g == null || groupMessagesById.putIfAbsent(m.getId(), m) != null) return;
+        if (g.getRoster().size() != rosterSize) {
+            // cannot happen with GroupManager's ordering; fall back to "not delivered"
+            System.err.println("Write-ahead log: roster mismatch for group message " + m.getId());
+            delivered = new BitSet();
+        }
+        GroupReceipts r = new GroupReceipts(g.getRoster(), m.getSender(), delivered);
+        receipts.put(m.getId(), r);
+        for (String member : r.pending()) {
+            pendingGroupMessages.computeIfAbsent(member, k -> new LinkedHashSet<>()).add(m.getId());
+        }
+        groupTimelines.computeIfAbsent(m.getGroupId(), k -> new ArrayList<>()).add(m);
+    }
+
+    private void applyReceipt(String member, String id, MessageStatus status) {
+        GroupReceipts r = receipts.get(id);
+        if (r == null || !r.advance(member, status)) return;
+        Set<String> pending = pendingGroupMessages.get(member);
+        if (pending != null && pending.remove(id) && pending.isEmpty()) pendingGroupMessages.remove(member);
+    }
+
+    private void applyMarks(ConversationMarks cm) {
+        marks.computeIfAbsent(cm.getReceiver(), k -> new HashMap<>()).put(cm.getSender(), cm);
+    }
+
+    private static int lowerBound(List<Message> conv, Message probe) {
+        int lo = 0, hi = conv.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (Message.CONVERSATION_ORDER.compare(conv.get(mid), probe) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private static User copy(User stored) {
+        User u = new User(stored.getUsername(), stored.getPassword());
+        u.setStatus(stored.getStatus());
+        return u;
+    }
+
+    private static GroupMessage copy(GroupMessage m) {
+        return new GroupMessage(m.getId(), m.getSender(), m.getGroupId(), m.getContent(), m.getTimestamp());
+    }
+
+    // Callers get their own instances; status changes must come back through the log
+    private static Message copy(Message m) {
+        Message c = new Message(m.getId(), m.getSender(), m.getReceiver(), m.getContent(), m.getTimestamp());
+        c.setSeq(m.getSeq());
+        c.setStatus(m.getStatus());
+        return c;
+    }
+
+    // Encodes records back to back into one buffer: length | crc | payload
+    private static class RecordWriter {
+        private final Bytes bytes = new Bytes();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private int recordStart;
+
+        RecordWriter begin(byte type) {
+            recordStart = bytes.size();
+            try {
+                out.writeLong(0); // length + crc, filled in by end()
+                out.writeByte(type);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return this;
+        }
+
+        RecordWriter string(String s) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            try {
+                out.writeInt(b.length);
+                out.write(b);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return this;
+        }
+
+        RecordWriter bytes(byte[] b) {
+            try {
+                out.writeInt(b.length);
+                out.write(b);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return this;
+        }
+
+        RecordWriter b(int v) {
+            try { out.writeByte(v); } catch (IOException e) { throw new UncheckedIOException(e); }
+            return this;
+        }
+
+        RecordWriter i(int v) {
+            try { out.writeInt(v); } catch (IOException e) { throw new UncheckedIOException(e); }
+            return this;
+        }
+
+        RecordWriter l(long v) {
+            try { out.writeLong(v); } catch (IOException e) { throw new UncheckedIOException(e); }
+            return this;
+        }
+
+        void end() {
+            int payloadStart = recordStart + RECORD_HEADER_BYTES;
+            int length = bytes.size() - payloadStart;
+            CRC32 crc = new CRC32();
+            crc.update(bytes.array(), payloadStart, length);
+            ByteBuffer.wrap(bytes.array(), recordStart, RECORD_HEADER_BYTES).putInt(length).putInt((int) crc.getValue());
+        }
+
+        ByteBuffer buffer() { return ByteBuffer.wrap(bytes.array(), 0, bytes.size()); }
+
+        int size() { return bytes.size(); }
+    }
+
+    // ByteArrayOutputStream without the copy on read
+    private static class Bytes extends ByteArrayOutputStream {
+        Bytes() { super(256); }
+        byte[] array() { return buf; }
+    }
+}
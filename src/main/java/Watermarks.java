@@ -0,0 +1,216 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-conversation delivery and read watermarks. For each direction of a conversation
+ * (sender -> receiver) we keep how many messages were sent, how many the receiver has acked as
+ * delivered and as read, and the sequence number of the newest message each count covers.
+ * "Mark read" moves one watermark instead of flipping every message, unread counts are
+ * sent - read, and a message's status is derived from the watermarks it falls under.
+ * Marks for a receiver are loaded from the store on first use and changed only under that
+ * receiver's MessageManager serialization; saving them is up to the caller.
+ * Only the receiver's own node moves them, so in cluster mode the other nodes read statuses
+ * through a snapshot() of the store instead of keeping copies that would go stale.
+ */
+public class Watermarks {
+    private final MessageStore store; // optional
+    private final boolean counting; // false for snapshots: statuses only, no catch-up counts
+
+    // receiver -> sender -> marks
+    private final Map<String, Map<String, ConversationMarks>> byReceiver = new ConcurrentHashMap<>();
+
+    public Watermarks(MessageStore store) {
+        this(store, true);
+    }
+
+    private Watermarks(MessageStore store, boolean counting) {
+        this.store = store;
+        this.counting = counting;
+    }
+
+    // Marks as the store has them now, each receiver's loaded on first use; for one request's
+    // applyTo, then dropped
+    public Watermarks snapshot() {
+        return new Watermarks(store, false);
+    }
+
+    private boolean persistent() { return store != null && store.isConnected(); }
+
+    // Marks of sender -> receiver, created (and counted from the store) on first use.
+    // Callers hold the receiver's serialization.
+    ConversationMarks get(String sender, String receiver) {
+        Map<String, ConversationMarks> bySender = forReceiver(receiver);
+        ConversationMarks cm = bySender.get(sender);
+        if (cm != null) return cm;
+        cm = new ConversationMarks(sender, receiver);
+        if (persistent()) {
+            store.catchUp(cm); // history from before this conversation had marks
+            store.saveMarks(Collections.singletonList(cm)); // so loadMarks finds it after a restart
+        }
+        bySender.put(sender, cm);
+        return cm;
+    }
+
+    // null if sender never wrote to receiver
+    ConversationMarks find(String sender, String receiver) {
+        return forReceiver(receiver).get(sender);
+    }
+
+    private Map<String, ConversationMarks> forReceiver(String receiver) {
+        Map<String, ConversationMarks> bySender = byReceiver.get(receiver);
+        if (bySender != null) return bySender;
+        Map<String, ConversationMarks> loaded = new ConcurrentHashMap<>();
+        if (persistent()) {
+            for (ConversationMarks cm : store.loadMarks(receiver)) {
+                if (counting) store.catchUp(cm); // messages sent after the marks were last saved
+                loaded.put(cm.getSender(), cm);
+            }
+        }
+        Map<String, ConversationMarks> raced = byReceiver.putIfAbsent(receiver, loaded);
+        return raced != null ? raced : loaded;
+    }
+
+    // Moves the read watermark of cm up to seq. listedUnread is how many unread messages the
+    // caller saw up to there; with a store the exact number comes from a range count on the
+    // sequence, since a client may mark a message read without having listed older ones.
+    boolean readUpTo(ConversationMarks cm, long seq, long listedUnread) {
+        if (seq >= cm.getLastSeq()) return cm.readAll();
+        long newlyRead = persistent()
+                ? store.countMessages(cm.getSender(), cm.getReceiver(), cm.getReadSeq(), seq)
+                : listedUnread;
+        return cm.readUpTo(seq, newlyRead);
+    }
+
+    // Everyone who has written to receiver
+    public Set<String> sendersTo(String receiver) {
+        return new HashSet<>(forReceiver(receiver).keySet());
+    }
+
+    // peer -> unread count, for peers with anything unread
+    public Map<String, Long> unreadCounts(String receiver) {
+        Map<String, Long> out = new TreeMap<>();
+        for (ConversationMarks cm : forReceiver(receiver).values()) {
+            long n = cm.unread();
+            if (n > 0) out.put(cm.getSender(), n);
+        }
+        return out;
+    }
+
+    // Sets each message's status to what the watermarks say, if that is further along
+    public void applyTo(List<Message> messages) {
+        for (Message m : messages) applyTo(m);
+    }
+
+    public Message applyTo(Message m) {
+        ConversationMarks cm = find(m.getSender(), m.getReceiver());
+        if (cm == null) return m;
+        MessageStatus s = cm.statusOf(m);
+        if (s.ordinal() > m.getStatus().ordinal()) m.setStatus(s);
+        return m;
+    }
+
+    // Drop everything loaded from the store (the store was replaced)
+    public void clear() {
+        byReceiver.clear();
+    }
+}
+
+/*
+ * Watermarks of one direction of a conversation. Positions are conversation sequence numbers
+ * (Message.getSeq), -1 meaning "none"; messages from before sequencing are all seq 0, so they
+ * are read or delivered together.
+ */
+final class ConversationMarks {
+    private final String sender;
+    private final String receiver;
+    private long sent;
+    private long lastSeq = -1;
+    private long delivered;
+    private long deliveredSeq = -1;
+    private long read;
+    private long readSeq = -1;
+
+    ConversationMarks(String sender, String receiver) {
+        this.sender = sender;
+        this.receiver = receiver;
+    }
+
+    ConversationMarks(String sender, String receiver, long sent, long lastSeq, long delivered, long deliveredSeq,
+                      long read, long readSeq) {
+        this(sender, receiver);
+        this.sent = sent;
+        this.lastSeq = lastSeq;
+        this.delivered = delivered;
+        this.deliveredSeq = deliveredSeq;
+        this.read = read;
+        this.readSeq = readSeq;
+    }
+
+    String getSender() { return sender; }
+    String getReceiver() { return receiver; }
+
+    synchronized long getSent() { return sent; }
+    synchronized long getDelivered() { return delivered; }
+    synchronized long getRead() { return read; }
+    synchronized long getLastSeq() { return lastSeq; }
+    synchronized long getDeliveredSeq() { return deliveredSeq; }
+    synchronized long getReadSeq() { return readSeq; }
+
+    synchronized long unread() { return sent - read; }
+
+    // A new message from sender to receiver
+    synchronized void sent(Message m) {
+        sent++;
+        lastSeq = Math.max(lastSeq, m.getSeq());
+    }
+
+    // Stored messages the marks had not counted yet (ConversationMarks catch-up by a store)
+    synchronized void counted(long n, long newestSeq) {
+        sent += n;
+        lastSeq = Math.max(lastSeq, newestSeq);
+    }
+
+    // The receiver has everything sent so far; false if it already had
+    synchronized boolean deliverAll() {
+        if (delivered == sent) return false;
+        delivered = sent;
+        deliveredSeq = lastSeq;
+        return true;
+    }
+
+    synchronized boolean readAll() {
+        if (read == sent) return false;
+        read = sent;
+        readSeq = lastSeq;
+        deliverAll();
+        return true;
+    }
+
+    // Read up to and including seq, which is newlyRead messages past the old read watermark;
+    // false if the watermark was already there
+    synchronized boolean readUpTo(long seq, long newlyRead) {
+        if (seq >= lastSeq) return readAll();
+        if (seq <= readSeq) return false;
+        read = Math.min(sent, read + newlyRead);
+        readSeq = seq;
+        if (delivered < read) {
+            delivered = read;
+            deliveredSeq = readSeq;
+        }
+        return true;
+    }
+
+    synchronized boolean isRead(Message m) {
+        return m.getSeq() <= readSeq;
+    }
+
+    synchronized MessageStatus statusOf(Message m) {
+        if (m.getSeq() <= readSeq) return MessageStatus.READ;
+        if (m.getSeq() <= deliveredSeq) return MessageStatus.DELIVERED;
+        return MessageStatus.SENT;
+    }
+
+    synchronized ConversationMarks copy() {
+        return new ConversationMarks(sender, receiver, sent, lastSeq, delivered, deliveredSeq, read, readSeq);
+    }
+}
@@ -1,6 +1,18 @@
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
 import java.time.format.DateTimeFormatter;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 
 
@@ -15,23 +27,20 @@ public class WhatsApp {
 
 enum UserStatus { ONLINE, OFFLINE }
 enum MessageStatus { SENT, DELIVERED, READ }
-enum NotificationType { NEW_MESSAGE, USER_ONLINE, MESSAGE_STATUS_UPDATE }
+enum NotificationType { NEW_MESSAGE, USER_ONLINE, MESSAGE_STATUS_UPDATE, PRESENCE_UPDATE, NEW_GROUP_MESSAGE, READ_RECEIPT }
 enum MessageType { TEXT }
 
 
 class User {
     private final String username;
     private String password;
-    private UserStatus status;
-    private final Queue<Message> offlineQueue; // store pending messages
-    private final List<Message> messageHistory; // both sent and received
+    private volatile UserStatus status;
+    private long lastAccess = System.nanoTime(); // racy on purpose: only an LRU hint for UserManager
 
     public User(String username, String password) {
         this.username = username;
         this.password = password;
         this.status = UserStatus.OFFLINE;
-        this.offlineQueue = new LinkedList<>();
-        this.messageHistory = new ArrayList<>();
     }
 
     public String getUsername() { return username; }
@@ -39,15 +48,8 @@ class User {
     public UserStatus getStatus() { return status; }
     public void setStatus(UserStatus status) { this.status = status; }
 
-    public void enqueueOfflineMessage(Message m) { offlineQueue.add(m); }
-    public Queue<Message> drainOfflineMessages() {
-        Queue<Message> drained = new LinkedList<>(offlineQueue);
-        offlineQueue.clear();
-        return drained;
-    }
-
-    public void addToHistory(Message m) { messageHistory.add(m); }
-    public List<Message> getMessageHistory() { return messageHistory; }
+    void touch() { lastAccess = System.nanoTime(); }
+    long getLastAccess() { return lastAccess; }
 
     @Override
     public String toString() {
@@ -61,7 +63,8 @@ class Message {
     private final String receiver;
     private final String content;
     private final LocalDateTime timestamp;
-    private MessageStatus status;
+    private long seq; // position in the conversation, from 1; 0 for messages stored before sequencing
+    private volatile MessageStatus status;
 
     public Message(String id, String sender, String receiver, String content, LocalDateTime timestamp) {
         this.id = id;
@@ -77,6 +80,8 @@ class Message {
     public String getReceiver() { return receiver; }
     public String getContent() { return content; }
     public LocalDateTime getTimestamp() { return timestamp; }
+    public long getSeq() { return seq; }
+    public void setSeq(long seq) { this.seq = seq; }
 
     public MessageStatus getStatus() { return status; }
     public void setStatus(MessageStatus status) { this.status = status; }
@@ -84,6 +89,30 @@ class Message {
     public void markDelivered() { this.status = MessageStatus.DELIVERED; }
     public void markRead() { this.status = MessageStatus.READ; }
 
+    public String getConversationKey() { return conversationKey(sender, receiver); }
+
+    // NUL can't be typed into a username, so "a|b"+"c" and "a"+"b|c" can't collide
+    public static final char CONVERSATION_KEY_SEPARATOR = '\u0000';
+
+    // Order-independent key for the conversation between two users (same for a->b and b->a)
+    public static String conversationKey(String a, String b) {
+        return a.compareTo(b) <= 0 ? a + CONVERSATION_KEY_SEPARATOR + b : b + CONVERSATION_KEY_SEPARATOR + a;
+    }
+
+    // Chronological order, for lists spanning conversations. Ties go by seq, so messages of one
+    // conversation sent in the same millisecond keep their order, then by id.
+    public static final Comparator<Message> CHRONOLOGICAL = Comparator.comparing(Message::getTimestamp)
+            .thenComparingLong(Message::getSeq).thenComparing(Message::getId);
+
+    // Order within one conversation, matching the history index: by sequence number; messages
+    // from before sequencing (all seq 0, so all older) fall back to timestamp
+    public static final Comparator<Message> CONVERSATION_ORDER =
+            Comparator.comparingLong(Message::getSeq).thenComparing(CHRONOLOGICAL);
+
+    // An inbox backlog: conversation by conversation, each in sequence order
+    public static final Comparator<Message> DELIVERY_ORDER =
+            Comparator.comparing(Message::getConversationKey).thenComparing(CONVERSATION_ORDER);
+
     @Override
     public String toString() {
         DateTimeFormatter f = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
@@ -91,6 +120,53 @@ class Message {
     }
 }
 
+/* ===========================
+   Paginated conversation history
+   =========================== */
+/*
+ * One page of a conversation, oldest first. `nextCursor` points just before the oldest message
+ * on this page; pass it back as `before` to load the previous page (null when there is none).
+ * Cursors are opaque to clients: "<seq>|<timestamp>|<message id>" (see Message.CONVERSATION_ORDER).
+ */
+class HistoryPage {
+    private final List<Message> messages;
+    private final String nextCursor;
+
+    public HistoryPage(List<Message> messages, String nextCursor) {
+        this.messages = messages;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<Message> getMessages() { return messages; }
+    public String getNextCursor() { return nextCursor; }
+    public boolean hasMore() { return nextCursor != null; }
+
+    public static String cursorOf(Message m) {
+        return m.getSeq() + "|" + m.getTimestamp() + "|" + m.getId();
+    }
+
+    // A probe message at the cursor's position: only seq, timestamp and id are set. Cursors
+    // from before sequencing ("<timestamp>|<id>") are seq 0. Throws on malformed cursors so bad
+    // client input surfaces as 400.
+    public static Message parseCursor(String cursor) {
+        try {
+            long seq = 0;
+            int sep = cursor.indexOf('|');
+            if (sep > 0 && cursor.chars().limit(sep).allMatch(Character::isDigit)) {
+                seq = Long.parseLong(cursor.substring(0, sep));
+                cursor = cursor.substring(sep + 1);
+                sep = cursor.indexOf('|');
+            }
+            if (sep <= 0 || sep == cursor.length() - 1) throw new RuntimeException("Invalid cursor");
+            Message probe = new Message(cursor.substring(sep + 1), "", "", "", LocalDateTime.parse(cursor.substring(0, sep)));
+            probe.setSeq(seq);
+            return probe;
+        } catch (java.time.format.DateTimeParseException | NumberFormatException e) {
+            throw new RuntimeException("Invalid cursor");
+        }
+    }
+}
+
 /* ===========================
    Factory Pattern for Message
    =========================== */
@@ -98,7 +174,8 @@ class MessageFactory {
     // Factory method for creating messages
     public static Message createTextMessage(String sender, String receiver, String content) {
         String id = UUID.randomUUID().toString();
-        return new Message(id, sender, receiver, content, LocalDateTime.now());
+        // millisecond precision: the cache stores epoch millis, so ids and cursors round-trip exactly
+        return new Message(id, sender, receiver, content, LocalDateTime.now().truncatedTo(ChronoUnit.MILLIS));
     }
 }
 
@@ -107,217 +184,773 @@ class MessageFactory {
    =========================== */
 interface NotificationObserver {
     void update(Notification notification);
+
+    // Called when the observer is unregistered because it fell too far behind
+    default void disconnected() { }
 }
 
 class Notification {
     private final NotificationType type;
     private final String username; // who caused the notification (sender or online user)
-    private final Message message; // optional
+    private final Message message; // optional; for a batch, the newest of `messages`
+    private final List<Message> messages; // batch sends: every message this notification covers
     private final String note;
+    private final Map<String, UserStatus> presence; // PRESENCE_UPDATE only: username -> new status
+    private final Long readUpTo; // READ_RECEIPT only: sequence number of the newest message read
 
     public Notification(NotificationType type, String username, Message message, String note) {
+        this(type, username, message, null, note, null, null);
+    }
+
+    private Notification(NotificationType type, String username, Message message, List<Message> messages, String note,
+                         Map<String, UserStatus> presence, Long readUpTo) {
         this.type = type;
         this.username = username;
         this.message = message;
+        this.messages = messages;
         this.note = note;
+        this.presence = presence;
+        this.readUpTo = readUpTo;
+    }
+
+    // The reader has read every message from the notified user up to and including seq `upTo`
+    public static Notification readReceipt(String reader, long upTo) {
+        return new Notification(NotificationType.READ_RECEIPT, reader, null, null, "Messages read by " + reader, null, upTo);
+    }
+
+    // One notification for several messages of a batch send, oldest first
+    public static Notification batch(NotificationType type, String username, List<Message> messages, String note) {
+        if (messages.size() == 1) return new Notification(type, username, messages.get(0), note);
+        return new Notification(type, username, messages.get(messages.size() - 1),
+                Collections.unmodifiableList(new ArrayList<>(messages)), note, null, null);
+    }
+
+    // One batched presence diff for a subscriber
+    public static Notification presence(Map<String, UserStatus> changes) {
+        String note;
+        if (changes.size() <= 3) {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, UserStatus> e : changes.entrySet()) {
+                if (sb.length() > 0) sb.append(", ");
+                sb.append(e.getKey()).append(" is ").append(e.getValue() == UserStatus.ONLINE ? "online" : "offline");
+            }
+            note = sb.toString();
+        } else {
+            note = changes.size() + " contacts changed status";
+        }
+        return new Notification(NotificationType.PRESENCE_UPDATE, null, null, null, note, Collections.unmodifiableMap(changes), null);
     }
 
     public NotificationType getType() { return type; }
     public String getUsername() { return username; }
     public Message getMessage() { return message; }
+    // Every message covered: the batch, or just getMessage()
+    public List<Message> getMessages() {
+        if (messages != null) return messages;
+        return message == null ? Collections.emptyList() : Collections.singletonList(message);
+    }
+    public boolean isBatch() { return messages != null; }
     public String getNote() { return note; }
+    public Map<String, UserStatus> getPresence() { return presence; }
+    public Long getReadUpTo() { return readUpTo; }
 }
 
 /* ===========================
    Notification Manager (Observer)
    =========================== */
 class NotificationManager {
-    // Map username -> list of observers (clients listening for notifications)
-    private final Map<String, List<NotificationObserver>> observers;
+    // Map username -> mailboxes of that user's observers (clients listening for notifications).
+    // Publishing only enqueues; observers run on the dispatcher, so a slow one never stalls a sender.
+    private final Map<String, List<ObserverMailbox>> observers;
+    private final Executor dispatcher;
+    private final ObserverMailbox.OverflowPolicy defaultPolicy;
+    private final int mailboxCapacity;
 
     public NotificationManager() {
-        this.observers = new HashMap<>();
+        this(defaultDispatcher(), ObserverMailbox.OverflowPolicy.COALESCE_STATUS, ObserverMailbox.DEFAULT_CAPACITY);
     }
 
-    public synchronized void registerObserver(String username, NotificationObserver observer) {
-        observers.computeIfAbsent(username, k -> new ArrayList<>()).add(observer);
+    public NotificationManager(Executor dispatcher, ObserverMailbox.OverflowPolicy defaultPolicy, int mailboxCapacity) {
+        this.observers = new ConcurrentHashMap<>();
+        this.dispatcher = dispatcher;
+        this.defaultPolicy = defaultPolicy;
+        this.mailboxCapacity = mailboxCapacity;
     }
 
-    public synchronized void removeObserver(String username, NotificationObserver observer) {
-        List<NotificationObserver> list = observers.get(username);
-        if (list != null) {
-            list.remove(observer);
-            if (list.isEmpty()) observers.remove(username);
+    // Shared daemon pool sized to the machine; observers are expected to be quick or hand off
+    private static Executor defaultDispatcher() {
+        AtomicInteger n = new AtomicInteger();
+        return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            Thread t = new Thread(r, "notify-dispatch-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void registerObserver(String username, NotificationObserver observer) {
+        registerObserver(username, observer, defaultPolicy);
+    }
+
+    public void registerObserver(String username, NotificationObserver observer, ObserverMailbox.OverflowPolicy policy) {
+        ObserverMailbox[] self = new ObserverMailbox[1];
+        self[0] = new ObserverMailbox(username, observer, policy, mailboxCapacity, dispatcher,
+                () -> removeMailbox(username, self[0]));
+        observers.computeIfAbsent(username, k -> new CopyOnWriteArrayList<>()).add(self[0]);
+    }
+
+    public void removeObserver(String username, NotificationObserver observer) {
+        List<ObserverMailbox> list = observers.get(username);
+        if (list == null) return;
+        for (ObserverMailbox box : list) {
+            if (box.getObserver() == observer) removeMailbox(username, box);
         }
     }
 
-    // Notify all observers of a particular user
-    public synchronized void notifyUser(String username, Notification notification) {
-        List<NotificationObserver> list = observers.get(username);
+    private void removeMailbox(String username, ObserverMailbox box) {
+        box.close();
+        observers.computeIfPresent(username, (k, list) -> {
+            list.remove(box);
+            return list.isEmpty() ? null : list;
+        });
+    }
+
+    // Notify all observers of a particular user: one enqueue per observer
+    public void notifyUser(String username, Notification notification) {
+        List<ObserverMailbox> list = observers.get(username);
         if (list != null) {
-            for (NotificationObserver o : new ArrayList<>(list)) { // clone to avoid CME
-                o.update(notification);
+            for (ObserverMailbox box : list) { // copy-on-write snapshot, no CME
+                box.offer(notification);
             }
         }
     }
 
-    // Broadcast a user-online notification to all online users (observers map keys)
-    public synchronized void broadcastUserOnline(String username) {
-        Notification n = new Notification(NotificationType.USER_ONLINE, username, null, username + " is now online");
-        for (String usr : observers.keySet()) {
-            if (!usr.equals(username)) { // don't notify the user who came online
-                notifyUser(usr, n);
-            }
+    // Group fan-out: the same notification instance goes to every listed user's mailboxes
+    public void notifyUsers(Collection<String> usernames, Notification notification) {
+        for (String username : usernames) {
+            List<ObserverMailbox> list = observers.get(username);
+            if (list == null) continue;
+            for (ObserverMailbox box : list) box.offer(notification);
         }
     }
+
+    public boolean hasObservers(String username) {
+        return observers.containsKey(username);
+    }
+
+    public int observerCount() {
+        int total = 0;
+        for (List<ObserverMailbox> list : observers.values()) total += list.size();
+        return total;
+    }
+}
+
+/* ===========================
+   Interned user identities
+   =========================== */
+/*
+ * Maps usernames to small dense ints (and back) so compact message storage can keep a 4-byte
+ * id per participant instead of a String reference. Ids are never reused or removed.
+ */
+class UserRegistry {
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[1024];
+    private int next; // guarded by this
+
+    public int intern(String username) {
+        Integer id = ids.get(username);
+        if (id != null) return id;
+        synchronized (this) {
+            id = ids.get(username);
+            if (id != null) return id;
+            if (next == names.length) names = Arrays.copyOf(names, next * 2);
+            names[next] = username; // written before the id is published through the map
+            ids.put(username, next);
+            return next++;
+        }
+    }
+
+    // -1 if the name was never interned
+    public int idOf(String username) {
+        Integer id = ids.get(username);
+        return id == null ? -1 : id;
+    }
+
+    public String name(int id) { return names[id]; }
+
+    public int size() { return ids.size(); }
 }
 
 /* ===========================
    UserManager
    =========================== */
+/*
+ * Users are loaded on demand: a lookup that misses the cache reads just that user from the
+ * store, so startup no longer scans the users collection. The cache is bounded; past the
+ * limit the least recently used offline users are evicted in one batch. Online users are
+ * never evicted since their status lives here. warmUp() preloads recently active users.
+ * Without a store the cache is the only copy, so nothing is evicted.
+ */
 class UserManager {
-    private final Map<String, User> users = new HashMap<>();
-    private final MongoDBService mongo;
-
-    public UserManager() { this.mongo = null; }
-    public UserManager(MongoDBService mongo) { this.mongo = mongo; }
+    static final int DEFAULT_MAX_CACHED_USERS = Integer.getInteger("whatsapp.users.cacheSize", 100_000);
+    static final int DEFAULT_WARMUP_USERS = Integer.getInteger("whatsapp.users.warmup", 10_000);
+
+    private final ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
+    private final UserRegistry registry = new UserRegistry();
+    private final UserStore storage; // optional persistence
+    private final int maxCachedUsers;
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    // Cluster mode: who is online comes from the cluster's presence directory instead
+    private volatile Predicate<String> presenceDirectory;
+
+    public UserManager() { this(null); }
+    public UserManager(UserStore storage) { this(storage, DEFAULT_MAX_CACHED_USERS); }
+
+    public UserManager(UserStore storage, int maxCachedUsers) {
+        this.storage = storage;
+        this.maxCachedUsers = maxCachedUsers;
+    }
 
-    public synchronized User register(String username, String password) throws RuntimeException {
+    public User register(String username, String password) throws RuntimeException {
         if (username == null || username.trim().isEmpty()) throw new RuntimeException("Invalid username");
-        if (users.containsKey(username)) throw new RuntimeException("Username already exists");
+        if (getUser(username) != null) throw new RuntimeException("Username already exists");
         User u = new User(username, password);
-        users.put(username, u);
-        if (mongo != null && mongo.isConnected()) mongo.saveOrUpdateUser(u);
+        if (users.putIfAbsent(username, u) != null) throw new RuntimeException("Username already exists");
+        registry.intern(username);
+        if (persistent()) storage.saveOrUpdateUser(u);
+        evictIfNeeded();
         return u;
     }
 
-    public synchronized User login(String username, String password) throws RuntimeException {
-        User u = users.get(username);
-        if (u == null) throw new RuntimeException("No such user");
-        if (!u.getPassword().equals(password)) throw new RuntimeException("Incorrect password");
-        u.setStatus(UserStatus.ONLINE);
-        if (mongo != null && mongo.isConnected()) mongo.saveOrUpdateUser(u);
+    public User login(String username, String password) throws RuntimeException {
+        User found = getUser(username);
+        if (found == null) throw new RuntimeException("No such user");
+        if (!found.getPassword().equals(password)) throw new RuntimeException("Incorrect password");
+        // compute() serializes with eviction, so the instance marked online is the cached one
+        User u = users.compute(username, (k, cur) -> {
+            User live = cur != null ? cur : found;
+            live.setStatus(UserStatus.ONLINE);
+            return live;
+        });
+        if (persistent()) storage.saveOrUpdateUser(u);
         return u;
     }
 
-    public synchronized void logout(String username) {
-        User u = users.get(username);
+    public void logout(String username) {
+        User u = users.get(username); // an online user is always cached
         if (u != null) {
             u.setStatus(UserStatus.OFFLINE);
-            if (mongo != null && mongo.isConnected()) mongo.saveOrUpdateUser(u);
+            if (persistent()) storage.saveOrUpdateUser(u);
         }
     }
 
-    public synchronized boolean isOnline(String username) {
+    void setPresenceDirectory(Predicate<String> directory) {
+        this.presenceDirectory = directory;
+    }
+
+    // Never reads the store: anyone online is in the cache
+    public boolean isOnline(String username) {
+        Predicate<String> directory = presenceDirectory;
+        if (directory != null) return directory.test(username);
         User u = users.get(username);
         return u != null && u.getStatus() == UserStatus.ONLINE;
     }
 
-    public synchronized User getUser(String username) {
-        return users.get(username);
+    public User getUser(String username) {
+        User u = users.get(username);
+        if (u != null) {
+            u.touch();
+            return u;
+        }
+        if (username == null || !persistent()) return null;
+        User loaded = storage.loadUser(username);
+        if (loaded == null) return null;
+        loaded.setStatus(UserStatus.OFFLINE); // a stored ONLINE is stale: nobody logged in here yet
+        User raced = users.putIfAbsent(username, loaded);
+        if (raced != null) return raced;
+        evictIfNeeded();
+        return loaded;
+    }
+
+    public UserRegistry getRegistry() { return registry; }
+
+    // Every user, from the store when there is one (a full scan; listings only)
+    public Collection<User> listAllUsers() {
+        if (!persistent()) return Collections.unmodifiableCollection(users.values());
+        List<User> out = new ArrayList<>();
+        for (User stored : storage.loadAllUsers()) {
+            User cached = users.get(stored.getUsername());
+            if (cached == null) stored.setStatus(UserStatus.OFFLINE);
+            out.add(cached != null ? cached : stored);
+        }
+        return Collections.unmodifiableList(out);
+    }
+
+    // listAllUsers one user at a time, straight from the store's cursor (streamed listings)
+    public void forEachUser(Consumer<User> sink) {
+        if (!persistent()) {
+            for (User u : users.values()) sink.accept(u);
+            return;
+        }
+        storage.forEachUser(stored -> {
+            User cached = users.get(stored.getUsername());
+            if (cached == null) stored.setStatus(UserStatus.OFFLINE);
+            sink.accept(cached != null ? cached : stored);
+        });
+    }
+
+    // Preload up to `limit` of the most recently active users
+    public int warmUp(int limit) {
+        if (!persistent() || limit <= 0) return 0;
+        int loaded = 0;
+        for (User u : storage.loadRecentUsers(Math.min(limit, maxCachedUsers))) {
+            u.setStatus(UserStatus.OFFLINE);
+            if (users.putIfAbsent(u.getUsername(), u) == null) loaded++;
+        }
+        return loaded;
     }
 
-    public synchronized Collection<User> listAllUsers() {
-        return Collections.unmodifiableCollection(users.values());
+    // warmUp on a background thread, so the server takes requests right away
+    public Thread startWarmUp(int limit) {
+        Thread t = new Thread(() -> {
+            long t0 = System.nanoTime();
+            int n = warmUp(limit);
+            if (n > 0) System.out.println("Warmed up " + n + " users in " + (System.nanoTime() - t0) / 1_000_000 + " ms");
+        }, "user-warmup");
+        t.setDaemon(true);
+        t.start();
+        return t;
     }
 
-    public synchronized void loadFromDB() {
-        if (mongo == null || !mongo.isConnected()) return;
-        List<User> fromDb = mongo.loadAllUsers();
-        for (User u : fromDb) {
-            if (!users.containsKey(u.getUsername())) users.put(u.getUsername(), u);
+    // Forget cached offline users, e.g. after switching to another store
+    public void invalidate() {
+        for (String name : users.keySet()) {
+            users.computeIfPresent(name, (k, u) -> u.getStatus() == UserStatus.ONLINE ? u : null);
+        }
+    }
+
+    public int getCachedCount() { return users.size(); }
+
+    private boolean persistent() { return storage != null && storage.isConnected(); }
+
+    // Evict down to 90% of the limit in one pass, least recently used offline users first.
+    // One thread at a time; others skip, the cache may briefly overshoot.
+    private void evictIfNeeded() {
+        if (users.size() <= maxCachedUsers || !persistent() || !evictionLock.tryLock()) return;
+        try {
+            int excess = users.size() - maxCachedUsers * 9 / 10;
+            if (excess <= 0) return;
+            // max-heap on last access: keeps the `excess` least recently used candidates
+            PriorityQueue<User> oldest = new PriorityQueue<>(excess,
+                    Comparator.comparingLong(User::getLastAccess).reversed());
+            for (User u : users.values()) {
+                if (u.getStatus() == UserStatus.ONLINE) continue;
+                oldest.add(u);
+                if (oldest.size() > excess) oldest.poll();
+            }
+            for (User u : oldest) {
+                users.computeIfPresent(u.getUsername(), (k, cur) -> cur == u && cur.getStatus() == UserStatus.OFFLINE ? null : cur);
+            }
+        } finally {
+            evictionLock.unlock();
         }
     }
 }
 
+/* ===========================
+   Lock striping for MessageManager
+   =========================== */
+/*
+ * Fixed pool of locks indexed by key hash. Every MessageManager operation is keyed by the
+ * receiving user, so sends into one inbox stay ordered while unrelated inboxes run in parallel.
+ */
+class StripedLocks {
+    private final ReentrantLock[] stripes;
+    private final int mask;
+
+    public StripedLocks(int minStripes) {
+        int n = 1;
+        while (n < minStripes) n <<= 1; // power of two so we can mask instead of mod
+        this.stripes = new ReentrantLock[n];
+        for (int i = 0; i < n; i++) stripes[i] = new ReentrantLock();
+        this.mask = n - 1;
+    }
+
+    public ReentrantLock forKey(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16); // spread high bits, same as HashMap
+        return stripes[h & mask];
+    }
+
+    public int size() { return stripes.length; }
+}
+
 /* ===========================
    MessageManager
    =========================== */
 class MessageManager {
+    // Default stripe count: a few per core keeps collisions between unrelated receivers rare
+    static final int DEFAULT_STRIPES = Runtime.getRuntime().availableProcessors() * 4;
+
     private final UserManager userManager;
     private final NotificationManager notificationManager;
-    private final MongoDBService mongo; // optional persistence
+    private final MessageStore storage; // optional persistence
+    private final MessageWriteBehind writeBehind; // optional; when set, message writes are batched
+    private final ConversationCache cache; // recent messages per conversation (shared by both parties)
+    private final OfflineInbox offlineInbox; // pending messages for offline receivers
+    // Exactly one of these serializes work per receiver: striped monitors, or in partitioned
+    // mode the receiver's shard event loop (-Dwhatsapp.shards)
+    private final StripedLocks receiverLocks;
+    private final ShardedExecutor shards;
+    private volatile GroupManager groups; // optional; enables group messages
+    private final Watermarks watermarks; // per-conversation delivered/read positions
+    private final ConversationSequences sequences; // per-conversation message numbering
+
+    public MessageManager(UserManager userManager, NotificationManager notificationManager, MessageStore storage) {
+        this(userManager, notificationManager, storage, DEFAULT_STRIPES);
+    }
+
+    public MessageManager(UserManager userManager, NotificationManager notificationManager, MessageStore storage, int stripes) {
+        this(userManager, notificationManager, storage, null,
+                new ConversationCache(storage != null ? storage::getConversationPage : null, userManager.getRegistry()),
+                stripes);
+    }
+
+    public MessageManager(UserManager userManager, NotificationManager notificationManager, MessageStore storage,
+                          MessageWriteBehind writeBehind, ConversationCache cache, int stripes) {
+        this(userManager, notificationManager, storage, writeBehind, cache, new MemoryOfflineInbox(), stripes);
+    }
+
+    public MessageManager(UserManager userManager, NotificationManager notificationManager, MessageStore storage,
+                          MessageWriteBehind writeBehind, ConversationCache cache, OfflineInbox offlineInbox,
+                          int stripes) {
+        this(userManager, notificationManager, storage, writeBehind, cache, offlineInbox, new StripedLocks(stripes), null);
+    }
+
+    // Partitioned mode: per-receiver work runs on the receiver's shard instead of under a lock
+    public MessageManager(UserManager userManager, NotificationManager notificationManager, MessageStore storage,
+                          MessageWriteBehind writeBehind, ConversationCache cache, OfflineInbox offlineInbox,
+                          ShardedExecutor shards) {
+        this(userManager, notificationManager, storage, writeBehind, cache, offlineInbox, null, shards);
+    }
 
-    public MessageManager(UserManager userManager, NotificationManager notificationManager, MongoDBService mongo) {
+    private MessageManager(UserManager userManager, NotificationManager notificationManager, MessageStore storage,
+                           MessageWriteBehind writeBehind, ConversationCache cache, OfflineInbox offlineInbox,
+                           StripedLocks receiverLocks, ShardedExecutor shards) {
         this.userManager = userManager;
         this.notificationManager = notificationManager;
-        this.mongo = mongo;
+        this.storage = storage;
+        this.writeBehind = writeBehind;
+        this.cache = cache;
+        this.offlineInbox = offlineInbox;
+        this.receiverLocks = receiverLocks;
+        this.shards = shards;
+        this.watermarks = new Watermarks(storage);
+        this.sequences = new ConversationSequences(storage);
+    }
+
+    // Run `work` serialized with everything else touching this receiver's inbox
+    private <T> T forReceiver(String receiver, Supplier<T> work) {
+        if (shards != null) return shards.call(receiver, work);
+        ReentrantLock lock = receiverLocks.forKey(receiver);
+        lock.lock();
+        try {
+            return work.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public ConversationCache getCache() { return cache; }
+    public OfflineInbox getOfflineInbox() { return offlineInbox; }
+
+    public Watermarks getWatermarks() { return watermarks; }
+    public ConversationSequences getSequences() { return sequences; }
+    void setGroupManager(GroupManager groups) { this.groups = groups; }
+    public GroupManager getGroupManager() { return groups; }
+
+    private boolean persistent() { return storage != null && storage.isConnected(); }
+
+    private void persistNew(Message m) {
+        if (!persistent()) return;
+        if (writeBehind != null) writeBehind.enqueueInsert(m);
+        else storage.saveMessage(m);
+    }
+
+    // One bulk insert (or one write-behind enqueue) for a batch of new messages
+    private void persistNew(List<Message> batch) {
+        if (!persistent() || batch.isEmpty()) return;
+        if (writeBehind != null) writeBehind.enqueueInserts(batch);
+        else storage.saveMessages(batch);
+    }
+
+    // One bulk status transition for a batch of messages (a single round-trip without write-behind)
+    private void persistStatuses(List<Message> batch, MessageStatus status) {
+        if (!persistent() || batch.isEmpty()) return;
+        List<String> ids = new ArrayList<>(batch.size());
+        for (Message m : batch) ids.add(m.getId());
+        if (writeBehind != null) writeBehind.enqueueStatuses(ids, status);
+        else if (storage.supports(Store.Capability.ATOMIC_STATUS_TRANSITIONS)) storage.advanceStatuses(ids, status);
+        else storage.updateMessageStatuses(ids, status);
+    }
+
+    // Make queued writes visible before reading messages back from the DB
+    void flushPendingWrites() {
+        if (writeBehind != null && persistent()) writeBehind.flush();
     }
 
-    // Send message from sender -> receiver with proper status updates
-    public synchronized Message sendMessage(String sender, String receiver, String content) {
+    // Send message from sender -> receiver with proper status updates.
+    // Serialized per receiver only (stripe or shard), so per-inbox ordering is preserved and the
+    // online check cannot race with deliverOfflineMessages draining the same inbox.
+    public Message sendMessage(String sender, String receiver, String content) {
         User s = userManager.getUser(sender);
         User r = userManager.getUser(receiver);
         if (s == null) throw new RuntimeException("Sender does not exist");
         if (r == null) throw new RuntimeException("Receiver does not exist");
 
-        Message m = MessageFactory.createTextMessage(sender, receiver, content);
-        m.setStatus(MessageStatus.SENT);
-
-        // persist message if possible
-        if (mongo != null && mongo.isConnected()) mongo.saveMessage(m);
+        return forReceiver(receiver, () -> {
+            ConversationMarks marks = watermarks.get(sender, receiver); // before m is stored: it counts it
+            Message m = MessageFactory.createTextMessage(sender, receiver, content);
+            m.setSeq(sequences.next(m.getConversationKey()));
+            m.setStatus(MessageStatus.SENT);
+            boolean online = userManager.isOnline(receiver);
+            if (online) m.markDelivered();
+
+            // persist once, with the final status (no separate DELIVERED update)
+            persistNew(m);
+            marks.sent(m);
+            if (online) marks.deliverAll(); // in memory only; the stored message says DELIVERED
+
+            // write-through: one cached copy serves both sender's and recipient's history
+            cache.append(m);
+
+            if (online) {
+                // delivered immediately; notify recipient about new message
+                notificationManager.notifyUser(receiver, new Notification(NotificationType.NEW_MESSAGE, sender, m, "New message"));
+                // notify sender that message was delivered
+                notificationManager.notifyUser(sender, new Notification(NotificationType.MESSAGE_STATUS_UPDATE, receiver, m, "Message delivered"));
+            } else {
+                // queue offline
+                offlineInbox.append(m);
+                // notify sender that message was sent but not delivered
+                notificationManager.notifyUser(sender, new Notification(NotificationType.MESSAGE_STATUS_UPDATE, receiver, m, "Message sent and queued (recipient offline)"));
+            }
+            return m;
+        });
+    }
 
-        // Add to sender history
-        s.addToHistory(m);
+    // Batch ingestion. Items are grouped by receiver and each group runs under a single
+    // acquisition of the receiver's serialization, with one bulk insert. The receiver gets one
+    // notification per sender and each sender one status update per receiver, covering all of
+    // their messages. Unknown users fail their own item only; the outcome is on each item.
+    public void sendBatch(List<BatchedSend> items) {
+        Map<String, List<BatchedSend>> byReceiver = new LinkedHashMap<>();
+        for (BatchedSend item : items) {
+            if (userManager.getUser(item.getSender()) == null) item.fail("Sender does not exist");
+            else if (userManager.getUser(item.getReceiver()) == null) item.fail("Receiver does not exist");
+            else byReceiver.computeIfAbsent(item.getReceiver(), k -> new ArrayList<>()).add(item);
+        }
+        for (Map.Entry<String, List<BatchedSend>> e : byReceiver.entrySet()) {
+            try {
+                forReceiver(e.getKey(), () -> {
+                    sendAllTo(e.getKey(), e.getValue());
+                    return null;
+                });
+            } catch (RuntimeException ex) {
+                // e.g. the persistence queue is full: this receiver's group is not sent
+                for (BatchedSend item : e.getValue()) item.fail(String.valueOf(ex.getMessage()));
+            }
+        }
+    }
 
-        if (userManager.isOnline(receiver)) {
-            // deliver immediately
-            m.markDelivered();
-            if (mongo != null && mongo.isConnected()) mongo.updateMessageStatus(m.getId(), MessageStatus.DELIVERED);
-            r.addToHistory(m); // recipient's history contains message now as delivered
-            // notify recipient about new message
-            notificationManager.notifyUser(receiver, new Notification(NotificationType.NEW_MESSAGE, sender, m, "New message"));
-            // notify sender that message was delivered
-            notificationManager.notifyUser(sender, new Notification(NotificationType.MESSAGE_STATUS_UPDATE, receiver, m, "Message delivered"));
-        } else {
-            // queue offline
-            r.enqueueOfflineMessage(m);
-            // notify sender that message was sent but not delivered
-            notificationManager.notifyUser(sender, new Notification(NotificationType.MESSAGE_STATUS_UPDATE, receiver, m, "Message sent and queued (recipient offline)"));
+    // caller serializes on receiver. Same steps as sendMessage, each done once for the group.
+    private void sendAllTo(String receiver, List<BatchedSend> items) {
+        boolean online = userManager.isOnline(receiver);
+        List<Message> batch = new ArrayList<>(items.size());
+        Map<String, ConversationMarks> marksBySender = new LinkedHashMap<>();
+        for (BatchedSend item : items) {
+            // before the messages are stored: catch-up must not count them
+            marksBySender.computeIfAbsent(item.getSender(), s -> watermarks.get(s, receiver));
+            Message m = MessageFactory.createTextMessage(item.getSender(), receiver, item.getContent());
+            m.setSeq(sequences.next(m.getConversationKey()));
+            m.setStatus(MessageStatus.SENT);
+            if (online) m.markDelivered();
+            batch.add(m);
+        }
+        persistNew(batch);
+
+        Map<String, List<Message>> bySender = new LinkedHashMap<>();
+        for (int i = 0; i < batch.size(); i++) {
+            Message m = batch.get(i);
+            items.get(i).sent(m);
+            marksBySender.get(m.getSender()).sent(m);
+            cache.append(m);
+            if (!online) offlineInbox.append(m);
+            bySender.computeIfAbsent(m.getSender(), k -> new ArrayList<>()).add(m);
+        }
+        if (online) for (ConversationMarks marks : marksBySender.values()) marks.deliverAll();
+
+        for (Map.Entry<String, List<Message>> e : bySender.entrySet()) {
+            String sender = e.getKey();
+            List<Message> sent = e.getValue();
+            int n = sent.size();
+            if (online) {
+                notificationManager.notifyUser(receiver, Notification.batch(NotificationType.NEW_MESSAGE, sender, sent,
+                        n == 1 ? "New message" : n + " new messages"));
+                notificationManager.notifyUser(sender, Notification.batch(NotificationType.MESSAGE_STATUS_UPDATE, receiver, sent,
+                        n == 1 ? "Message delivered" : n + " messages delivered"));
+            } else {
+                notificationManager.notifyUser(sender, Notification.batch(NotificationType.MESSAGE_STATUS_UPDATE, receiver, sent,
+                        n == 1 ? "Message sent and queued (recipient offline)" : n + " messages sent and queued (recipient offline)"));
+            }
         }
-        return m;
     }
 
-    // Deliver all pending offline messages to user (called when user logs in)
-    public synchronized void deliverOfflineMessages(String username) {
+    // Deliver all pending offline messages to user (called when user logs in).
+    // Status changes for the whole backlog are written with one bulk update.
+    public void deliverOfflineMessages(String username) {
         User u = userManager.getUser(username);
         if (u == null) return;
-        // First, deliver in-memory queued messages
-        Queue<Message> pending = u.drainOfflineMessages();
-        while (!pending.isEmpty()) {
-            Message m = pending.poll();
-            m.markDelivered();
-            if (mongo != null && mongo.isConnected()) mongo.updateMessageStatus(m.getId(), MessageStatus.DELIVERED);
-            u.addToHistory(m);
-            // notify recipient
-            notificationManager.notifyUser(username, new Notification(NotificationType.NEW_MESSAGE, m.getSender(), m, "Delivered offline message"));
-            // notify sender that message was delivered now
-            notificationManager.notifyUser(m.getSender(), new Notification(NotificationType.MESSAGE_STATUS_UPDATE, username, m, "Message delivered (recipient came online)"));
-        }
-        // Then, deliver messages stored in DB (if connected)
-        if (mongo != null && mongo.isConnected()) {
-            List<Message> dbPending = mongo.getUndeliveredMessages(username);
-            for (Message m : dbPending) {
-                m.markDelivered();
-                mongo.updateMessageStatus(m.getId(), MessageStatus.DELIVERED);
-                u.addToHistory(m);
+        forReceiver(username, () -> {
+            // Messages stored in DB (if connected), each conversation in sequence order, then
+            // anything only the offline inbox has. The inbox ones are also in the DB as SENT, so
+            // dedupe by id, keeping the stored copy.
+            Map<String, Message> pending = new LinkedHashMap<>();
+            List<Message> queued = offlineInbox.peek(username);
+            if (persistent()) {
+                flushPendingWrites();
+                for (Message m : storage.getUndeliveredMessages(username)) pending.put(m.getId(), m);
+            }
+            for (Message m : queued) {
+                // queued by an inbox format without seq: number it now, after everything sent before
+                if (m.getSeq() == 0 && !pending.containsKey(m.getId())) m.setSeq(sequences.next(m.getConversationKey()));
+                pending.putIfAbsent(m.getId(), m);
+            }
+            List<Message> delivered = new ArrayList<>(pending.values());
+            persistStatuses(delivered, MessageStatus.DELIVERED);
+            // only now: if anything above failed (or the process died) the inbox still has them
+            offlineInbox.consume(username, queued.size());
+            for (Message m : delivered) m.markDelivered();
+            Set<String> senders = new LinkedHashSet<>();
+            for (Message m : delivered) senders.add(m.getSender());
+            List<ConversationMarks> moved = new ArrayList<>();
+            for (String sender : senders) {
+                ConversationMarks marks = watermarks.get(sender, username);
+                if (marks.deliverAll()) moved.add(marks);
+            }
+            persistMarks(moved);
+            for (Message m : delivered) {
+                cache.updateStatus(m); // the cache keeps its own compact copy of each message
+                // notify recipient
                 notificationManager.notifyUser(username, new Notification(NotificationType.NEW_MESSAGE, m.getSender(), m, "Delivered offline message"));
+                // notify sender that message was delivered now
                 notificationManager.notifyUser(m.getSender(), new Notification(NotificationType.MESSAGE_STATUS_UPDATE, username, m, "Message delivered (recipient came online)"));
             }
+            deliverGroupBacklog(username);
+            return null;
+        });
+    }
+
+    // Group messages sent while the user was offline: one receipt update covers all of them
+    private void deliverGroupBacklog(String username) {
+        GroupManager g = groups;
+        if (g == null) return;
+        List<GroupMessage> backlog = g.getStore().getUndeliveredGroupMessages(username);
+        if (backlog.isEmpty()) return;
+        Map<String, MessageStatus> receipts = new LinkedHashMap<>();
+        for (GroupMessage m : backlog) receipts.put(m.getId(), MessageStatus.DELIVERED);
+        g.getStore().advanceReceipts(username, receipts);
+        for (GroupMessage m : backlog) {
+            notificationManager.notifyUser(username, new Notification(NotificationType.NEW_GROUP_MESSAGE, m.getSender(), m, "Delivered offline group message"));
         }
     }
 
-    // When recipient views inbox, mark messages as READ and notify senders
-    public synchronized void markMessagesRead(String username, List<Message> messagesRead) {
-        for (Message m : messagesRead) {
-            if (m.getReceiver().equals(username) && m.getStatus() != MessageStatus.READ) {
-                m.markRead();
-                if (mongo != null && mongo.isConnected()) mongo.updateMessageStatus(m.getId(), MessageStatus.READ);
-                // notify sender
-                notificationManager.notifyUser(m.getSender(), new Notification(NotificationType.MESSAGE_STATUS_UPDATE, username, m, "Message read"));
+    // Group send: the message is stored once with a receipt per member; online members share one
+    // notification in a single fan-out, the others pick it up from their receipts on login
+    public GroupMessage sendGroupMessage(String sender, String groupId, String content) {
+        GroupManager g = groups;
+        if (g == null) throw new RuntimeException("Groups are not enabled");
+        if (userManager.getUser(sender) == null) throw new RuntimeException("Sender does not exist");
+        return g.withGroup(groupId, () -> {
+            Group group = g.requireGroup(groupId);
+            if (!group.isMember(sender)) throw new RuntimeException("Not a member of this group");
+            GroupMessage m = GroupMessage.create(sender, groupId, content);
+            Set<String> online = new LinkedHashSet<>();
+            for (String member : group.getMembers()) {
+                if (!member.equals(sender) && userManager.isOnline(member)) online.add(member);
             }
+            g.getStore().saveGroupMessage(m, group.getRoster(), online);
+            notificationManager.notifyUsers(online, new Notification(NotificationType.NEW_GROUP_MESSAGE, sender, m, "New message in " + group.getName()));
+            notificationManager.notifyUser(sender, new Notification(NotificationType.MESSAGE_STATUS_UPDATE, groupId, m,
+                    "Delivered to " + online.size() + " of " + (group.getRoster().size() - 1) + " members"));
+            return m;
+        });
+    }
+
+    // The reader's receipts move to READ and each sender hears about it
+    public void markGroupMessagesRead(String username, Collection<String> messageIds) {
+        GroupManager g = groups;
+        if (g == null || messageIds.isEmpty()) return;
+        Map<String, MessageStatus> receipts = new LinkedHashMap<>();
+        for (String id : messageIds) receipts.put(id, MessageStatus.READ);
+        g.getStore().advanceReceipts(username, receipts);
+        for (GroupMessage m : g.getStore().getGroupMessages(messageIds)) {
+            if (m.getSender().equals(username)) continue;
+            notificationManager.notifyUser(m.getSender(), new Notification(NotificationType.MESSAGE_STATUS_UPDATE, username, m, "Read by " + username));
         }
     }
+
+    // The recipient has seen these messages: per sender, the read watermark moves up to the
+    // newest of them. One write for all senders and one receipt per sender, not per message.
+    public void markMessagesRead(String username, List<Message> messagesRead) {
+        forReceiver(username, () -> {
+            Map<String, Long> newest = new LinkedHashMap<>();
+            Map<String, Set<String>> unread = new HashMap<>();
+            for (Message m : messagesRead) {
+                if (!m.getReceiver().equals(username)) continue;
+                ConversationMarks marks = watermarks.find(m.getSender(), username);
+                if (marks == null || marks.isRead(m)) continue;
+                newest.merge(m.getSender(), m.getSeq(), Math::max);
+                unread.computeIfAbsent(m.getSender(), k -> new HashSet<>()).add(m.getId());
+            }
+            if (!newest.isEmpty()) flushPendingWrites(); // partial reads are counted in the store
+            List<ConversationMarks> moved = new ArrayList<>();
+            for (Map.Entry<String, Long> e : newest.entrySet()) {
+                ConversationMarks marks = watermarks.find(e.getKey(), username);
+                if (watermarks.readUpTo(marks, e.getValue(), unread.get(e.getKey()).size())) moved.add(marks);
+            }
+            readReceipts(username, moved);
+            return null;
+        });
+    }
+
+    // Everything received so far from each of `peers` is read
+    public void markConversationsRead(String username, Collection<String> peers) {
+        forReceiver(username, () -> {
+            List<ConversationMarks> moved = new ArrayList<>();
+            for (String peer : peers) {
+                ConversationMarks marks = watermarks.find(peer, username);
+                if (marks != null && marks.readAll()) moved.add(marks);
+            }
+            readReceipts(username, moved);
+            return null;
+        });
+    }
+
+    // peer -> number of unread messages from that peer
+    public Map<String, Long> getUnreadCounts(String username) {
+        return watermarks.unreadCounts(username);
+    }
+
+    private void readReceipts(String reader, List<ConversationMarks> moved) {
+        persistMarks(moved);
+        for (ConversationMarks marks : moved) {
+            notificationManager.notifyUser(marks.getSender(), Notification.readReceipt(reader, marks.getReadSeq()));
+        }
+    }
+
+    private void persistMarks(List<ConversationMarks> moved) {
+        if (persistent() && !moved.isEmpty()) storage.saveMarks(moved);
+    }
 }
 
 /* ===========================
@@ -331,22 +964,109 @@ class MessagingServer {
     private final UserManager userManager;
     private final NotificationManager notificationManager;
     private final MessageManager messageManager;
-    private final MongoDBService mongoService;
+    private final MessageStore messageStore;
+    private final UserStore userStore;
+    private final MongoDBService mongoService; // null unless storage is MongoDB
+    private final MessageWriteBehind writeBehind; // null for local stores, which are written directly
+    private final ConversationCache conversationCache;
+    private final OfflineInbox offlineInbox;
+    private final PresenceService presence;
+    private final ShardedExecutor shards; // null unless partitioned mode is on
+    private final ClusterNode cluster; // null unless cluster mode is on
+    private final GroupManager groupManager;
 
     private static final String DEFAULT_MONGO_URI = "mongodb://127.0.0.1:27017";
     private static final String DEFAULT_DB = "whatsapp";
+    // mongo: MongoDB with write-behind; wal: embedded write-ahead log on local disk;
+    // memory: MemoryStore, nothing survives a restart
+    static final String STORAGE = System.getProperty("whatsapp.storage", "mongo").toLowerCase();
+    // > 0: partitioned mode, receivers hashed onto this many single-threaded shards instead of
+    // striped locks; 0 keeps the lock-based design
+    static final int SHARDS = Integer.getInteger("whatsapp.shards", 0);
 
     private MessagingServer() {
-        // Attempt to connect to MongoDB (safe to fail — app keeps running in memory-only mode)
-        this.mongoService = new MongoDBService();
-        this.mongoService.connect(DEFAULT_MONGO_URI, DEFAULT_DB);
+        this(openStore(STORAGE), ClusterNode.fromSystemProperties());
+    }
 
-        this.userManager = new UserManager(mongoService);
-        this.notificationManager = new NotificationManager();
-        this.messageManager = new MessageManager(userManager, notificationManager, mongoService);
+    private MessagingServer(MessageStore store, ClusterNode cluster) {
+        this(store, (UserStore) store, cluster);
+    }
 
-        // Load any users from DB into memory
-        this.userManager.loadFromDB();
+    // Also used to run several cluster nodes in one JVM over a shared store
+    MessagingServer(MessageStore messageStore, UserStore userStore, ClusterNode cluster) {
+        this.messageStore = messageStore;
+        this.userStore = userStore;
+        this.cluster = cluster;
+        this.mongoService = messageStore instanceof MongoDBService ? (MongoDBService) messageStore : null;
+        // Mongo writes go through a write-behind queue so sends don't wait on MongoDB; local
+        // stores (WAL appends are group-committed) are written straight through
+        this.writeBehind = mongoService != null ? new MessageWriteBehind(mongoService) : null;
+
+        this.userManager = new UserManager(userStore);
+        if (cluster != null) this.userManager.setPresenceDirectory(cluster::isOnline);
+        this.notificationManager = cluster != null ? new ClusterNotificationManager(cluster) : new NotificationManager();
+        // Recent history is served from memory; misses read through to storage when connected.
+        // While it is not, the cache keeps every message sent (it has the only copy).
+        this.conversationCache = new ConversationCache((user, peer, before, limit) -> {
+            if (!messageStore.isConnected()) return new HistoryPage(Collections.emptyList(), null);
+            if (writeBehind != null) writeBehind.flush();
+            return messageStore.getConversationPage(user, peer, before, limit);
+        }, messageStore::isConnected, userManager.getRegistry());
+        // a restart-proof inbox only makes sense when the messages themselves are durable
+        this.offlineInbox = messageStore.supports(Store.Capability.DURABLE)
+                ? openOfflineInbox(cluster == null ? Paths.get(MappedOfflineInbox.DEFAULT_DIR)
+                        : Paths.get(MappedOfflineInbox.DEFAULT_DIR, cluster.getSelf())) // nodes may share a host
+                : new MemoryOfflineInbox();
+        this.shards = SHARDS > 0 ? new ShardedExecutor(SHARDS) : null;
+        this.messageManager = shards != null
+                ? new MessageManager(userManager, notificationManager, messageStore, writeBehind,
+                        conversationCache, offlineInbox, shards)
+                : new MessageManager(userManager, notificationManager, messageStore, writeBehind,
+                        conversationCache, offlineInbox, MessageManager.DEFAULT_STRIPES);
+        // both directions of a conversation must draw from one count, and in cluster mode they
+        // are sent on the two users' home nodes
+        this.messageManager.getSequences().setShared(cluster != null);
+        this.presence = new PresenceService(userManager, notificationManager);
+        this.presence.setContacts(u -> messageManager.getWatermarks().sendersTo(u));
+        // Groups live in the main store when it can hold them; with MongoDB unreachable they are
+        // kept in memory for this process, like everything else
+        this.groupManager = new GroupManager(userManager, messageStore instanceof GroupStore && messageStore.isConnected()
+                ? (GroupStore) messageStore : new MemoryStore());
+        this.messageManager.setGroupManager(groupManager);
+
+        // Users are loaded on demand; preload the recently active ones in the background
+        this.userManager.startWarmUp(UserManager.DEFAULT_WARMUP_USERS);
+
+        if (cluster != null) cluster.attach(this);
+
+        // Don't lose acknowledged-but-unflushed messages on a normal JVM exit
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "messaging-server-shutdown"));
+    }
+
+    // mongo: MongoDB (safe to fail — the app keeps running in memory-only mode);
+    // wal: embedded write-ahead log; memory: MemoryStore
+    private static MessageStore openStore(String storage) {
+        switch (storage) {
+            case "wal":
+                return new WalStorage();
+            case "memory":
+                return new MemoryStore();
+            default:
+                MongoDBService mongo = new MongoDBService();
+                mongo.connect(DEFAULT_MONGO_URI, DEFAULT_DB);
+                return mongo;
+        }
+    }
+
+    // Queued offline messages live in mapped files so they survive restarts; fall back to the
+    // heap if the inbox directory can't be used
+    private static OfflineInbox openOfflineInbox(Path dir) {
+        try {
+            return new MappedOfflineInbox(dir, MappedOfflineInbox.DEFAULT_SHARDS, MappedOfflineInbox.DEFAULT_SEGMENT_BYTES);
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage() + " (offline messages will be kept in memory)");
+            return new MemoryOfflineInbox();
+        }
     }
 
     public static synchronized MessagingServer getInstance() {
@@ -357,18 +1077,29 @@ class MessagingServer {
     public UserManager getUserManager() { return userManager; }
     public NotificationManager getNotificationManager() { return notificationManager; }
     public MessageManager getMessageManager() { return messageManager; }
+    public PresenceService getPresence() { return presence; }
+    public ClusterNode getCluster() { return cluster; }
+    public GroupManager getGroupManager() { return groupManager; }
 
     /* High-level operations */
+    // In cluster mode per-user work runs on the user's home node (see ClusterNode)
     public User registerUser(String username, String password) {
-        return userManager.register(username, password);
+        if (cluster == null) return userManager.register(username, password);
+        cluster.register(username, password);
+        return userManager.getUser(username);
     }
 
     public User loginUser(String username, String password, NotificationObserver observer) {
         User u = userManager.login(username, password);
         // Register observer to receive notifications for this user
         notificationManager.registerObserver(username, observer);
-        // Broadcast to other online users that this user came online
-        notificationManager.broadcastUserOnline(username);
+        if (cluster != null) {
+            // directory update, presence and offline delivery all happen via the home node
+            cluster.connected(username);
+            return u;
+        }
+        // Contacts hear about it in the next presence window (and this user gets their statuses)
+        presence.statusChanged(username, UserStatus.ONLINE);
         // Deliver offline messages
         messageManager.deliverOfflineMessages(username);
         return u;
@@ -377,26 +1108,154 @@ class MessagingServer {
     public void logoutUser(String username, NotificationObserver observer) {
         notificationManager.removeObserver(username, observer);
         userManager.logout(username);
-        // Optional: broadcast offline to others (not required)
+        if (cluster != null) cluster.disconnected(username);
+        else presence.statusChanged(username, UserStatus.OFFLINE);
     }
 
     public Message sendMessage(String sender, String receiver, String content) {
-        return messageManager.sendMessage(sender, receiver, content);
+        if (cluster != null) return cluster.send(sender, receiver, content);
+        Message m = messageManager.sendMessage(sender, receiver, content);
+        presence.recordConversation(sender, receiver);
+        return m;
+    }
+
+    // Many sends in one call (see MessageManager.sendBatch); the outcome is on each item. In
+    // cluster mode each home node gets its receivers' items in one call.
+    public List<BatchedSend> sendBatch(List<BatchedSend> items) {
+        if (cluster != null) {
+            cluster.sendBatch(items);
+            return items;
+        }
+        messageManager.sendBatch(items);
+        Set<String> recorded = new HashSet<>();
+        for (BatchedSend item : items) {
+            if (item.isSent() && recorded.add(Message.conversationKey(item.getSender(), item.getReceiver()))) {
+                presence.recordConversation(item.getSender(), item.getReceiver());
+            }
+        }
+        return items;
+    }
+
+    public void watchPresence(String subscriber, String target) {
+        if (userManager.getUser(target) == null) throw new RuntimeException("No such user");
+        if (cluster != null) cluster.watch(subscriber, target);
+        else presence.watch(subscriber, target);
+    }
+
+    public Group createGroup(String name, String createdBy, Collection<String> members) {
+        return groupManager.createGroup(name, createdBy, members);
+    }
+
+    // Group sends and membership changes run on the group's home node in cluster mode
+    public Group addGroupMember(String groupId, String username) {
+        if (cluster != null) return cluster.changeGroupMember(groupId, username, true);
+        return groupManager.addMember(groupId, username);
+    }
+
+    public Group removeGroupMember(String groupId, String username) {
+        if (cluster != null) return cluster.changeGroupMember(groupId, username, false);
+        return groupManager.removeMember(groupId, username);
+    }
+
+    public GroupMessage sendGroupMessage(String sender, String groupId, String content) {
+        if (cluster != null) return cluster.sendGroup(sender, groupId, content);
+        return messageManager.sendGroupMessage(sender, groupId, content);
+    }
+
+    public void markGroupMessagesRead(String username, Collection<String> messageIds) {
+        messageManager.markGroupMessagesRead(username, messageIds);
+    }
+
+    public List<GroupMessage> getGroupHistory(String groupId, int limit) {
+        if (limit <= 0) throw new RuntimeException("Invalid limit");
+        return groupManager.getHistory(groupId, limit);
+    }
+
+    public List<Group> listUserGroups(String username) { return groupManager.groupsOf(username); }
+
+    // null if there is no such group
+    public Group getGroup(String groupId) { return groupManager.getGroup(groupId); }
+
+    // member -> status of one message of the group; throws if the message is not in that group
+    public Map<String, MessageStatus> getGroupReceipts(String groupId, String messageId) {
+        List<GroupMessage> found = groupManager.getStore().getGroupMessages(Collections.singletonList(messageId));
+        if (found.isEmpty() || !found.get(0).getGroupId().equals(groupId)) throw new RuntimeException("No such message");
+        return groupManager.getStore().getReceipts(messageId);
     }
 
     public void markMessagesRead(String username, List<Message> messagesRead) {
-        messageManager.markMessagesRead(username, messagesRead);
+        if (cluster != null) cluster.markRead(username, messagesRead);
+        else messageManager.markMessagesRead(username, messagesRead);
+    }
+
+    // peers null: every conversation with unread messages
+    public void markConversationsRead(String username, Collection<String> peers) {
+        if (peers == null) peers = getUnreadCounts(username).keySet();
+        if (peers.isEmpty()) return;
+        if (cluster != null) cluster.markConversationsRead(username, peers);
+        else messageManager.markConversationsRead(username, peers);
+    }
+
+    public Map<String, Long> getUnreadCounts(String username) {
+        if (cluster != null) return cluster.unreadCounts(username);
+        return messageManager.getUnreadCounts(username);
     }
 
     public Collection<User> listUsers() { return userManager.listAllUsers(); }
 
+    public void forEachUser(Consumer<User> sink) { userManager.forEachUser(sink); }
+
     public User getUser(String username) { return userManager.getUser(username); }
 
-    // Return message history, prefer DB-backed history when available
+    // One page of the conversation between `username` and `peer`, newest page first.
+    // `before` is the cursor from a previous page or null for the latest messages.
+    public HistoryPage getConversationPage(String username, String peer, String before, int limit) {
+        if (limit <= 0) throw new RuntimeException("Invalid limit");
+        if (cluster != null && messageStore.isConnected()) {
+            // the two directions of a conversation are sent on different home nodes, so no
+            // single node's cache has it all; read the shared store
+            messageManager.flushPendingWrites();
+            return withWatermarks(messageStore.getConversationPage(username, peer, before, limit));
+        }
+        return withWatermarks(conversationCache.getPage(username, peer, before, limit));
+    }
+
     public List<Message> getMessageHistory(String username) {
-        if (mongoService != null && mongoService.isConnected()) return mongoService.getMessageHistory(username);
-        User u = userManager.getUser(username);
-        return u == null ? Collections.emptyList() : new ArrayList<>(u.getMessageHistory());
+        if (messageStore.isConnected()) {
+            messageManager.flushPendingWrites();
+            return withWatermarks(messageStore.getMessageHistory(username));
+        }
+        // memory-only mode: whatever the bounded cache still holds for this user
+        return withWatermarks(conversationCache.historyOf(username));
+    }
+
+    // getMessageHistory one message at a time, for responses streamed to the client
+    public void forEachInHistory(String username, Consumer<Message> sink) {
+        Watermarks marks = readMarks();
+        if (messageStore.isConnected()) {
+            messageManager.flushPendingWrites();
+            messageStore.forEachInHistory(username, m -> sink.accept(marks.applyTo(m)));
+            return;
+        }
+        for (Message m : conversationCache.historyOf(username)) sink.accept(marks.applyTo(m));
+    }
+
+    // Stored statuses stop at DELIVERED; READ comes from the read watermarks
+    private List<Message> withWatermarks(List<Message> messages) {
+        readMarks().applyTo(messages);
+        return messages;
+    }
+
+    private HistoryPage withWatermarks(HistoryPage page) {
+        if (page != null) readMarks().applyTo(page.getMessages());
+        return page;
+    }
+
+    // In cluster mode a receiver's marks move on their home node only, and this node's copies
+    // are never reloaded: read the shared store's for each request instead
+    private Watermarks readMarks() {
+        Watermarks marks = messageManager.getWatermarks();
+        return cluster != null && messageStore.isConnected() ? marks.snapshot() : marks;
     }
 
     // Convenience for the UI to know whether MongoDB is actually connected
@@ -404,12 +1263,39 @@ class MessagingServer {
         return mongoService != null && mongoService.isConnected();
     }
 
-    // Allow runtime (re)configuration of MongoDB connection from the UI
+    public boolean isPersistent() { return messageStore.isConnected(); }
+
+    public String getStorageName() {
+        if (mongoService != null) return "mongo";
+        return messageStore instanceof WalStorage ? "wal" : "memory";
+    }
+
+    public Set<Store.Capability> getStorageCapabilities() { return messageStore.capabilities(); }
+
+    // Allow runtime (re)configuration of MongoDB connection from the UI (MongoDB storage only)
     public boolean configureMongo(String uri, String dbName) {
         if (mongoService == null) return false;
+        if (mongoService.isConnected()) writeBehind.flush(); // write out queued messages to the old DB
         mongoService.close();
         boolean ok = mongoService.connect(uri, dbName);
-        if (ok) userManager.loadFromDB();
+        conversationCache.clear(); // cached tails belonged to the previous store
+        messageManager.getWatermarks().clear();
+        messageManager.getSequences().clear();
+        userManager.invalidate(); // cached offline users came from the previous store
+        if (ok) userManager.startWarmUp(UserManager.DEFAULT_WARMUP_USERS);
         return ok;
     }
+
+    public ConversationCache getConversationCache() { return conversationCache; }
+
+    // Flush queued message writes and release the DB connection
+    public void shutdown() {
+        presence.shutdown();
+        if (shards != null) shards.close(); // finish in-flight sends before the queues are flushed
+        if (cluster != null) cluster.close();
+        if (writeBehind != null) writeBehind.close();
+        offlineInbox.close();
+        messageStore.close();
+        if (userStore != messageStore) userStore.close();
+    }
 }